@@ -0,0 +1,91 @@
+public final class AdaptiveQuality {
+	
+	// Render time as a fraction of the slice's duration, smoothed over recent slices
+	private static final double SMOOTHING = 0.2;
+	private static final double STEP_DOWN_LOAD = 0.7;
+	private static final double STEP_UP_LOAD = 0.35;
+	
+	// Slices to wait after a change before stepping down again, and of headroom before stepping up
+	private static final int STEP_DOWN_HOLD = 8;
+	private static final int STEP_UP_HOLD = 60;
+	
+	private RenderQuality quality;
+	private double load;
+	private double peakLoad;
+	private int slicesSinceChange;
+	private int slicesWithHeadroom;
+	private long qualityChanges;
+	private long overruns;
+	
+	public AdaptiveQuality() {
+		this.quality = RenderQuality.FULL;
+	}
+	
+	public RenderQuality getQuality() {
+		return quality;
+	}
+	
+	public double getLoad() {
+		return load;
+	}
+	
+	public double getPeakLoad() {
+		return peakLoad;
+	}
+	
+	public long getQualityChanges() {
+		return qualityChanges;
+	}
+	
+	// Slices whose render took longer than the slice itself lasts
+	public long getOverruns() {
+		return overruns;
+	}
+	
+	public RenderQuality update(long renderNanos, long sliceNanos) {
+		
+		double sliceLoad = renderNanos / (double) sliceNanos;
+		
+		load += (sliceLoad - load) * SMOOTHING;
+		peakLoad = Math.max(peakLoad, sliceLoad);
+		
+		if(sliceLoad > 1.0)
+			++overruns;
+		
+		++slicesSinceChange;
+		slicesWithHeadroom = load < STEP_UP_LOAD ? slicesWithHeadroom + 1 : 0;
+		
+		if((load > STEP_DOWN_LOAD || sliceLoad > 1.0) && slicesSinceChange >= STEP_DOWN_HOLD)
+			setQuality(quality.lower());
+		
+		else if(slicesWithHeadroom >= STEP_UP_HOLD)
+			setQuality(quality.higher());
+		
+		return quality;
+		
+	}
+	
+	private void setQuality(RenderQuality quality) {
+		
+		if(quality != this.quality) {
+			
+			this.quality = quality;
+			++qualityChanges;
+			
+		}
+		
+		slicesSinceChange = 0;
+		slicesWithHeadroom = 0;
+		
+	}
+	
+	@Override
+	public String toString() {
+		return format(quality, load, peakLoad, overruns);
+	}
+	
+	static String format(RenderQuality quality, double load, double peakLoad, long overruns) {
+		return "{Quality: " + quality + ", Load: " + Math.round(load * 100.0) + "%, Peak: " + Math.round(peakLoad * 100.0) + "%, Overruns: " + overruns + "}";
+	}
+	
+}
@@ -0,0 +1,284 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public final class Arrangement {
+	
+	private static final int SECTION_TRACKS = 0x54524b53; // "TRKS"
+	
+	private final double sliceLength;
+	private final ArrayList<Track> tracks;
+	
+	public Arrangement(double sliceLength) {
+		
+		if(!Double.isFinite(sliceLength) || sliceLength <= 0.0)
+			throw new IllegalArgumentException("Slice length must be positive and finite");
+		
+		this.sliceLength = sliceLength;
+		this.tracks = new ArrayList<Track>();
+		
+	}
+	
+	public double getSliceLength() {
+		return sliceLength;
+	}
+	
+	public List<Track> getTracks() {
+		return Collections.unmodifiableList(tracks);
+	}
+	
+	public Track getTrack(String name) {
+		
+		for(Track track : tracks)
+			if(track.getName().equals(name))
+				return track;
+		
+		return null;
+		
+	}
+	
+	public Track addTrack(String name) {
+		return addTrack(name, new Composition(sliceLength));
+	}
+	
+	public Track addTrack(String name, Composition composition) {
+		
+		if(composition.getSliceLength() != sliceLength)
+			throw new IllegalArgumentException("Track's slice length doesn't match the arrangement's");
+		
+		if(getTrack(name) != null)
+			throw new IllegalArgumentException("There is already a track named " + name);
+		
+		Track track = new Track(name, composition);
+		tracks.add(track);
+		
+		return track;
+		
+	}
+	
+	public boolean removeTrack(String name) {
+		return tracks.remove(getTrack(name));
+	}
+	
+	public int getSliceCount() {
+		
+		int count = 0;
+		
+		for(Track track : tracks)
+			count = Math.max(count, track.getComposition().getSliceCount());
+		
+		return count;
+		
+	}
+	
+	// Written as an empty composition followed by a section holding each track's own composition, so
+	// a plain composition can be read as an arrangement with one track
+	public void writeTo(OutputStream os) throws IOException {
+		
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
+		
+		BinaryIO.writeInt(section, tracks.size());
+		
+		for(Track track : tracks) {
+			
+			ByteArrayOutputStream composition = new ByteArrayOutputStream();
+			track.getComposition().writeTo(composition);
+			
+			BinaryIO.writeString(section, track.getName());
+			BinaryIO.writeDouble(section, track.getGain());
+			section.write(track.isMuted() ? 1 : 0);
+			BinaryIO.writeInt(section, composition.size());
+			composition.writeTo(section);
+			
+		}
+		
+		new Composition(sliceLength).writeTo(os, Collections.singletonMap(SECTION_TRACKS, section));
+		
+	}
+	
+	public static Arrangement readFrom(InputStream is) throws IOException {
+		
+		HashMap<Integer, byte[]> sections = new HashMap<Integer, byte[]>();
+		Composition main = Composition.readFrom(is, sections);
+		
+		Arrangement arrangement = new Arrangement(main.getSliceLength());
+		byte[] payload = sections.get(SECTION_TRACKS);
+		
+		if(payload == null) {
+			
+			arrangement.addTrack("Track 1", main);
+			return arrangement;
+			
+		}
+		
+		InputStream section = new ByteArrayInputStream(payload);
+		int trackCount = BinaryIO.readInt(section);
+		
+		for(int i = 0; i < trackCount; ++i) {
+			
+			String name = BinaryIO.readString(section);
+			double gain = BinaryIO.readDouble(section);
+			boolean muted = BinaryIO.readByte(section) != 0;
+			
+			int length = BinaryIO.readInt(section);
+			
+			if(length < 0)
+				throw new IOException("Bad track length");
+			
+			byte[] bytes = new byte[length];
+			BinaryIO.readFully(section, bytes);
+			
+			Track track;
+			
+			try {
+				
+				track = arrangement.addTrack(name, Composition.readFrom(new ByteArrayInputStream(bytes)));
+				track.setGain(gain);
+				
+			} catch(IllegalArgumentException e) {
+				throw new IOException("Bad track: " + e.getMessage());
+			}
+			
+			track.setMuted(muted);
+			
+		}
+		
+		return arrangement;
+		
+	}
+	
+	public void saveWav(File file, double sampleRate) throws IOException {
+		saveWav(file, sampleRate, Synthesizer.DEFAULT_EXPORT_VOICES, Synthesizer.DEFAULT_STEALING, Runtime.getRuntime().availableProcessors());
+	}
+	
+	// Tracks render in parallel, each into its own buffer, a block of slices at a time; the buffers
+	// are then summed with each track's gain
+	public void saveWav(File file, double sampleRate, int maxVoices, VoiceStealing stealing, int threads) throws IOException {
+		
+		int blockSlices = Math.max(1, (int) Math.ceil(Synthesizer.EXPORT_BLOCK_LENGTH / sliceLength));
+		int blockSamples = blockSlices * Composition.getMaxSliceLengthInSamples(sliceLength, sampleRate);
+		
+		ArrayList<TrackRenderer> renderers = new ArrayList<TrackRenderer>();
+		
+		for(Track track : tracks)
+			if(!track.isMuted())
+				renderers.add(new TrackRenderer(track, new Synthesizer(track.getComposition(), sampleRate, maxVoices, stealing), track.getComposition().getEffects().newProcessor(sampleRate), blockSamples));
+		
+		double[] mix = new double[blockSamples];
+		short[] shorts = new short[blockSamples];
+		
+		int sliceCount = getSliceCount();
+		int sliceIndex = 0;
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		WavOutputStream wos = new WavOutputStream(file, (long) sampleRate, 1, WavSampleFormat.PCM_INT_16);
+		
+		try {
+			
+			// Keep going past the last slice until every release and effect tail has finished
+			while(sliceIndex < sliceCount || !isSilent(renderers)) {
+				
+				long start = Composition.getSliceStartInSamples(sliceIndex, sliceLength, sampleRate);
+				
+				// Stretches where every track is silent skip rendering and mixing, and are left as a hole in the file
+				int silent = sliceCount - sliceIndex;
+				
+				for(TrackRenderer renderer : renderers)
+					silent = renderer.effects.isSilent() ? Math.min(silent, renderer.synthesizer.getSilentSlices(silent)) : 0;
+				
+				if(silent > 0) {
+					
+					for(TrackRenderer renderer : renderers)
+						renderer.synthesizer.skipSilence(silent);
+					
+					sliceIndex += silent;
+					
+					wos.writeSilence(Composition.getSliceStartInSamples(sliceIndex, sliceLength, sampleRate) - start);
+					continue;
+					
+				}
+				
+				// Past the last slice, tails are rendered one slice at a time so they stop as soon as they can
+				sliceIndex = sliceIndex < sliceCount ? Math.min(sliceIndex + blockSlices, sliceCount) : sliceIndex + 1;
+				
+				for(TrackRenderer renderer : renderers)
+					renderer.endSlice = sliceIndex;
+				
+				int sampleCount = (int) (Composition.getSliceStartInSamples(sliceIndex, sliceLength, sampleRate) - start);
+				
+				for(Future<Integer> future : executor.invokeAll(renderers))
+					future.get();
+				
+				Arrays.fill(mix, 0, sampleCount, 0.0);
+				
+				for(TrackRenderer renderer : renderers) {
+					
+					double gain = renderer.track.getGain();
+					
+					for(int i = 0; i < sampleCount; ++i)
+						mix[i] += renderer.buffer[i] * gain;
+					
+				}
+				
+				for(int i = 0; i < sampleCount; ++i)
+					shorts[i] = (short) (Math.max(-1.0, Math.min(1.0, mix[i])) * Short.MAX_VALUE);
+				
+				wos.write(shorts, 0, sampleCount);
+				
+			}
+			
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			throw new IOException("Error rendering track", e.getCause());
+		} finally {
+			
+			executor.shutdown();
+			wos.close();
+			
+		}
+		
+	}
+	
+	private static boolean isSilent(List<TrackRenderer> renderers) {
+		
+		for(TrackRenderer renderer : renderers)
+			if(!renderer.synthesizer.isSilent() || !renderer.effects.isSilent())
+				return false;
+		
+		return true;
+		
+	}
+	
+	private static final class TrackRenderer implements Callable<Integer> {
+		
+		final Track track;
+		final Synthesizer synthesizer;
+		final EffectChain.Processor effects;
+		final double[] buffer;
+		int endSlice;
+		
+		TrackRenderer(Track track, Synthesizer synthesizer, EffectChain.Processor effects, int bufferLength) {
+			
+			this.track = track;
+			this.synthesizer = synthesizer;
+			this.effects = effects;
+			this.buffer = new double[bufferLength];
+			
+		}
+		
+		@Override
+		public Integer call() {
+			
+			int sampleCount = synthesizer.renderSlices(buffer, 0, endSlice - synthesizer.getSliceIndex());
+			
+			// Each track's own effects, before it's mixed with the others
+			effects.process(buffer, 0, sampleCount);
+			
+			return sampleCount;
+			
+		}
+		
+	}
+	
+}
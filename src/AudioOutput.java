@@ -0,0 +1,332 @@
+import java.io.*;
+import java.util.*;
+
+import javax.sound.sampled.*;
+
+// Live playback's line to the sound card, 16 bit big endian mono.  The line's buffer holds "periods"
+// periods of "periodFrames" frames, whatever the slice length, and is written a period at a time.
+// The line's frame position shows how much is still queued, which is the latency of anything rendered
+// now, and whether the card ran dry before the next write (an underrun).
+public final class AudioOutput implements Closeable {
+	
+	public static final double DEFAULT_SAMPLE_RATE = 48000.0;
+	public static final int DEFAULT_PERIOD_FRAMES = 512;
+	public static final int DEFAULT_PERIODS = 3;
+	
+	// Period sizes calibration tries, doubling from the smallest
+	public static final int MIN_PERIOD_FRAMES = 32;
+	public static final int MAX_PERIOD_FRAMES = 8192;
+	
+	private static final int FRAME_SIZE = 2;
+	
+	private final SourceDataLine line;
+	private final double sampleRate;
+	private final int periodFrames;
+	private final int periods;
+	
+	// Grown when a write needs more room
+	private byte[] bytes;
+	
+	private long framesWritten;
+	private long underruns;
+	
+	// Frames written when the last underrun was seen, so one gap isn't counted twice
+	private long underrunFrame;
+	
+	public AudioOutput(double sampleRate, int periodFrames, int periods) throws LineUnavailableException {
+		
+		if(!(sampleRate > 0.0) || periodFrames <= 0 || periods <= 0)
+			throw new IllegalArgumentException("Sample rate, period size and periods must be positive");
+		
+		AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, (float) sampleRate, 16, 1, FRAME_SIZE, (float) sampleRate, true);
+		
+		this.line = AudioSystem.getSourceDataLine(format);
+		this.sampleRate = sampleRate;
+		this.periodFrames = periodFrames;
+		this.periods = periods;
+		this.bytes = new byte[periodFrames * FRAME_SIZE];
+		this.underrunFrame = -1;
+		
+		line.open(format, periodFrames * periods * FRAME_SIZE);
+		line.start();
+		
+	}
+	
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	
+	public int getPeriodFrames() {
+		return periodFrames;
+	}
+	
+	public int getPeriods() {
+		return periods;
+	}
+	
+	// The line may not give exactly the buffer asked for
+	public int getBufferFrames() {
+		return line.getBufferSize() / FRAME_SIZE;
+	}
+	
+	public long getUnderruns() {
+		return underruns;
+	}
+	
+	// Frames written but not yet played
+	public long getQueuedFrames() {
+		return Math.max(0, framesWritten - line.getLongFramePosition());
+	}
+	
+	// How long until something written now is heard
+	public double getLatency() {
+		return getQueuedFrames() / sampleRate;
+	}
+	
+	// Blocks until every sample is queued
+	public void write(short[] samples, int offset, int length) {
+		
+		ensureBytes(length);
+		
+		for(int i = 0, j = 0; i < length; ++i) {
+			
+			short sample = samples[offset + i];
+			
+			bytes[j++] = (byte) ((sample >>> 8) & 0xff);
+			bytes[j++] = (byte) ((sample      ) & 0xff);
+			
+		}
+		
+		writeBytes(length * FRAME_SIZE);
+		
+	}
+	
+	public void writeSilence(int length) {
+		
+		ensureBytes(length);
+		Arrays.fill(bytes, 0, length * FRAME_SIZE, (byte) 0);
+		
+		writeBytes(length * FRAME_SIZE);
+		
+	}
+	
+	private void ensureBytes(int length) {
+		
+		if(bytes.length < length * FRAME_SIZE)
+			bytes = new byte[length * FRAME_SIZE];
+		
+	}
+	
+	private void writeBytes(int length) {
+		
+		int written = 0;
+		
+		while(written < length) {
+			
+			// Everything written so far has been played, so the card has had nothing to play
+			if(framesWritten > 0 && framesWritten != underrunFrame && line.getLongFramePosition() >= framesWritten) {
+				
+				++underruns;
+				underrunFrame = framesWritten;
+				
+			}
+			
+			int count = line.write(bytes, written, Math.min(length - written, periodFrames * FRAME_SIZE));
+			
+			written += count;
+			framesWritten += count / FRAME_SIZE;
+			
+		}
+		
+	}
+	
+	@Override
+	public void close() {
+		
+		line.stop();
+		line.close();
+		
+	}
+	
+	// Plays "seconds" of silence with each period size in turn, written "blockFrames" at a time the way
+	// live playback writes, and stops at the first size that had no underruns.  Between writes it keeps
+	// the CPU busy for "load" of each block's length, standing in for rendering it.  Sizes the line
+	// won't open with are skipped.  The sizes tried are kept with their latency so they can be shown.
+	public static Calibration calibrate(double sampleRate, int periods, int blockFrames, double seconds, double load) throws LineUnavailableException {
+		
+		List<Trial> trials = new ArrayList<Trial>();
+		List<Integer> unavailable = new ArrayList<Integer>();
+		LineUnavailableException lastError = null;
+		
+		long busyNanos = (long) (load * blockFrames / sampleRate * 1.0e9);
+		
+		for(int periodFrames = MIN_PERIOD_FRAMES; periodFrames <= MAX_PERIOD_FRAMES; periodFrames *= 2) {
+			
+			AudioOutput output;
+			
+			try {
+				output = new AudioOutput(sampleRate, periodFrames, periods);
+			} catch(LineUnavailableException e) {
+				
+				unavailable.add(periodFrames);
+				lastError = e;
+				continue;
+				
+			}
+			
+			int bufferFrames = output.getBufferFrames();
+			long frames = (long) (seconds * sampleRate);
+			double latencyTotal = 0.0;
+			double maxLatency = 0.0;
+			int writes = 0;
+			
+			try {
+				
+				while(output.framesWritten < frames) {
+					
+					output.writeSilence(blockFrames);
+					
+					double latency = output.getLatency();
+					
+					latencyTotal += latency;
+					maxLatency = Math.max(maxLatency, latency);
+					++writes;
+					
+					long busyEnd = System.nanoTime() + busyNanos;
+					
+					while(System.nanoTime() < busyEnd)
+						;
+					
+				}
+				
+			} finally {
+				output.close();
+			}
+			
+			Trial trial = new Trial(periodFrames, bufferFrames, latencyTotal / writes, maxLatency, output.getUnderruns() / seconds);
+			trials.add(trial);
+			
+			if(output.getUnderruns() == 0)
+				break;
+			
+		}
+		
+		if(trials.isEmpty())
+			throw lastError;
+		
+		return new Calibration(sampleRate, periods, trials, unavailable);
+		
+	}
+	
+	public static final class Calibration {
+		
+		private final double sampleRate;
+		private final int periods;
+		private final List<Trial> trials;
+		private final List<Integer> unavailable;
+		private final Trial best;
+		
+		private Calibration(double sampleRate, int periods, List<Trial> trials, List<Integer> unavailable) {
+			
+			this.sampleRate = sampleRate;
+			this.periods = periods;
+			this.trials = Collections.unmodifiableList(trials);
+			this.unavailable = Collections.unmodifiableList(unavailable);
+			
+			// The first size without underruns, or failing that the one with fewest
+			Trial best = trials.get(0);
+			
+			for(Trial trial : trials)
+				if(trial.getUnderrunRate() < best.getUnderrunRate())
+					best = trial;
+			
+			this.best = best;
+			
+		}
+		
+		public double getSampleRate() {
+			return sampleRate;
+		}
+		
+		public int getPeriods() {
+			return periods;
+		}
+		
+		public List<Trial> getTrials() {
+			return trials;
+		}
+		
+		public Trial getBest() {
+			return best;
+		}
+		
+		// Period sizes the line couldn't be opened with
+		public List<Integer> getUnavailable() {
+			return unavailable;
+		}
+		
+		@Override
+		public String toString() {
+			
+			StringBuilder builder = new StringBuilder();
+			
+			for(int periodFrames : unavailable)
+				builder.append("  ").append(periodFrames).append(" frame periods: couldn't be opened\n");
+			
+			for(Trial trial : trials)
+				builder.append(trial == best ? "* " : "  ").append(trial).append('\n');
+			
+			return builder.toString();
+			
+		}
+		
+	}
+	
+	public static final class Trial {
+		
+		private final int periodFrames;
+		private final int bufferFrames;
+		private final double latency;
+		private final double maxLatency;
+		private final double underrunRate;
+		
+		private Trial(int periodFrames, int bufferFrames, double latency, double maxLatency, double underrunRate) {
+			
+			this.periodFrames = periodFrames;
+			this.bufferFrames = bufferFrames;
+			this.latency = latency;
+			this.maxLatency = maxLatency;
+			this.underrunRate = underrunRate;
+			
+		}
+		
+		public int getPeriodFrames() {
+			return periodFrames;
+		}
+		
+		public int getBufferFrames() {
+			return bufferFrames;
+		}
+		
+		// Mean and largest time queued ahead of each write, in seconds
+		public double getLatency() {
+			return latency;
+		}
+		
+		public double getMaxLatency() {
+			return maxLatency;
+		}
+		
+		// Underruns per second
+		public double getUnderrunRate() {
+			return underrunRate;
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%d frame periods (%d buffered): %.1f ms latency, up to %.1f ms, %.2f underruns/s", periodFrames, bufferFrames, latency * 1000.0, maxLatency * 1000.0, underrunRate);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+import java.nio.charset.*;
+
+public final class BinaryIO {
+	
+	private BinaryIO() {}
+	
+	public static void writeInt(OutputStream os, int value) throws IOException {
+		
+		os.write((value >>> 24) & 0xff);
+		os.write((value >>> 16) & 0xff);
+		os.write((value >>>  8) & 0xff);
+		os.write((value       ) & 0xff);
+		
+	}
+	
+	public static void writeLong(OutputStream os, long value) throws IOException {
+		
+		writeInt(os, (int) (value >>> 32));
+		writeInt(os, (int) (value       ));
+		
+	}
+	
+	public static void writeDouble(OutputStream os, double value) throws IOException {
+		writeLong(os, Double.doubleToLongBits(value));
+	}
+	
+	public static void writeString(OutputStream os, String value) throws IOException {
+		
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		
+		writeInt(os, bytes.length);
+		os.write(bytes);
+		
+	}
+	
+	public static int readByte(InputStream is) throws IOException {
+		
+		int byt = is.read();
+		
+		if(byt < 0)
+			throw new IOException("End of stream reached before data could be read");
+		
+		return byt;
+		
+	}
+	
+	public static int readInt(InputStream is) throws IOException {
+		
+		int value = 0;
+		
+		for(int i = 0; i < 4; ++i)
+			value = (value << 8) | readByte(is);
+		
+		return value;
+		
+	}
+	
+	public static long readLong(InputStream is) throws IOException {
+		
+		long high = readInt(is) & 0xffffffffL;
+		long low = readInt(is) & 0xffffffffL;
+		
+		return (high << 32) | low;
+		
+	}
+	
+	public static double readDouble(InputStream is) throws IOException {
+		return Double.longBitsToDouble(readLong(is));
+	}
+	
+	public static String readString(InputStream is) throws IOException {
+		
+		int length = readInt(is);
+		
+		if(length < 0)
+			throw new IOException("Bad string length");
+		
+		byte[] bytes = new byte[length];
+		readFully(is, bytes);
+		
+		return new String(bytes, StandardCharsets.UTF_8);
+		
+	}
+	
+	public static void readFully(InputStream is, byte[] bytes) throws IOException {
+		
+		int read = 0;
+		
+		while(read < bytes.length) {
+			
+			int count = is.read(bytes, read, bytes.length - read);
+			
+			if(count < 0)
+				throw new IOException("End of stream reached before data could be read");
+			
+			read += count;
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,192 @@
+import java.io.*;
+
+// Second order low-pass, high-pass or band-pass filter, with coefficients from the usual "audio EQ
+// cookbook" formulas
+public final class BiquadFilter implements Effect {
+	
+	public static final int LOW_PASS = 0;
+	public static final int HIGH_PASS = 1;
+	public static final int BAND_PASS = 2;
+	
+	public static final double DEFAULT_Q = Math.sqrt(0.5);
+	
+	private final int shape;
+	private final double frequency;
+	private final double q;
+	
+	public BiquadFilter(int shape, double frequency, double q) {
+		
+		if(shape < LOW_PASS || shape > BAND_PASS)
+			throw new IllegalArgumentException("Unknown filter shape");
+		
+		if(!Double.isFinite(frequency) || frequency <= 0.0)
+			throw new IllegalArgumentException("Frequency must be positive and finite");
+		
+		if(!Double.isFinite(q) || q <= 0.0)
+			throw new IllegalArgumentException("Q must be positive and finite");
+		
+		this.shape = shape;
+		this.frequency = frequency;
+		this.q = q;
+		
+	}
+	
+	public int getShape() {
+		return shape;
+	}
+	
+	public double getFrequency() {
+		return frequency;
+	}
+	
+	public double getQ() {
+		return q;
+	}
+	
+	@Override
+	public int getType() {
+		return FILTER;
+	}
+	
+	@Override
+	public double getTailLength() {
+		
+		// Ringing dies away at the rate of the filter's slowest pole
+		double w = 2.0 * Math.PI * frequency;
+		double damping = 1.0 / (2.0 * q);
+		double decay = w * (damping - Math.sqrt(Math.max(0.0, damping * damping - 1.0)));
+		
+		return Math.log(Math.max(1.0, q) / SILENCE_LEVEL) / decay;
+		
+	}
+	
+	@Override
+	public Effect.Processor newProcessor(double sampleRate) {
+		
+		// Frequencies above Nyquist would make the filter unstable
+		double w = 2.0 * Math.PI * Math.min(frequency, sampleRate * 0.49) / sampleRate;
+		double alpha = Math.sin(w) / (2.0 * q);
+		double cos = Math.cos(w);
+		
+		double b0, b1, b2;
+		
+		switch(shape) {
+		
+		case LOW_PASS:
+			b0 = (1.0 - cos) / 2.0;
+			b1 = 1.0 - cos;
+			b2 = b0;
+			break;
+		
+		case HIGH_PASS:
+			b0 = (1.0 + cos) / 2.0;
+			b1 = -(1.0 + cos);
+			b2 = b0;
+			break;
+		
+		default:
+			b0 = alpha;
+			b1 = 0.0;
+			b2 = -alpha;
+			break;
+		
+		}
+		
+		double a0 = 1.0 + alpha;
+		
+		return new Processor(b0 / a0, b1 / a0, b2 / a0, -2.0 * cos / a0, (1.0 - alpha) / a0);
+		
+	}
+	
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		
+		os.write(shape);
+		BinaryIO.writeDouble(os, frequency);
+		BinaryIO.writeDouble(os, q);
+		
+	}
+	
+	public static BiquadFilter readFrom(InputStream is) throws IOException {
+		
+		int shape = BinaryIO.readByte(is);
+		double frequency = BinaryIO.readDouble(is);
+		double q = BinaryIO.readDouble(is);
+		
+		try {
+			return new BiquadFilter(shape, frequency, q);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad filter: " + e.getMessage());
+		}
+		
+	}
+	
+	public static String shapeName(int shape) {
+		
+		switch(shape) {
+		
+		case LOW_PASS:  return "lowpass";
+		case HIGH_PASS: return "highpass";
+		case BAND_PASS: return "bandpass";
+		
+		}
+		
+		throw new IllegalArgumentException();
+		
+	}
+	
+	@Override
+	public String toString() {
+		return shapeName(shape) + " " + frequency + " " + q;
+	}
+	
+	// Transposed direct form II, which needs only two values of state
+	private static final class Processor implements Effect.Processor {
+		
+		private final double b0, b1, b2, a1, a2;
+		private double z1, z2;
+		
+		Processor(double b0, double b1, double b2, double a1, double a2) {
+			
+			this.b0 = b0;
+			this.b1 = b1;
+			this.b2 = b2;
+			this.a1 = a1;
+			this.a2 = a2;
+			
+		}
+		
+		@Override
+		public void process(double[] samples, int offset, int length) {
+			
+			double z1 = this.z1;
+			double z2 = this.z2;
+			
+			for(int i = offset; i < offset + length; ++i) {
+				
+				double x = samples[i];
+				double y = b0 * x + z1;
+				
+				z1 = b1 * x - a1 * y + z2;
+				z2 = b2 * x - a2 * y;
+				
+				samples[i] = y;
+				
+			}
+			
+			this.z1 = z1;
+			this.z2 = z2;
+			
+		}
+		
+		@Override
+		public void reset() {
+			
+			z1 = 0.0;
+			z2 = 0.0;
+			
+		}
+		
+	}
+	
+}
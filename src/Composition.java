@@ -5,8 +5,28 @@ public final class Composition {
 	
 	private static final Polyphony EMPTY_POLYPHONY = new Polyphony(Collections.emptySet());
 	
+	// Optional file sections following the slices, identified by four ASCII characters
+	private static final int SECTION_ENVELOPES = 0x454e564c; // "ENVL"
+	private static final int SECTION_SAMPLE = 0x534d504c; // "SMPL"
+	private static final int SECTION_EFFECTS = 0x45464354; // "EFCT"
+	private static final int SECTION_TUNING = 0x54554e45; // "TUNE"
+	
 	private final double sliceLength;
-	private final TreeMap<Integer, Polyphony> slices;
+	private final SliceTable slices;
+	private final Envelope[] envelopes;
+	private volatile SampleInstrument sampleInstrument;
+	private volatile EffectChain effects;
+	private volatile Tuning tuning;
+	
+	// Snapshots can't be modified, so they're safe to read from any thread
+	private final boolean readOnly;
+	
+	// Told about every change to a slice, on the thread making it, so they must be quick
+	private volatile SliceListener[] listeners = new SliceListener[0];
+	
+	public interface SliceListener {
+		void sliceChanged(int sliceIndex);
+	}
 	
 	public Composition(double sliceLength) {
 		
@@ -14,14 +34,36 @@ public final class Composition {
 			throw new IllegalArgumentException("Slice length must be positive and finite");
 		
 		this.sliceLength = sliceLength;
-		this.slices = new TreeMap<Integer, Polyphony>();
+		this.slices = new SliceTable();
+		this.envelopes = defaultEnvelopes();
+		this.effects = EffectChain.EMPTY;
+		this.tuning = Tuning.EQUAL;
+		this.readOnly = false;
 		
 	}
 	
-	private Composition(double sliceLength, TreeMap<Integer, Polyphony> slices) {
+	private Composition(double sliceLength, SliceTable slices, Envelope[] envelopes, SampleInstrument sampleInstrument, EffectChain effects, Tuning tuning, boolean readOnly) {
 		
 		this.sliceLength = sliceLength;
 		this.slices = slices;
+		this.envelopes = envelopes;
+		this.sampleInstrument = sampleInstrument;
+		this.effects = effects;
+		this.tuning = tuning;
+		this.readOnly = readOnly;
+		
+	}
+	
+	private Composition(double sliceLength, SliceTable slices, Envelope[] envelopes, SampleInstrument sampleInstrument, EffectChain effects, Tuning tuning) {
+		this(sliceLength, slices, envelopes, sampleInstrument, effects, tuning, false);
+	}
+	
+	private static Envelope[] defaultEnvelopes() {
+		
+		Envelope[] envelopes = new Envelope[Tone.TYPE_COUNT];
+		Arrays.fill(envelopes, Envelope.DEFAULT);
+		
+		return envelopes;
 		
 	}
 	
@@ -33,10 +75,150 @@ public final class Composition {
 		
 	}
 	
+	// Reads one slice of a composition another thread may be changing.  Unlike snapshot(), it leaves
+	// every chunk owned by this composition, so the next change doesn't have to copy one.
+	public synchronized Polyphony getSliceSynchronized(int index) {
+		return getSlice(index);
+	}
+	
+	// First slice with tones at or after "index", or -1 if there are none
+	public int nextNonEmptySlice(int index) {
+		return slices.next(index);
+	}
+	
 	public boolean isEmpty() {
 		return slices.isEmpty();
 	}
 	
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+	
+	// A read-only copy of the composition as it is now, which later changes to this one don't affect.
+	// It costs one reference per chunk of slices; chunks are only copied when this composition next
+	// changes them.  Other threads should only read a composition being recorded through a snapshot.
+	public synchronized Composition snapshot() {
+		
+		if(readOnly)
+			return this;
+		
+		return new Composition(sliceLength, slices.snapshot(), envelopes.clone(), sampleInstrument, effects, tuning, true);
+		
+	}
+	
+	public synchronized void addSliceListener(SliceListener listener) {
+		
+		SliceListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+		updated[listeners.length] = listener;
+		
+		listeners = updated;
+		
+	}
+	
+	public synchronized void removeSliceListener(SliceListener listener) {
+		
+		ArrayList<SliceListener> updated = new ArrayList<SliceListener>(Arrays.asList(listeners));
+		updated.remove(listener);
+		
+		listeners = updated.toArray(new SliceListener[updated.size()]);
+		
+	}
+	
+	private void fireSliceChanged(int sliceIndex) {
+		
+		SliceListener[] listeners = this.listeners;
+		
+		for(int i = 0; i < listeners.length; ++i)
+			listeners[i].sliceChanged(sliceIndex);
+		
+	}
+	
+	// Every slice may sound different after a change to how instruments play
+	private void fireAllSlicesChanged() {
+		
+		for(int i = 0; i < slices.getSliceCount(); ++i)
+			fireSliceChanged(i);
+		
+	}
+	
+	public Envelope getEnvelope(int type) {
+		return envelopes[type];
+	}
+	
+	public synchronized void setEnvelope(int type, Envelope envelope) {
+		
+		if(envelope == null)
+			throw new NullPointerException();
+		
+		requireWritable();
+		
+		envelopes[type] = envelope;
+		
+		fireAllSlicesChanged();
+		
+	}
+	
+	// Null if the composition has no recording for Tone.SAMPLE to play
+	public SampleInstrument getSampleInstrument() {
+		return sampleInstrument;
+	}
+	
+	public synchronized void setSampleInstrument(SampleInstrument sampleInstrument) {
+		
+		requireWritable();
+		
+		this.sampleInstrument = sampleInstrument;
+		
+		fireAllSlicesChanged();
+		
+	}
+	
+	public EffectChain getEffects() {
+		return effects;
+	}
+	
+	// Effects only change what the mix sounds like afterwards, so slices themselves haven't changed
+	public synchronized void setEffects(EffectChain effects) {
+		
+		if(effects == null)
+			throw new NullPointerException();
+		
+		requireWritable();
+		
+		this.effects = effects;
+		
+	}
+	
+	public Tuning getTuning() {
+		return tuning;
+	}
+	
+	// Notes already sounding keep their pitch; notes started afterwards use the new tuning
+	public synchronized void setTuning(Tuning tuning) {
+		
+		if(tuning == null)
+			throw new NullPointerException();
+		
+		requireWritable();
+		
+		this.tuning = tuning;
+		
+		fireAllSlicesChanged();
+		
+	}
+	
+	// Longest time a note's envelope can take to settle into sustain and then fully release
+	public double getMaxEnvelopeLength() {
+		
+		double max = 0.0;
+		
+		for(Envelope envelope : envelopes)
+			max = Math.max(max, envelope.getAttack() + envelope.getDecay() + envelope.getRelease());
+		
+		return max;
+		
+	}
+	
 	public int generateSamples(double[] samples, int sliceIndex, double sampleRate) {
 		
 		long start = getSliceStartInSamples(sliceIndex, sampleRate);
@@ -52,33 +234,26 @@ public final class Composition {
 		if(polyphony == null)
 			return sampleLength;
 		
-		polyphony.renderTo(samples, start / sampleRate, sampleRate);
+		polyphony.renderTo(samples, start / sampleRate, sampleRate, tuning);
 		
 		return sampleLength;
 		
 	}
 	
 	public void writeTo(OutputStream os) throws IOException {
+		writeTo(os, Collections.<Integer, ByteArrayOutputStream>emptyMap());
+	}
+	
+	// Writes the composition followed by extra sections belonging to whatever contains it
+	void writeTo(OutputStream os, Map<Integer, ByteArrayOutputStream> extraSections) throws IOException {
 		
 		// Slice length
-		long bits = Double.doubleToLongBits(sliceLength);
-		
-		os.write((int) (bits >>> 56) & 0xff);
-		os.write((int) (bits >>> 48) & 0xff);
-		os.write((int) (bits >>> 40) & 0xff);
-		os.write((int) (bits >>> 32) & 0xff);
-		os.write((int) (bits >>> 24) & 0xff);
-		os.write((int) (bits >>> 16) & 0xff);
-		os.write((int) (bits >>>  8) & 0xff);
-		os.write((int) (bits       ) & 0xff);
+		BinaryIO.writeDouble(os, sliceLength);
 		
 		// Write number of slices
 		int sliceCount = getSliceCount();
 		
-		os.write((sliceCount >>> 24) & 0xff);
-		os.write((sliceCount >>> 16) & 0xff);
-		os.write((sliceCount >>>  8) & 0xff);
-		os.write((sliceCount       ) & 0xff);
+		BinaryIO.writeInt(os, sliceCount);
 		
 		// Write slices
 		for(int i = 0; i < sliceCount; ++i) {
@@ -90,45 +265,80 @@ public final class Composition {
 			
 		}
 		
-	}
-	
-	public static Composition readFrom(InputStream is) throws IOException {
+		// Write envelopes
+		ByteArrayOutputStream section = new ByteArrayOutputStream();
 		
-		long bits = 0L;
+		section.write(envelopes.length);
 		
-		for(int i = 0; i < 8; ++i) {
-			
-			bits <<= 8;
-			
-			int byt = is.read();
+		for(Envelope envelope : envelopes)
+			envelope.writeTo(section);
+		
+		writeSection(os, SECTION_ENVELOPES, section);
+		
+		// Write sample instrument
+		SampleInstrument sampleInstrument = this.sampleInstrument;
+		
+		if(sampleInstrument != null) {
 			
-			if(byt < 0)
-				throw new IOException("End of stream reached before data could be read");
+			section = new ByteArrayOutputStream();
+			sampleInstrument.writeTo(section);
 			
-			bits |= byt;
+			writeSection(os, SECTION_SAMPLE, section);
 			
 		}
 		
-		double sliceLength = Double.longBitsToDouble(bits);
-		if(!Double.isFinite(sliceLength) || sliceLength <= 0.0)
-			throw new IOException("Bad slice length");
-		
-		int sliceCount = 0;
+		// Write effects
+		EffectChain effects = this.effects;
 		
-		for(int i = 0; i < 4; ++i) {
+		if(!effects.isEmpty()) {
 			
-			sliceCount <<= 8;
+			section = new ByteArrayOutputStream();
+			effects.writeTo(section);
 			
-			int byt = is.read();
+			writeSection(os, SECTION_EFFECTS, section);
+			
+		}
+		
+		// Write tuning
+		Tuning tuning = this.tuning;
+		
+		if(!tuning.equals(Tuning.EQUAL)) {
 			
-			if(byt < 0)
-				throw new IOException("End of stream reached before data could be read");
+			section = new ByteArrayOutputStream();
+			tuning.writeTo(section);
 			
-			sliceCount |= byt;
+			writeSection(os, SECTION_TUNING, section);
 			
 		}
 		
-		TreeMap<Integer, Polyphony> slices = new TreeMap<Integer, Polyphony>();
+		for(Map.Entry<Integer, ByteArrayOutputStream> extra : extraSections.entrySet())
+			writeSection(os, extra.getKey(), extra.getValue());
+		
+	}
+	
+	private static void writeSection(OutputStream os, int tag, ByteArrayOutputStream section) throws IOException {
+		
+		BinaryIO.writeInt(os, tag);
+		BinaryIO.writeInt(os, section.size());
+		section.writeTo(os);
+		
+	}
+	
+	public static Composition readFrom(InputStream is) throws IOException {
+		return readFrom(is, null);
+	}
+	
+	// Reads a composition, collecting the payloads of any sections it doesn't understand into
+	// "otherSections" (if not null) for whatever contains it
+	static Composition readFrom(InputStream is, Map<Integer, byte[]> otherSections) throws IOException {
+		
+		double sliceLength = BinaryIO.readDouble(is);
+		if(!Double.isFinite(sliceLength) || sliceLength <= 0.0)
+			throw new IOException("Bad slice length");
+		
+		int sliceCount = BinaryIO.readInt(is);
+		
+		SliceTable slices = new SliceTable();
 		
 		for(int i = 0; i < sliceCount; ++i) {
 			
@@ -139,11 +349,73 @@ public final class Composition {
 			
 		}
 		
-		return new Composition(sliceLength, slices);
+		Envelope[] envelopes = defaultEnvelopes();
+		SampleInstrument sampleInstrument = null;
+		EffectChain effects = EffectChain.EMPTY;
+		Tuning tuning = Tuning.EQUAL;
+		
+		// Read optional sections until the end of the stream, skipping any we don't understand
+		for(int first = is.read(); first >= 0; first = is.read()) {
+			
+			int tag = (first << 24) | (BinaryIO.readByte(is) << 16) | (BinaryIO.readByte(is) << 8) | BinaryIO.readByte(is);
+			int length = BinaryIO.readInt(is);
+			
+			if(length < 0)
+				throw new IOException("Bad section length");
+			
+			byte[] payload = new byte[length];
+			BinaryIO.readFully(is, payload);
+			
+			InputStream section = new ByteArrayInputStream(payload);
+			
+			switch(tag) {
+			
+			case SECTION_ENVELOPES:
+				
+				int count = BinaryIO.readByte(section);
+				
+				for(int i = 0; i < count; ++i) {
+					
+					Envelope envelope = Envelope.readFrom(section);
+					
+					if(i < envelopes.length)
+						envelopes[i] = envelope;
+					
+				}
+				
+				break;
+			
+			case SECTION_SAMPLE:
+				
+				sampleInstrument = SampleInstrument.readFrom(section);
+				break;
+			
+			case SECTION_EFFECTS:
+				
+				effects = EffectChain.readFrom(section);
+				break;
+			
+			case SECTION_TUNING:
+				
+				tuning = Tuning.readFrom(section);
+				break;
+			
+			default:
+				
+				if(otherSections != null)
+					otherSections.put(tag, payload);
+				
+				break;
+			
+			}
+			
+		}
+		
+		return new Composition(sliceLength, slices, envelopes, sampleInstrument, effects, tuning);
 		
 	}
 	
-	public void addTone(int sliceIndex, Tone tone) {
+	public synchronized void addTone(int sliceIndex, Tone tone) {
 		
 		if(sliceIndex < 0)
 			throw new IllegalArgumentException();
@@ -151,31 +423,315 @@ public final class Composition {
 		if(tone == null)
 			throw new NullPointerException();
 		
+		requireWritable();
+		
 		Polyphony existing = slices.get(sliceIndex);
 		slices.put(sliceIndex, existing == null ? new Polyphony(tone) : new Polyphony(existing, tone));
 		
+		fireSliceChanged(sliceIndex);
+		
 	}
 	
-	public long getSliceStartInSamples(int sliceIndex, double sampleRate) {
+	// Replaces a slice's tones entirely
+	public synchronized void setSlice(int sliceIndex, Polyphony polyphony) {
 		
-		double start = sliceIndex * sliceLength;
-		return (long) Math.floor(start * sampleRate);
+		if(sliceIndex < 0)
+			throw new IllegalArgumentException();
+		
+		if(polyphony == null)
+			throw new NullPointerException();
+		
+		requireWritable();
+		
+		if(polyphony.polyphony() > 0)
+			slices.put(sliceIndex, polyphony);
+		
+		else
+			slices.remove(sliceIndex);
+		
+		fireSliceChanged(sliceIndex);
 		
 	}
 	
+	// Tones of both compositions played together
+	public Composition overlay(Composition other) {
+		
+		requireSameSliceLength(other);
+		
+		SliceTable merged = new SliceTable();
+		
+		int a = slices.next(0);
+		int b = other.slices.next(0);
+		
+		while(a >= 0 || b >= 0) {
+			
+			if(b < 0 || (a >= 0 && a < b)) {
+				
+				merged.put(a, slices.get(a));
+				a = slices.next(a + 1);
+				
+			} else if(a < 0 || b < a) {
+				
+				merged.put(b, other.slices.get(b));
+				b = other.slices.next(b + 1);
+				
+			} else {
+				
+				merged.put(a, new Polyphony(slices.get(a), other.slices.get(b)));
+				a = slices.next(a + 1);
+				b = other.slices.next(b + 1);
+				
+			}
+			
+		}
+		
+		return new Composition(sliceLength, merged, envelopes.clone(), sampleInstrument, effects, tuning);
+		
+	}
+	
+	// The other composition played after this one's last slice
+	public Composition concat(Composition other) {
+		
+		requireSameSliceLength(other);
+		
+		return overlay(other.shift(getSliceCount()));
+		
+	}
+	
+	// Several compositions played one after another, in linear time over all of their slices
+	public static Composition concat(List<Composition> parts) {
+		
+		if(parts.isEmpty())
+			throw new IllegalArgumentException("Nothing to concatenate");
+		
+		Composition first = parts.get(0);
+		
+		for(Composition part : parts)
+			first.requireSameSliceLength(part);
+		
+		SliceTable joined = new SliceTable();
+		long offset = 0;
+		
+		for(Composition part : parts) {
+			
+			for(int i = part.slices.next(0); i >= 0; i = part.slices.next(i + 1)) {
+				
+				long index = offset + i;
+				
+				if(index > Integer.MAX_VALUE)
+					throw new IllegalArgumentException("Concatenated composition is too long");
+				
+				joined.put((int) index, part.slices.get(i));
+				
+			}
+			
+			offset += part.getSliceCount();
+			
+		}
+		
+		return new Composition(first.sliceLength, joined, first.envelopes.clone(), first.sampleInstrument, first.effects, first.tuning);
+		
+	}
+	
+	// Moves every slice later by the given number of slices, or earlier if negative.  Slices moved
+	// before the start of the composition are dropped.
+	public Composition shift(int sliceCount) {
+		
+		SliceTable shifted = new SliceTable();
+		
+		for(int i = slices.next(Math.max(0, -sliceCount)); i >= 0; i = slices.next(i + 1)) {
+			
+			long index = (long) i + sliceCount;
+			
+			if(index > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Shifted composition is too long");
+			
+			shifted.put((int) index, slices.get(i));
+			
+		}
+		
+		return new Composition(sliceLength, shifted, envelopes.clone(), sampleInstrument, effects, tuning);
+		
+	}
+	
+	public Composition transpose(int semitones) {
+		
+		SliceTable transposed = new SliceTable();
+		
+		for(int i = slices.next(0); i >= 0; i = slices.next(i + 1)) {
+			
+			Polyphony polyphony = slices.get(i).transpose(semitones);
+			
+			if(polyphony.polyphony() > 0)
+				transposed.put(i, polyphony);
+			
+		}
+		
+		return new Composition(sliceLength, transposed, envelopes.clone(), sampleInstrument, effects, tuning);
+		
+	}
+	
+	public Composition scaleAmplitude(double factor) {
+		
+		SliceTable scaled = new SliceTable();
+		
+		for(int i = slices.next(0); i >= 0; i = slices.next(i + 1)) {
+			
+			Polyphony polyphony = slices.get(i).scaleAmplitude(factor);
+			
+			if(polyphony.polyphony() > 0)
+				scaled.put(i, polyphony);
+			
+		}
+		
+		return new Composition(sliceLength, scaled, envelopes.clone(), sampleInstrument, effects, tuning);
+		
+	}
+	
+	// Maps the composition onto a grid of a different slice length.  Each new slice takes the tones of
+	// the old slice containing its midpoint.  Notes only start and stop on boundaries between old
+	// slices with different tones, so the conversion is lossless when each of those boundaries also
+	// falls on a boundary of the new grid.
+	public ResliceResult reslice(double newSliceLength) {
+		
+		if(!Double.isFinite(newSliceLength) || newSliceLength <= 0.0)
+			throw new IllegalArgumentException("Slice length must be positive and finite");
+		
+		SliceTable resliced = new SliceTable();
+		double maxTimingError = 0.0;
+		
+		int previous = -1;
+		
+		// Only non-empty slices are visited, along with the boundaries either side of them
+		for(int index = slices.next(0); index >= 0; index = slices.next(index + 1)) {
+			
+			Polyphony polyphony = slices.get(index);
+			
+			long first = (long) Math.ceil(index * sliceLength / newSliceLength - 0.5);
+			long end = (long) Math.ceil((index + 1) * sliceLength / newSliceLength - 0.5);
+			
+			if(end - 1 > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Resliced composition is too long");
+			
+			for(long i = first; i < end; ++i)
+				resliced.put((int) i, polyphony);
+			
+			boolean startsNote = previous < 0 || previous != index - 1 || !slices.get(previous).equals(polyphony);
+			
+			if(startsNote)
+				maxTimingError = Math.max(maxTimingError, gridError(index, newSliceLength));
+			
+			// The previous slice's notes stop right after it if there's a gap before this one
+			if(previous >= 0 && previous != index - 1)
+				maxTimingError = Math.max(maxTimingError, gridError(previous + 1, newSliceLength));
+			
+			previous = index;
+			
+		}
+		
+		if(previous >= 0)
+			maxTimingError = Math.max(maxTimingError, gridError(previous + 1, newSliceLength));
+		
+		Composition composition = new Composition(newSliceLength, resliced, envelopes.clone(), sampleInstrument, effects, tuning);
+		
+		return new ResliceResult(composition, maxTimingError);
+		
+	}
+	
+	// Distance in seconds from the start of the given slice to the nearest boundary of another grid,
+	// ignoring differences that only come from rounding in the slice lengths themselves
+	private double gridError(int sliceIndex, double newSliceLength) {
+		
+		double position = sliceIndex * sliceLength / newSliceLength;
+		double error = Math.abs(position - Math.rint(position));
+		
+		if(error <= 1.0e-9 * Math.max(1.0, position))
+			return 0.0;
+		
+		return error * newSliceLength;
+		
+	}
+	
+	private void requireWritable() {
+		
+		if(readOnly)
+			throw new IllegalStateException("Snapshots can't be modified");
+		
+	}
+	
+	private void requireSameSliceLength(Composition other) {
+		
+		if(other.sliceLength != sliceLength)
+			throw new IllegalArgumentException("Compositions must have the same slice length");
+		
+	}
+	
+	// Builds a composition from slices given in ascending order
+	public static final class Builder {
+		
+		private final double sliceLength;
+		private final SliceTable slices;
+		private int lastIndex;
+		
+		public Builder(double sliceLength) {
+			
+			if(!Double.isFinite(sliceLength) || sliceLength <= 0.0)
+				throw new IllegalArgumentException("Slice length must be positive and finite");
+			
+			this.sliceLength = sliceLength;
+			this.slices = new SliceTable();
+			this.lastIndex = -1;
+			
+		}
+		
+		public void setSlice(int sliceIndex, Polyphony polyphony) {
+			
+			if(sliceIndex <= lastIndex)
+				throw new IllegalArgumentException("Slices must be given in ascending order");
+			
+			if(polyphony == null)
+				throw new NullPointerException();
+			
+			if(polyphony.polyphony() > 0)
+				slices.put(sliceIndex, polyphony);
+			
+			lastIndex = sliceIndex;
+			
+		}
+		
+		public Composition build() {
+			return new Composition(sliceLength, slices, defaultEnvelopes(), null, EffectChain.EMPTY, Tuning.EQUAL);
+		}
+		
+	}
+	
+	public long getSliceStartInSamples(int sliceIndex, double sampleRate) {
+		return getSliceStartInSamples(sliceIndex, sliceLength, sampleRate);
+	}
+	
 	public long getSliceEndInSamples(int sliceIndex, double sampleRate) {
+		return getSliceStartInSamples(sliceIndex + 1, sliceLength, sampleRate);
+	}
+	
+	// Shared by everything laid out on the same grid of slices
+	static long getSliceStartInSamples(int sliceIndex, double sliceLength, double sampleRate) {
 		
-		double start = (sliceIndex + 1) * sliceLength;
+		double start = sliceIndex * sliceLength;
 		return (long) Math.floor(start * sampleRate);
 		
 	}
 	
+	// Rounding slice starts down can make a slice one sample longer than its exact length
+	static int getMaxSliceLengthInSamples(double sliceLength, double sampleRate) {
+		return (int) Math.ceil(sliceLength * sampleRate) + 1;
+	}
+	
 	public int getSliceLengthInSamples(int sliceIndex, double sampleRate) {
 		return (int) (getSliceEndInSamples(sliceIndex, sampleRate) - getSliceStartInSamples(sliceIndex, sampleRate));
 	}
 	
 	public int getMaxSliceLengthInSamples(double sampleRate) {
-		return (int) Math.ceil(sliceLength * sampleRate);
+		return getMaxSliceLengthInSamples(sliceLength, sampleRate);
 	}
 	
 	public double getSliceLength() {
@@ -183,42 +739,102 @@ public final class Composition {
 	}
 	
 	public int getSliceCount() {
+		return slices.getSliceCount();
+	}
+	
+	public double getLength() {
+		return getSliceLength() * getSliceCount();
+	}
+	
+	public void saveWav(File file, double sampleRate) throws IOException {
+		saveWav(file, sampleRate, Synthesizer.DEFAULT_EXPORT_VOICES, Synthesizer.DEFAULT_STEALING);
+	}
+	
+	public void saveWav(File file, double sampleRate, int maxVoices, VoiceStealing stealing) throws IOException {
+		saveWav(file, sampleRate, maxVoices, stealing, null);
+	}
+	
+	// Also fills "peaks" (if not null) with the exported audio as it goes
+	public void saveWav(File file, double sampleRate, int maxVoices, VoiceStealing stealing, PeakIndex peaks) throws IOException {
+		saveWav(file, sampleRate, maxVoices, stealing, WavSampleFormat.PCM_INT_16, peaks);
+	}
+	
+	public void saveWav(File file, double sampleRate, int maxVoices, VoiceStealing stealing, WavSampleFormat format, PeakIndex peaks) throws IOException {
 		
-		Integer lastSliceIndex = slices.lastKey();
+		if(format == null)
+			throw new NullPointerException();
 		
-		if(lastSliceIndex == null)
-			return 0;
+		WavOutputStream wos = new WavOutputStream(file.getAbsolutePath(), (int) sampleRate, 1, format);
 		
-		return lastSliceIndex + 1;
+		try {
+			render(wos, sampleRate, maxVoices, stealing, 0, getSliceCount(), peaks);
+		} finally {
+			wos.close();
+		}
 		
 	}
 	
-	public double getLength() {
-		return getSliceLength() * getSliceCount();
+	// FLAC files hold the same samples as saveWav's WAV files, losslessly compressed at a level from
+	// 0 (fastest) to 8 (smallest)
+	public void saveFlac(File file, double sampleRate, int maxVoices, VoiceStealing stealing, int compressionLevel, PeakIndex peaks) throws IOException {
+		
+		FlacOutputStream fos = new FlacOutputStream(file, (int) sampleRate, 1, compressionLevel);
+		
+		try {
+			render(fos, sampleRate, maxVoices, stealing, 0, getSliceCount(), peaks);
+		} finally {
+			fos.close();
+		}
+		
 	}
 	
-	public void saveWav(File file, double sampleRate) throws IOException {
+	// Renders slices "firstSlice" up to "endSlice" the way saveWav does.  A range ending at the last
+	// slice carries on until every tail has finished; other ranges stop at "endSlice", so they should
+	// end where anything still sounding doesn't matter (see DistributedRender).
+	void render(SampleOutput output, double sampleRate, int maxVoices, VoiceStealing stealing, int firstSlice, int endSlice, PeakIndex peaks) throws IOException {
 		
-		double[] samples = new double[getMaxSliceLengthInSamples(sampleRate)];
-		short[] shorts = new short[samples.length];
+		int blockSlices = Math.max(1, (int) Math.ceil(Synthesizer.EXPORT_BLOCK_LENGTH / sliceLength));
 		
-		WavOutputStream wos = new WavOutputStream(file.getAbsolutePath(), (int) sampleRate, 1, WavSampleFormat.PCM_INT_16);
+		double[] samples = new double[blockSlices * getMaxSliceLengthInSamples(sampleRate)];
 		
-		int sliceCount = getSliceCount();
+		Synthesizer synthesizer = new Synthesizer(this, sampleRate, maxVoices, stealing);
+		EffectChain.Processor effects = this.effects.newProcessor(sampleRate);
+		boolean tails = endSlice >= getSliceCount();
 		
-		for(int i = 0; i < sliceCount; ++i) {
+		if(firstSlice > 0)
+			synthesizer.seek(firstSlice);
+		
+		// Keep going past the last slice until every release and effect tail has finished
+		while(synthesizer.getSliceIndex() < endSlice || (tails && (!synthesizer.isSilent() || !effects.isSilent()))) {
 			
-			int sampleCount = generateSamples(samples, i, sampleRate);
+			int remaining = endSlice - synthesizer.getSliceIndex();
+			int silent = effects.isSilent() ? synthesizer.getSilentSlices(remaining) : 0;
 			
-			for(int j = 0; j < sampleCount; ++j)
-				shorts[j] = (short) (samples[j] * Short.MAX_VALUE);
+			// Silence skips synthesis and conversion, and is left as a hole in the file
+			if(silent > 0) {
+				
+				long silence = synthesizer.skipSilence(silent);
+				
+				if(peaks != null)
+					peaks.appendSilence(silence);
+				
+				output.writeSilence(silence);
+				continue;
+				
+			}
 			
-			wos.write(shorts, 0, sampleCount);
+			// Past the last slice, tails are rendered one slice at a time so they stop as soon as they can
+			int sampleCount = synthesizer.renderSlices(samples, 0, remaining > 0 ? Math.min(remaining, blockSlices) : 1);
+			
+			effects.process(samples, 0, sampleCount);
+			
+			if(peaks != null)
+				peaks.append(samples, 0, sampleCount);
+			
+			output.write(samples, 0, sampleCount);
 			
 		}
 		
-		wos.close();
-		
 	}
 	
 }
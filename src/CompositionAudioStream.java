@@ -0,0 +1,186 @@
+import java.io.*;
+
+import javax.sound.sampled.*;
+
+// Renders a composition as 16 bit PCM one slice at a time, as the bytes are read, through the
+// composition's effects the way saveWav renders it
+public final class CompositionAudioStream extends InputStream {
+	
+	private static final int BYTES_PER_SAMPLE = 2;
+	
+	private final Composition composition;
+	private final Synthesizer synthesizer;
+	private final EffectChain.Processor effects;
+	private final double sampleRate;
+	private final boolean bigEndian;
+	private final long totalSamples;
+	private final int sliceCount;
+	
+	// The current slice, and the read position within it and within the whole stream
+	private final double[] samples;
+	private final byte[] bytes;
+	private int byteCount;
+	private int bytePosition;
+	private long position;
+	
+	public CompositionAudioStream(Composition composition, double sampleRate, boolean bigEndian) {
+		
+		this.composition = composition;
+		this.synthesizer = new Synthesizer(composition, sampleRate);
+		this.effects = composition.getEffects().newProcessor(sampleRate);
+		this.sampleRate = sampleRate;
+		this.bigEndian = bigEndian;
+		
+		// Leave room after the last slice for release and effect tails
+		this.sliceCount = composition.getSliceCount() + (int) Math.ceil((composition.getMaxEnvelopeLength() + composition.getEffects().getTailLength()) / composition.getSliceLength());
+		this.totalSamples = composition.getSliceStartInSamples(sliceCount, sampleRate);
+		
+		this.samples = new double[composition.getMaxSliceLengthInSamples(sampleRate)];
+		this.bytes = new byte[samples.length * BYTES_PER_SAMPLE];
+		
+	}
+	
+	public static AudioInputStream open(Composition composition, double sampleRate) {
+		
+		CompositionAudioStream stream = new CompositionAudioStream(composition, sampleRate, false);
+		
+		return new AudioInputStream(stream, stream.getFormat(), stream.getFrameLength());
+		
+	}
+	
+	public AudioFormat getFormat() {
+		return new AudioFormat((float) sampleRate, BYTES_PER_SAMPLE * 8, 1, true, bigEndian);
+	}
+	
+	public long getFrameLength() {
+		return totalSamples;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		
+		if(!fill())
+			return -1;
+		
+		++position;
+		
+		return bytes[bytePosition++] & 0xff;
+		
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		
+		if(length == 0)
+			return 0;
+		
+		int read = 0;
+		
+		// Reads may span any number of slices
+		while(read < length && fill()) {
+			
+			int count = Math.min(length - read, byteCount - bytePosition);
+			
+			System.arraycopy(bytes, bytePosition, buffer, offset + read, count);
+			
+			bytePosition += count;
+			position += count;
+			read += count;
+			
+		}
+		
+		return read == 0 ? -1 : read;
+		
+	}
+	
+	// Jumps straight to the slice containing the target rather than rendering everything before it
+	@Override
+	public long skip(long count) throws IOException {
+		
+		if(count <= 0)
+			return 0;
+		
+		long target = Math.min(position + count, totalSamples * BYTES_PER_SAMPLE);
+		long skipped = target - position;
+		
+		if(target < position + byteCount - bytePosition) {
+			
+			bytePosition += (int) skipped;
+			position = target;
+			
+			return skipped;
+			
+		}
+		
+		long targetSample = target / BYTES_PER_SAMPLE;
+		int sliceIndex = (int) Math.min(sliceCount, Math.floor(targetSample / (composition.getSliceLength() * sampleRate)));
+		
+		// Slice boundaries are rounded to whole samples, so the estimate can be one slice off
+		while(sliceIndex > 0 && composition.getSliceStartInSamples(sliceIndex, sampleRate) > targetSample)
+			--sliceIndex;
+		
+		while(sliceIndex < sliceCount && composition.getSliceEndInSamples(sliceIndex, sampleRate) <= targetSample)
+			++sliceIndex;
+		
+		// Effects start again from silence at the target, so whatever they'd still be carrying from
+		// before it is lost
+		synthesizer.seek(sliceIndex);
+		effects.reset();
+		
+		byteCount = 0;
+		bytePosition = 0;
+		position = composition.getSliceStartInSamples(sliceIndex, sampleRate) * BYTES_PER_SAMPLE;
+		
+		if(fill())
+			bytePosition = (int) (target - position);
+		
+		position = target;
+		
+		return skipped;
+		
+	}
+	
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, totalSamples * BYTES_PER_SAMPLE - position);
+	}
+	
+	// Renders the next slice if the current one has been read, returning false at the end of the stream
+	private boolean fill() {
+		
+		if(bytePosition < byteCount)
+			return true;
+		
+		if(synthesizer.getSliceIndex() >= sliceCount)
+			return false;
+		
+		int sampleCount = synthesizer.renderSlice(samples);
+		
+		effects.process(samples, 0, sampleCount);
+		
+		for(int i = 0, j = 0; i < sampleCount; ++i) {
+			
+			short sample = (short) (Math.max(-1.0, Math.min(1.0, samples[i])) * Short.MAX_VALUE);
+			
+			if(bigEndian) {
+				
+				bytes[j++] = (byte) ((sample >>> 8) & 0xff);
+				bytes[j++] = (byte) ((sample      ) & 0xff);
+				
+			} else {
+				
+				bytes[j++] = (byte) ((sample      ) & 0xff);
+				bytes[j++] = (byte) ((sample >>> 8) & 0xff);
+				
+			}
+			
+		}
+		
+		byteCount = sampleCount * BYTES_PER_SAMPLE;
+		bytePosition = 0;
+		
+		return byteCount > 0 || fill();
+		
+	}
+	
+}
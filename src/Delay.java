@@ -0,0 +1,127 @@
+import java.io.*;
+import java.util.*;
+
+// Echoes the input after a fixed time, each echo quieter than the last by the feedback factor
+public final class Delay implements Effect {
+	
+	private final double time;
+	private final double feedback;
+	private final double mix;
+	
+	public Delay(double time, double feedback, double mix) {
+		
+		if(!Double.isFinite(time) || time <= 0.0)
+			throw new IllegalArgumentException("Delay time must be positive and finite");
+		
+		if(!(feedback >= 0.0 && feedback < 1.0))
+			throw new IllegalArgumentException("Feedback must be at least 0 and less than 1");
+		
+		if(!(mix >= 0.0 && mix <= 1.0))
+			throw new IllegalArgumentException("Mix must be between 0 and 1");
+		
+		this.time = time;
+		this.feedback = feedback;
+		this.mix = mix;
+		
+	}
+	
+	public double getTime() {
+		return time;
+	}
+	
+	public double getFeedback() {
+		return feedback;
+	}
+	
+	public double getMix() {
+		return mix;
+	}
+	
+	@Override
+	public int getType() {
+		return DELAY;
+	}
+	
+	@Override
+	public double getTailLength() {
+		
+		if(mix == 0.0)
+			return 0.0;
+		
+		// Echoes until one is quieter than the silence level
+		double echoes = feedback == 0.0 ? 1.0 : Math.ceil(Math.log(SILENCE_LEVEL) / Math.log(feedback)) + 1.0;
+		
+		return time * echoes;
+		
+	}
+	
+	@Override
+	public Effect.Processor newProcessor(double sampleRate) {
+		return new Processor(Math.max(1, (int) Math.round(time * sampleRate)));
+	}
+	
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		
+		BinaryIO.writeDouble(os, time);
+		BinaryIO.writeDouble(os, feedback);
+		BinaryIO.writeDouble(os, mix);
+		
+	}
+	
+	public static Delay readFrom(InputStream is) throws IOException {
+		
+		double time = BinaryIO.readDouble(is);
+		double feedback = BinaryIO.readDouble(is);
+		double mix = BinaryIO.readDouble(is);
+		
+		try {
+			return new Delay(time, feedback, mix);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad delay: " + e.getMessage());
+		}
+		
+	}
+	
+	@Override
+	public String toString() {
+		return "delay " + time + " " + feedback + " " + mix;
+	}
+	
+	private final class Processor implements Effect.Processor {
+		
+		private final double[] line;
+		private int position;
+		
+		Processor(int length) {
+			this.line = new double[length];
+		}
+		
+		@Override
+		public void process(double[] samples, int offset, int length) {
+			
+			for(int i = offset; i < offset + length; ++i) {
+				
+				double echo = line[position];
+				
+				line[position] = samples[i] + echo * feedback;
+				samples[i] += echo * mix;
+				
+				if(++position == line.length)
+					position = 0;
+				
+			}
+			
+		}
+		
+		@Override
+		public void reset() {
+			
+			Arrays.fill(line, 0.0);
+			position = 0;
+			
+		}
+		
+	}
+	
+}
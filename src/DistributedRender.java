@@ -0,0 +1,389 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Renders a composition to a WAV file with several worker processes, each rendering a range of slices
+// to a fragment, then joins the fragments into one file.  Ranges only start at slices with nothing
+// left sounding from before them, where a fresh Synthesizer and effects chain are in exactly the state
+// a single render would be, so the result is byte for byte the same as saveWav's.  Workers only share
+// the work directory, so they can run on other machines given a launcher command that starts them
+// there.
+//
+//   java DistributedRender render <composition> <output.wav> <workers> [options]
+//
+// Options:
+//   --rate 48000          sample rate
+//   --voices 256          voice limit
+//   --stealing QUIETEST   voice stealing policy
+//   --attempts 3          times a range is tried before the render gives up
+//   --work <directory>    directory shared with the workers (a new temporary one by default)
+//
+// A composition without long enough gaps renders as a single range, whatever the worker count, so the
+// number of ranges used is printed.
+public final class DistributedRender {
+	
+	public static final int DEFAULT_ATTEMPTS = 3;
+	public static final double DEFAULT_SAMPLE_RATE = 48000.0;
+	
+	private final Composition composition;
+	private final double sampleRate;
+	private final int maxVoices;
+	private final VoiceStealing stealing;
+	private final File workDirectory;
+	
+	private List<String> launcher;
+	private int attempts;
+	
+	public DistributedRender(Composition composition, double sampleRate, int maxVoices, VoiceStealing stealing, File workDirectory) {
+		
+		if(composition == null || stealing == null || workDirectory == null)
+			throw new NullPointerException();
+		
+		if(!Double.isFinite(sampleRate) || sampleRate <= 0.0)
+			throw new IllegalArgumentException("Sample rate must be positive and finite");
+		
+		if(maxVoices <= 0)
+			throw new IllegalArgumentException("Voice limit must be positive");
+		
+		this.composition = composition.snapshot();
+		this.sampleRate = sampleRate;
+		this.maxVoices = maxVoices;
+		this.stealing = stealing;
+		this.workDirectory = workDirectory;
+		
+		// Another JVM on this machine with the same classes
+		this.launcher = Arrays.asList(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp", System.getProperty("java.class.path"));
+		this.attempts = DEFAULT_ATTEMPTS;
+		
+	}
+	
+	// Command that starts a JVM able to run this class, given the class name and its arguments after it
+	public void setLauncher(List<String> launcher) {
+		
+		if(launcher.isEmpty())
+			throw new IllegalArgumentException("Launcher command can't be empty");
+		
+		this.launcher = new ArrayList<String>(launcher);
+		
+	}
+	
+	// How many times a range is tried before the render gives up
+	public void setAttempts(int attempts) {
+		
+		if(attempts <= 0)
+			throw new IllegalArgumentException("Attempts must be positive");
+		
+		this.attempts = attempts;
+		
+	}
+	
+	// Slices a render can start from as if it had rendered everything before: the slices before them
+	// are empty for long enough that every note has released and every effect has died away
+	public static List<Integer> findCuts(Composition composition) {
+		
+		int gap = (int) Math.ceil(getCutGap(composition) / composition.getSliceLength()) + 2;
+		
+		ArrayList<Integer> cuts = new ArrayList<Integer>();
+		
+		for(int last = composition.nextNonEmptySlice(0); last >= 0; ) {
+			
+			int next = composition.nextNonEmptySlice(last + 1);
+			
+			if(next >= 0 && next - last - 1 >= gap)
+				cuts.add(next);
+			
+			last = next;
+			
+		}
+		
+		return cuts;
+		
+	}
+	
+	// Seconds of silence needed before a slice for a range to start there
+	public static double getCutGap(Composition composition) {
+		return composition.getMaxEnvelopeLength() + composition.getEffects().getTailLength();
+	}
+	
+	// Boundaries of up to "count" ranges of roughly equal length, starting with 0 and ending with the
+	// slice count.  There are fewer ranges when there aren't enough places to cut.
+	public static int[] partition(Composition composition, int count) {
+		
+		if(count <= 0)
+			throw new IllegalArgumentException("Partition count must be positive");
+		
+		List<Integer> cuts = findCuts(composition);
+		int sliceCount = composition.getSliceCount();
+		
+		ArrayList<Integer> boundaries = new ArrayList<Integer>();
+		boundaries.add(0);
+		
+		int c = 0;
+		
+		for(int i = 1; i < count && c < cuts.size(); ++i) {
+			
+			long target = (long) sliceCount * i / count;
+			
+			// Nearest cut after the previous boundary
+			while(c + 1 < cuts.size() && Math.abs(cuts.get(c + 1) - target) <= Math.abs(cuts.get(c) - target))
+				++c;
+			
+			if(cuts.get(c) > boundaries.get(boundaries.size() - 1))
+				boundaries.add(cuts.get(c));
+			
+			++c;
+			
+		}
+		
+		boundaries.add(sliceCount);
+		
+		int[] result = new int[boundaries.size()];
+		
+		for(int i = 0; i < result.length; ++i)
+			result[i] = boundaries.get(i);
+		
+		return result;
+		
+	}
+	
+	// Renders with up to "workers" processes at once, one per range, returning how many ranges there
+	// were (fewer than "workers" when there aren't enough places to cut)
+	public int render(File output, int workers) throws IOException {
+		
+		if(!workDirectory.isDirectory() && !workDirectory.mkdirs())
+			throw new IOException("Can't create work directory: " + workDirectory);
+		
+		File compositionFile = new File(workDirectory, "render.jss");
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(compositionFile));
+		
+		try {
+			composition.writeTo(os);
+		} finally {
+			os.close();
+		}
+		
+		int[] boundaries = partition(composition, workers);
+		File[] fragments = new File[boundaries.length - 1];
+		
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		
+		for(int i = 0; i < fragments.length; ++i) {
+			
+			int index = i;
+			
+			fragments[i] = new File(workDirectory, "part-" + i + ".wav");
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException, InterruptedException {
+					
+					renderFragment(compositionFile, boundaries[index], boundaries[index + 1], fragments[index]);
+					return null;
+					
+				}
+			});
+			
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(fragments.length);
+		
+		try {
+			
+			for(Future<Void> future : executor.invokeAll(tasks))
+				future.get();
+			
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			
+			throw new IOException("Error rendering range", e.getCause());
+			
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		// One header for the whole file, then each fragment's samples in order
+		WavOutputStream wos = new WavOutputStream(output, (int) sampleRate, 1, WavSampleFormat.PCM_INT_16);
+		
+		try {
+			
+			for(File fragment : fragments)
+				wos.writeFrom(fragment);
+			
+		} finally {
+			wos.close();
+		}
+		
+		for(File fragment : fragments) {
+			
+			fragment.delete();
+			new File(fragment.getPath() + ".log").delete();
+			
+		}
+		
+		compositionFile.delete();
+		
+		return fragments.length;
+		
+	}
+	
+	// Runs a worker for one range until it produces its fragment, starting it again if it fails
+	private void renderFragment(File compositionFile, int firstSlice, int endSlice, File fragment) throws IOException, InterruptedException {
+		
+		File log = new File(fragment.getPath() + ".log");
+		
+		ArrayList<String> command = new ArrayList<String>(launcher);
+		command.add(DistributedRender.class.getName());
+		command.add("worker");
+		command.add(compositionFile.getAbsolutePath());
+		command.add(Double.toString(sampleRate));
+		command.add(Integer.toString(maxVoices));
+		command.add(stealing.name());
+		command.add(Integer.toString(firstSlice));
+		command.add(Integer.toString(endSlice));
+		command.add(fragment.getAbsolutePath());
+		
+		for(int attempt = 1; attempt <= attempts; ++attempt) {
+			
+			fragment.delete();
+			
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+			
+			try {
+				
+				// Workers only put the fragment in place once it's complete
+				if(process.waitFor() == 0 && fragment.isFile())
+					return;
+				
+			} finally {
+				process.destroy();
+			}
+			
+		}
+		
+		throw new IOException("Rendering slices " + firstSlice + " to " + endSlice + " failed " + attempts + " times; see " + log);
+		
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		if(args.length == 8 && args[0].equals("worker"))
+			runWorker(args);
+		
+		else if(args.length >= 4 && args[0].equals("render"))
+			runCoordinator(args);
+		
+		else {
+			
+			System.err.println("Usage: java DistributedRender render <composition> <output.wav> <workers> [options]");
+			System.err.println("       java DistributedRender worker <composition> <sample rate> <max voices> <stealing> <first slice> <end slice> <fragment>");
+			System.exit(2);
+			
+		}
+		
+	}
+	
+	private static Composition load(File file) throws IOException {
+		
+		InputStream is = new BufferedInputStream(new FileInputStream(file));
+		
+		try {
+			return Composition.readFrom(is);
+		} finally {
+			is.close();
+		}
+		
+	}
+	
+	// Coordinator: splits a saved composition into ranges and runs a worker for each
+	private static void runCoordinator(String[] args) throws IOException {
+		
+		Composition composition = load(new File(args[1]));
+		File output = new File(args[2]);
+		int workers = Integer.parseInt(args[3]);
+		
+		double sampleRate = DEFAULT_SAMPLE_RATE;
+		int maxVoices = Synthesizer.DEFAULT_EXPORT_VOICES;
+		VoiceStealing stealing = Synthesizer.DEFAULT_STEALING;
+		int attempts = DEFAULT_ATTEMPTS;
+		File workDirectory = null;
+		
+		for(int i = 4; i < args.length; ++i) {
+			
+			switch(args[i]) {
+			
+			case "--rate":
+				sampleRate = Double.parseDouble(args[++i]);
+				break;
+			
+			case "--voices":
+				maxVoices = Integer.parseInt(args[++i]);
+				break;
+			
+			case "--stealing":
+				stealing = VoiceStealing.valueOf(args[++i]);
+				break;
+			
+			case "--attempts":
+				attempts = Integer.parseInt(args[++i]);
+				break;
+			
+			case "--work":
+				workDirectory = new File(args[++i]);
+				break;
+			
+			default:
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			
+			}
+			
+		}
+		
+		if(workDirectory == null)
+			workDirectory = Files.createTempDirectory("distributed-render").toFile();
+		
+		DistributedRender render = new DistributedRender(composition, sampleRate, maxVoices, stealing, workDirectory);
+		render.setAttempts(attempts);
+		
+		long start = System.nanoTime();
+		int ranges = render.render(output, workers);
+		
+		System.out.printf(Locale.ROOT, "Rendered %s in %d range%s in %.1f s%n", output, ranges, ranges == 1 ? "" : "s", (System.nanoTime() - start) / 1e9);
+		
+		if(ranges < workers)
+			System.out.printf(Locale.ROOT, "Only %d of %d workers were used: the composition has too few gaps of %.2f s or more to cut at%n", ranges, workers, getCutGap(composition));
+		
+		workDirectory.delete();
+		
+	}
+	
+	// Worker: renders one range of slices of a saved composition to a fragment
+	private static void runWorker(String[] args) throws IOException {
+		
+		Composition composition = load(new File(args[1]));
+		
+		double sampleRate = Double.parseDouble(args[2]);
+		int maxVoices = Integer.parseInt(args[3]);
+		VoiceStealing stealing = VoiceStealing.valueOf(args[4]);
+		int firstSlice = Integer.parseInt(args[5]);
+		int endSlice = Integer.parseInt(args[6]);
+		File fragment = new File(args[7]);
+		
+		// Written under another name first, so a fragment that exists is always complete
+		File partial = new File(fragment.getPath() + ".partial");
+		WavOutputStream wos = new WavOutputStream(partial, (int) sampleRate, 1, WavSampleFormat.PCM_INT_16);
+		
+		try {
+			composition.render(wos, sampleRate, maxVoices, stealing, firstSlice, endSlice, null);
+		} finally {
+			wos.close();
+		}
+		
+		Files.move(partial.toPath(), fragment.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		
+	}
+	
+}
@@ -0,0 +1,35 @@
+import java.io.*;
+
+// Settings for one stage of a composition's effects chain.  Settings are immutable; each render makes
+// its own processors from them, which hold all the state and buffers the effect needs at that
+// sample rate.
+public interface Effect {
+	
+	public static final int DELAY = 0;
+	public static final int FILTER = 1;
+	public static final int REVERB = 2;
+	
+	// Anything an effect outputs this long after its input goes silent is below this level
+	public static final double SILENCE_LEVEL = 1.0e-6;
+	
+	int getType();
+	
+	// Seconds the effect keeps sounding after its input goes silent
+	double getTailLength();
+	
+	Processor newProcessor(double sampleRate);
+	
+	// Parameters only; the chain writes the type
+	void writeTo(OutputStream os) throws IOException;
+	
+	public interface Processor {
+		
+		// Processes samples in place, without allocating
+		void process(double[] samples, int offset, int length);
+		
+		// Clears everything the effect remembers of earlier input
+		void reset();
+		
+	}
+	
+}
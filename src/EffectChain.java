@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.*;
+
+// Effects applied in order to a composition's mix before it's converted to PCM.  The chain itself is
+// immutable and stored with the composition; each render makes a Processor for its sample rate.
+public final class EffectChain {
+	
+	public static final EffectChain EMPTY = new EffectChain(new Effect[0]);
+	
+	private final Effect[] effects;
+	
+	public EffectChain(List<Effect> effects) {
+		this(effects.toArray(new Effect[effects.size()]));
+	}
+	
+	private EffectChain(Effect[] effects) {
+		
+		for(Effect effect : effects)
+			if(effect == null)
+				throw new NullPointerException();
+		
+		this.effects = effects;
+		
+	}
+	
+	public int size() {
+		return effects.length;
+	}
+	
+	public boolean isEmpty() {
+		return effects.length == 0;
+	}
+	
+	public Effect getEffect(int index) {
+		return effects[index];
+	}
+	
+	// Seconds the chain keeps sounding after its input goes silent
+	public double getTailLength() {
+		
+		double tail = 0.0;
+		
+		for(Effect effect : effects)
+			tail += effect.getTailLength();
+		
+		return tail;
+		
+	}
+	
+	public Processor newProcessor(double sampleRate) {
+		return new Processor(this, sampleRate);
+	}
+	
+	public void writeTo(OutputStream os) throws IOException {
+		
+		os.write(effects.length);
+		
+		for(Effect effect : effects) {
+			
+			os.write(effect.getType());
+			effect.writeTo(os);
+			
+		}
+		
+	}
+	
+	public static EffectChain readFrom(InputStream is) throws IOException {
+		
+		int count = BinaryIO.readByte(is);
+		Effect[] effects = new Effect[count];
+		
+		for(int i = 0; i < count; ++i) {
+			
+			int type = BinaryIO.readByte(is);
+			
+			switch(type) {
+			
+			case Effect.DELAY:  effects[i] = Delay.readFrom(is); break;
+			case Effect.FILTER: effects[i] = BiquadFilter.readFrom(is); break;
+			case Effect.REVERB: effects[i] = Reverb.readFrom(is); break;
+			
+			default:
+				throw new IOException("Bad value for effect type");
+			
+			}
+			
+		}
+		
+		return new EffectChain(effects);
+		
+	}
+	
+	// Reads a chain written the way toString() writes it, e.g. "lowpass 2000 0.7; delay 0.3 0.4 0.25;
+	// reverb 1.5 0.2", with each effect's parameters in the order its constructor takes them
+	public static EffectChain parse(String text) {
+		
+		ArrayList<Effect> effects = new ArrayList<Effect>();
+		
+		for(String part : text.split(";")) {
+			
+			String[] words = part.trim().split("\\s+");
+			
+			if(words[0].isEmpty())
+				continue;
+			
+			double[] values = new double[words.length - 1];
+			
+			try {
+				
+				for(int i = 0; i < values.length; ++i)
+					values[i] = Double.parseDouble(words[i + 1]);
+				
+			} catch(NumberFormatException e) {
+				throw new IllegalArgumentException("Bad number in \"" + part.trim() + "\"");
+			}
+			
+			String name = words[0].toLowerCase();
+			
+			if(name.equals("delay")) {
+				
+				requireValues(part, values, 3);
+				effects.add(new Delay(values[0], values[1], values[2]));
+				
+			} else if(name.equals("reverb")) {
+				
+				requireValues(part, values, 2);
+				effects.add(new Reverb(values[0], values[1]));
+				
+			} else {
+				
+				int shape = -1;
+				
+				for(int i = BiquadFilter.LOW_PASS; i <= BiquadFilter.BAND_PASS; ++i)
+					if(name.equals(BiquadFilter.shapeName(i)))
+						shape = i;
+				
+				if(shape < 0)
+					throw new IllegalArgumentException("Unknown effect \"" + words[0] + "\"");
+				
+				if(values.length == 1)
+					effects.add(new BiquadFilter(shape, values[0], BiquadFilter.DEFAULT_Q));
+				
+				else {
+					
+					requireValues(part, values, 2);
+					effects.add(new BiquadFilter(shape, values[0], values[1]));
+					
+				}
+				
+			}
+			
+		}
+		
+		if(effects.size() > 255)
+			throw new IllegalArgumentException("Too many effects");
+		
+		return effects.isEmpty() ? EMPTY : new EffectChain(effects);
+		
+	}
+	
+	private static void requireValues(String part, double[] values, int count) {
+		
+		if(values.length != count)
+			throw new IllegalArgumentException("\"" + part.trim() + "\" needs " + count + " numbers");
+		
+	}
+	
+	@Override
+	public String toString() {
+		
+		StringBuilder builder = new StringBuilder();
+		
+		for(Effect effect : effects) {
+			
+			if(builder.length() > 0)
+				builder.append("; ");
+			
+			builder.append(effect);
+			
+		}
+		
+		return builder.toString();
+		
+	}
+	
+	// Runs a chain's effects over each block of samples.  Everything is allocated up front, so
+	// processing doesn't allocate at all.  Once the input has been silent for the chain's whole tail,
+	// the effects are cleared and silent blocks pass straight through, so a render can skip silence
+	// again once isSilent() says so.
+	public static final class Processor {
+		
+		private final Effect.Processor[] processors;
+		private final long tailLength;
+		
+		private long silentLength;
+		private boolean silent;
+		
+		private Processor(EffectChain chain, double sampleRate) {
+			
+			this.processors = new Effect.Processor[chain.effects.length];
+			
+			for(int i = 0; i < processors.length; ++i)
+				processors[i] = chain.effects[i].newProcessor(sampleRate);
+			
+			this.tailLength = (long) Math.ceil(chain.getTailLength() * sampleRate);
+			this.silent = true;
+			
+		}
+		
+		public boolean isSilent() {
+			return silent;
+		}
+		
+		public void process(double[] samples, int offset, int length) {
+			
+			if(processors.length == 0)
+				return;
+			
+			int last = offset + length - 1;
+			
+			while(last >= offset && samples[last] == 0.0)
+				--last;
+			
+			if(last < offset) {
+				
+				if(silent)
+					return;
+				
+				silentLength += length;
+				
+			} else {
+				
+				silent = false;
+				silentLength = offset + length - 1 - last;
+				
+			}
+			
+			for(Effect.Processor processor : processors)
+				processor.process(samples, offset, length);
+			
+			if(silentLength >= tailLength)
+				reset();
+			
+		}
+		
+		public void reset() {
+			
+			for(Effect.Processor processor : processors)
+				processor.reset();
+			
+			silentLength = 0;
+			silent = true;
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,103 @@
+import java.io.*;
+
+public final class Envelope {
+	
+	public static final Envelope DEFAULT = new Envelope(0.005, 0.0, 1.0, 0.05);
+	
+	private final double attack;
+	private final double decay;
+	private final double sustain;
+	private final double release;
+	
+	public Envelope(double attack, double decay, double sustain, double release) {
+		
+		if(!Double.isFinite(attack) || attack < 0.0)
+			throw new IllegalArgumentException("Attack must be non-negative and finite");
+		
+		if(!Double.isFinite(decay) || decay < 0.0)
+			throw new IllegalArgumentException("Decay must be non-negative and finite");
+		
+		if(!(sustain >= 0.0 && sustain <= 1.0))
+			throw new IllegalArgumentException("Sustain level must be between 0 and 1");
+		
+		if(!Double.isFinite(release) || release < 0.0)
+			throw new IllegalArgumentException("Release must be non-negative and finite");
+		
+		this.attack = attack;
+		this.decay = decay;
+		this.sustain = sustain;
+		this.release = release;
+		
+	}
+	
+	public double getAttack() {
+		return attack;
+	}
+	
+	public double getDecay() {
+		return decay;
+	}
+	
+	public double getSustain() {
+		return sustain;
+	}
+	
+	public double getRelease() {
+		return release;
+	}
+	
+	// Level while the key is held, "time" seconds after the note started
+	public double levelHeld(double time) {
+		
+		if(time < attack)
+			return time / attack;
+		
+		time -= attack;
+		
+		if(time < decay)
+			return 1.0 - (1.0 - sustain) * (time / decay);
+		
+		return sustain;
+		
+	}
+	
+	// Level "time" seconds after the key was released, having been held for "heldTime" seconds
+	public double levelReleased(double heldTime, double time) {
+		
+		if(time >= release)
+			return 0.0;
+		
+		return levelHeld(heldTime) * (1.0 - time / release);
+		
+	}
+	
+	public void writeTo(OutputStream os) throws IOException {
+		
+		BinaryIO.writeDouble(os, attack);
+		BinaryIO.writeDouble(os, decay);
+		BinaryIO.writeDouble(os, sustain);
+		BinaryIO.writeDouble(os, release);
+		
+	}
+	
+	public static Envelope readFrom(InputStream is) throws IOException {
+		
+		double attack = BinaryIO.readDouble(is);
+		double decay = BinaryIO.readDouble(is);
+		double sustain = BinaryIO.readDouble(is);
+		double release = BinaryIO.readDouble(is);
+		
+		try {
+			return new Envelope(attack, decay, sustain, release);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad envelope: " + e.getMessage());
+		}
+		
+	}
+	
+	@Override
+	public String toString() {
+		return "{Attack: " + attack + ", Decay: " + decay + ", Sustain: " + sustain + ", Release: " + release + "}";
+	}
+	
+}
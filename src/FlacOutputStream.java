@@ -0,0 +1,925 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Writes 16 bit samples to a FLAC file.  Each block of samples is predicted with whichever fixed or
+// linear predictor leaves the smallest residual, which is then Rice coded.  Blocks are encoded on
+// several threads at once and written in order as they finish.  The STREAMINFO block at the start of
+// the file is filled in when the stream is closed.
+public final class FlacOutputStream implements SampleOutput {
+	
+	public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+	public static final int MAX_COMPRESSION_LEVEL = 8;
+	
+	static final int BLOCK_SIZE = 4096;
+	static final int BITS_PER_SAMPLE = 16;
+	
+	private static final int STREAMINFO_LENGTH = 34;
+	
+	// Per compression level: highest LPC order tried (0 for fixed predictors only), whether every
+	// order is tried rather than just the highest, and the highest partition order for Rice coding
+	private static final int[] MAX_LPC_ORDERS = { 0, 0, 0, 6, 8, 8, 8, 12, 12 };
+	private static final boolean[] SEARCH_LPC_ORDERS = { false, false, false, false, false, false, true, true, true };
+	private static final int[] MAX_PARTITION_ORDERS = { 2, 3, 4, 4, 4, 5, 6, 6, 8 };
+	
+	private static final int LPC_PRECISION = 12;
+	
+	private static final int[] CRC8_TABLE = generateCrcTable(0x07, 8);
+	private static final int[] CRC16_TABLE = generateCrcTable(0x8005, 16);
+	
+	private final FileChannel channel;
+	private final int sampleRate;
+	private final int numChannels;
+	private final int compressionLevel;
+	
+	private final ExecutorService executor;
+	private final ArrayDeque<Future<byte[]>> pending;
+	private final int maxPending;
+	
+	// Samples of the block being filled, by channel
+	private int[][] block;
+	private int blockLength;
+	private long frameNumber;
+	
+	private final MessageDigest md5;
+	private byte[] md5Bytes;
+	
+	// Reused for converting samples given as doubles
+	private short[] converted;
+	
+	private long samplesWritten;
+	private int minFrameLength;
+	private int maxFrameLength;
+	
+	public FlacOutputStream(File file, int sampleRate, int numChannels, int compressionLevel) throws IOException {
+		this(file, sampleRate, numChannels, compressionLevel, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public FlacOutputStream(File file, int sampleRate, int numChannels, int compressionLevel, int threads) throws IOException {
+		
+		if(sampleRate <= 0 || sampleRate >= (1 << 20))
+			throw new IllegalArgumentException("Sample rate must fit within 20 bit unsigned integer.");
+		
+		if(numChannels <= 0 || numChannels > 8)
+			throw new IllegalArgumentException("FLAC supports 1 to 8 channels.");
+		
+		if(compressionLevel < 0 || compressionLevel > MAX_COMPRESSION_LEVEL)
+			throw new IllegalArgumentException("Compression level must be within 0 to " + MAX_COMPRESSION_LEVEL);
+		
+		if(threads <= 0)
+			throw new IllegalArgumentException("Thread count must be positive");
+		
+		try {
+			this.md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("MD5 isn't available", e);
+		}
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		
+		this.channel = raf.getChannel();
+		this.sampleRate = sampleRate;
+		this.numChannels = numChannels;
+		this.compressionLevel = compressionLevel;
+		
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		this.maxPending = threads * 2;
+		
+		this.block = new int[numChannels][BLOCK_SIZE];
+		this.md5Bytes = new byte[0];
+		this.converted = new short[0];
+		this.minFrameLength = Integer.MAX_VALUE;
+		
+		// Marker and an empty STREAMINFO block, filled in on closing
+		ByteBuffer header = ByteBuffer.allocate(8 + STREAMINFO_LENGTH);
+		header.put(new byte[] { 'f', 'L', 'a', 'C' });
+		header.putInt(0x80000000 | STREAMINFO_LENGTH);
+		header.position(header.limit());
+		header.flip();
+		
+		writeFully(header);
+		
+	}
+	
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+	
+	public long getSamplesWritten() {
+		return samplesWritten * numChannels;
+	}
+	
+	@Override
+	public void write(short[] samples, int offset, int length) throws IOException {
+		
+		if(length % numChannels != 0)
+			throw new IllegalArgumentException("All channels' samples must be written at once.");
+		
+		// The MD5 covers the samples as little endian bytes, interleaved
+		if(md5Bytes.length < length * 2)
+			md5Bytes = new byte[length * 2];
+		
+		for(int i = 0; i < length; ++i) {
+			
+			short sample = samples[offset + i];
+			
+			md5Bytes[i * 2] = (byte) sample;
+			md5Bytes[i * 2 + 1] = (byte) (sample >> 8);
+			
+		}
+		
+		md5.update(md5Bytes, 0, length * 2);
+		
+		for(int i = 0; i < length; i += numChannels) {
+			
+			for(int c = 0; c < numChannels; ++c)
+				block[c][blockLength] = samples[offset + i + c];
+			
+			if(++blockLength == BLOCK_SIZE)
+				submitBlock();
+			
+		}
+		
+	}
+	
+	@Override
+	public void write(double[] samples, int offset, int length) throws IOException {
+		
+		if(converted.length < length)
+			converted = new short[length];
+		
+		for(int i = 0; i < length; ++i)
+			converted[i] = (short) (Math.max(-1.0, Math.min(1.0, samples[offset + i])) * Short.MAX_VALUE);
+		
+		write(converted, 0, length);
+		
+	}
+	
+	// FLAC has nothing like a hole for silence, but silent blocks are encoded as a single value
+	@Override
+	public void writeSilence(long length) throws IOException {
+		
+		if(length < 0)
+			throw new IllegalArgumentException("Length can't be negative.");
+		
+		if(length % numChannels != 0)
+			throw new IllegalArgumentException("All channels' samples must be written at once.");
+		
+		if(md5Bytes.length < BLOCK_SIZE * 2)
+			md5Bytes = new byte[BLOCK_SIZE * 2];
+		
+		Arrays.fill(md5Bytes, (byte) 0);
+		
+		for(long remaining = length; remaining > 0; ) {
+			
+			int chunk = (int) Math.min(remaining, BLOCK_SIZE);
+			
+			md5.update(md5Bytes, 0, chunk * 2);
+			remaining -= chunk;
+			
+		}
+		
+		for(long frames = length / numChannels; frames > 0; ) {
+			
+			int chunk = (int) Math.min(frames, BLOCK_SIZE - blockLength);
+			
+			for(int c = 0; c < numChannels; ++c)
+				Arrays.fill(block[c], blockLength, blockLength + chunk, 0);
+			
+			blockLength += chunk;
+			frames -= chunk;
+			
+			if(blockLength == BLOCK_SIZE)
+				submitBlock();
+			
+		}
+		
+	}
+	
+	// Hands the block to an encoding thread, first writing out finished frames if too many are waiting
+	private void submitBlock() throws IOException {
+		
+		while(pending.size() >= maxPending)
+			writeFrame(pending.poll());
+		
+		pending.add(executor.submit(new FrameEncoder(block, blockLength, frameNumber, sampleRate, compressionLevel)));
+		
+		samplesWritten += blockLength;
+		++frameNumber;
+		
+		block = new int[numChannels][BLOCK_SIZE];
+		blockLength = 0;
+		
+	}
+	
+	private void writeFrame(Future<byte[]> future) throws IOException {
+		
+		byte[] frame;
+		
+		try {
+			frame = future.get();
+		} catch(InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch(ExecutionException e) {
+			throw new IOException("Error encoding frame", e.getCause());
+		}
+		
+		minFrameLength = Math.min(minFrameLength, frame.length);
+		maxFrameLength = Math.max(maxFrameLength, frame.length);
+		
+		writeFully(ByteBuffer.wrap(frame));
+		
+	}
+	
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		
+	}
+	
+	@Override
+	public void close() throws IOException {
+		
+		try {
+			
+			if(blockLength > 0)
+				submitBlock();
+			
+			while(!pending.isEmpty())
+				writeFrame(pending.poll());
+			
+			BitWriter info = new BitWriter(STREAMINFO_LENGTH);
+			
+			info.write(BLOCK_SIZE, 16);
+			info.write(BLOCK_SIZE, 16);
+			info.write(minFrameLength == Integer.MAX_VALUE ? 0 : minFrameLength, 24);
+			info.write(maxFrameLength, 24);
+			info.write(sampleRate, 20);
+			info.write(numChannels - 1, 3);
+			info.write(BITS_PER_SAMPLE - 1, 5);
+			info.write(samplesWritten >>> 32, 4);
+			info.write(samplesWritten & 0xffffffffL, 32);
+			
+			for(byte b : md5.digest())
+				info.write(b & 0xff, 8);
+			
+			channel.write(ByteBuffer.wrap(info.toByteArray()), 8);
+			
+		} finally {
+			
+			executor.shutdownNow();
+			channel.close();
+			
+		}
+		
+	}
+	
+	static int crc8(byte[] bytes, int offset, int length) {
+		
+		int crc = 0;
+		
+		for(int i = offset; i < offset + length; ++i)
+			crc = CRC8_TABLE[(crc ^ bytes[i]) & 0xff];
+		
+		return crc;
+		
+	}
+	
+	static int crc16(byte[] bytes, int offset, int length) {
+		
+		int crc = 0;
+		
+		for(int i = offset; i < offset + length; ++i)
+			crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ bytes[i]) & 0xff]) & 0xffff;
+		
+		return crc;
+		
+	}
+	
+	private static int[] generateCrcTable(int polynomial, int bits) {
+		
+		int[] table = new int[256];
+		int top = 1 << (bits - 1);
+		int mask = (1 << bits) - 1;
+		
+		for(int i = 0; i < 256; ++i) {
+			
+			int crc = i << (bits - 8);
+			
+			for(int j = 0; j < 8; ++j)
+				crc = (crc & top) != 0 ? ((crc << 1) ^ polynomial) & mask : (crc << 1) & mask;
+			
+			table[i] = crc;
+			
+		}
+		
+		return table;
+		
+	}
+	
+	// Encodes one block into a complete frame
+	private static final class FrameEncoder implements Callable<byte[]> {
+		
+		private final int[][] block;
+		private final int length;
+		private final long frameNumber;
+		private final int sampleRate;
+		private final int compressionLevel;
+		
+		FrameEncoder(int[][] block, int length, long frameNumber, int sampleRate, int compressionLevel) {
+			
+			this.block = block;
+			this.length = length;
+			this.frameNumber = frameNumber;
+			this.sampleRate = sampleRate;
+			this.compressionLevel = compressionLevel;
+			
+		}
+		
+		@Override
+		public byte[] call() {
+			
+			BitWriter out = new BitWriter(length * block.length * 2 + 64);
+			
+			// Header: sync code with fixed block size, block size and sample rate codes, independent
+			// channels of 16 bit samples, frame number, then the sizes the codes refer to
+			int blockSizeCode = length == BLOCK_SIZE ? 12 : 7;
+			int sampleRateCode = sampleRateCode(sampleRate);
+			
+			out.write(0xfff8, 16);
+			out.write(blockSizeCode, 4);
+			out.write(sampleRateCode, 4);
+			out.write(block.length - 1, 4);
+			out.write(4, 3);
+			out.write(0, 1);
+			writeUtf8(out, frameNumber);
+			
+			if(blockSizeCode == 7)
+				out.write(length - 1, 16);
+			
+			if(sampleRateCode == 13)
+				out.write(sampleRate, 16);
+			
+			out.write(crc8(out.buffer(), 0, out.byteLength()), 8);
+			
+			for(int[] samples : block)
+				new SubframeEncoder(samples, length, compressionLevel).writeTo(out);
+			
+			out.alignToByte();
+			out.write(crc16(out.buffer(), 0, out.byteLength()), 16);
+			
+			return out.toByteArray();
+			
+		}
+		
+		private static int sampleRateCode(int sampleRate) {
+			
+			switch(sampleRate) {
+			
+			case 88200:  return 1;
+			case 176400: return 2;
+			case 192000: return 3;
+			case 8000:   return 4;
+			case 16000:  return 5;
+			case 22050:  return 6;
+			case 24000:  return 7;
+			case 32000:  return 8;
+			case 44100:  return 9;
+			case 48000:  return 10;
+			case 96000:  return 11;
+			
+			}
+			
+			// Given in Hz after the header if it fits, otherwise only in STREAMINFO
+			return sampleRate < (1 << 16) ? 13 : 0;
+			
+		}
+		
+		// Frame numbers use the same variable length coding as UTF-8, extended to 36 bits
+		private static void writeUtf8(BitWriter out, long value) {
+			
+			if(value < 0x80) {
+				
+				out.write(value, 8);
+				return;
+				
+			}
+			
+			int continuations = 1;
+			
+			while(continuations < 6 && value >= 1L << (6 - continuations + 6 * continuations))
+				++continuations;
+			
+			int leading = (0xff00 >> (continuations + 1)) & 0xff;
+			
+			out.write(leading | (value >>> (6 * continuations)), 8);
+			
+			for(int i = continuations - 1; i >= 0; --i)
+				out.write(0x80 | ((value >>> (6 * i)) & 0x3f), 8);
+			
+		}
+		
+	}
+	
+	// Picks and writes the cheapest way to code one channel of a block
+	private static final class SubframeEncoder {
+		
+		private static final int CONSTANT = 0;
+		private static final int VERBATIM = 1;
+		private static final int FIXED = 8;
+		private static final int LPC = 32;
+		
+		private final int[] samples;
+		private final int length;
+		private final int compressionLevel;
+		
+		// Best choice found so far, and the bits it takes
+		private int type;
+		private int order;
+		private int[] coefficients;
+		private int shift;
+		private long[] residual;
+		private RicePartitions partitions;
+		private long bits;
+		
+		SubframeEncoder(int[] samples, int length, int compressionLevel) {
+			
+			this.samples = samples;
+			this.length = length;
+			this.compressionLevel = compressionLevel;
+			
+			choose();
+			
+		}
+		
+		private void choose() {
+			
+			boolean constant = true;
+			
+			for(int i = 1; i < length && constant; ++i)
+				constant = samples[i] == samples[0];
+			
+			if(constant) {
+				
+				type = CONSTANT;
+				return;
+				
+			}
+			
+			type = VERBATIM;
+			bits = (long) length * BITS_PER_SAMPLE;
+			
+			for(int order = 0; order <= 4 && order < length; ++order)
+				consider(FIXED, order, null, 0, fixedResidual(order), order * BITS_PER_SAMPLE);
+			
+			int maxOrder = Math.min(MAX_LPC_ORDERS[compressionLevel], length - 1);
+			
+			if(maxOrder > 0) {
+				
+				double[][] lpc = computeLpc(maxOrder);
+				
+				if(lpc != null) {
+					
+					for(int order = SEARCH_LPC_ORDERS[compressionLevel] ? 1 : maxOrder; order <= maxOrder; ++order) {
+						
+						int[] quantized = new int[order];
+						int shift = quantize(lpc[order], quantized);
+						
+						if(shift < 0)
+							continue;
+						
+						long[] residual = lpcResidual(quantized, shift);
+						
+						if(residual != null)
+							consider(LPC, order, quantized, shift, residual, order * BITS_PER_SAMPLE + 4 + 5 + order * LPC_PRECISION);
+						
+					}
+					
+				}
+				
+			}
+			
+		}
+		
+		private void consider(int type, int order, int[] coefficients, int shift, long[] residual, long headerBits) {
+			
+			RicePartitions partitions = RicePartitions.choose(residual, order, length, MAX_PARTITION_ORDERS[compressionLevel]);
+			
+			if(partitions == null)
+				return;
+			
+			long bits = headerBits + partitions.bits;
+			
+			if(bits < this.bits) {
+				
+				this.type = type;
+				this.order = order;
+				this.coefficients = coefficients;
+				this.shift = shift;
+				this.residual = residual;
+				this.partitions = partitions;
+				this.bits = bits;
+				
+			}
+			
+		}
+		
+		private long[] fixedResidual(int order) {
+			
+			long[] residual = new long[length];
+			
+			for(int i = order; i < length; ++i) {
+				
+				long x0 = samples[i];
+				
+				switch(order) {
+				
+				case 0: residual[i] = x0; break;
+				case 1: residual[i] = x0 - samples[i - 1]; break;
+				case 2: residual[i] = x0 - 2L * samples[i - 1] + samples[i - 2]; break;
+				case 3: residual[i] = x0 - 3L * samples[i - 1] + 3L * samples[i - 2] - samples[i - 3]; break;
+				default: residual[i] = x0 - 4L * samples[i - 1] + 6L * samples[i - 2] - 4L * samples[i - 3] + samples[i - 4]; break;
+				
+				}
+				
+			}
+			
+			return residual;
+			
+		}
+		
+		// Predictor coefficients of every order up to "maxOrder", from the autocorrelation of the
+		// windowed block by the Levinson-Durbin recursion, or null if the block has no energy
+		private double[][] computeLpc(int maxOrder) {
+			
+			double[] windowed = new double[length];
+			
+			// Tukey window, tapering the outer quarter at each end
+			int taper = Math.max(1, length / 4);
+			
+			for(int i = 0; i < length; ++i) {
+				
+				double w = 1.0;
+				
+				if(i < taper)
+					w = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+				else if(i >= length - taper)
+					w = 0.5 - 0.5 * Math.cos(Math.PI * (length - 1 - i) / taper);
+				
+				windowed[i] = samples[i] * w;
+				
+			}
+			
+			double[] autocorrelation = new double[maxOrder + 1];
+			
+			for(int lag = 0; lag <= maxOrder; ++lag) {
+				
+				double sum = 0.0;
+				
+				for(int i = lag; i < length; ++i)
+					sum += windowed[i] * windowed[i - lag];
+				
+				autocorrelation[lag] = sum;
+				
+			}
+			
+			if(autocorrelation[0] == 0.0)
+				return null;
+			
+			double[][] lpc = new double[maxOrder + 1][];
+			double[] previous = new double[0];
+			double error = autocorrelation[0];
+			
+			for(int order = 1; order <= maxOrder; ++order) {
+				
+				double reflection = autocorrelation[order];
+				
+				for(int j = 0; j < order - 1; ++j)
+					reflection -= previous[j] * autocorrelation[order - 1 - j];
+				
+				reflection /= error;
+				
+				double[] current = new double[order];
+				
+				for(int j = 0; j < order - 1; ++j)
+					current[j] = previous[j] - reflection * previous[order - 2 - j];
+				
+				current[order - 1] = reflection;
+				
+				error *= 1.0 - reflection * reflection;
+				lpc[order] = current;
+				previous = current;
+				
+				if(error <= 0.0) {
+					
+					// Perfectly predicted; higher orders can't do better
+					for(int higher = order + 1; higher <= maxOrder; ++higher)
+						lpc[higher] = Arrays.copyOf(current, higher);
+					
+					break;
+					
+				}
+				
+			}
+			
+			return lpc;
+			
+		}
+		
+		// Quantizes coefficients to LPC_PRECISION bits, carrying each one's rounding error into the
+		// next.  Returns the shift the quantized coefficients are scaled by, or -1 if they can't be.
+		private static int quantize(double[] lpc, int[] quantized) {
+			
+			double max = 0.0;
+			
+			for(double c : lpc)
+				max = Math.max(max, Math.abs(c));
+			
+			if(max == 0.0 || !Double.isFinite(max))
+				return -1;
+			
+			int exponent = Math.getExponent(max) + 1;
+			int shift = Math.min(15, LPC_PRECISION - 1 - exponent);
+			
+			if(shift < 0)
+				return -1;
+			
+			int limit = 1 << (LPC_PRECISION - 1);
+			double error = 0.0;
+			
+			for(int i = 0; i < lpc.length; ++i) {
+				
+				error += lpc[i] * (1 << shift);
+				
+				long q = Math.round(error);
+				q = Math.max(-limit, Math.min(limit - 1, q));
+				
+				quantized[i] = (int) q;
+				error -= q;
+				
+			}
+			
+			return shift;
+			
+		}
+		
+		// Null if any residual is too large to code
+		private long[] lpcResidual(int[] coefficients, int shift) {
+			
+			int order = coefficients.length;
+			long[] residual = new long[length];
+			
+			for(int i = order; i < length; ++i) {
+				
+				long prediction = 0;
+				
+				for(int j = 0; j < order; ++j)
+					prediction += (long) coefficients[j] * samples[i - 1 - j];
+				
+				residual[i] = samples[i] - (prediction >> shift);
+				
+				if(Math.abs(residual[i]) >= 1L << 30)
+					return null;
+				
+			}
+			
+			return residual;
+			
+		}
+		
+		void writeTo(BitWriter out) {
+			
+			switch(type) {
+			
+			case CONSTANT:
+				
+				out.write(CONSTANT << 1, 8);
+				out.write(samples[0] & 0xffff, BITS_PER_SAMPLE);
+				break;
+			
+			case VERBATIM:
+				
+				out.write(VERBATIM << 1, 8);
+				
+				for(int i = 0; i < length; ++i)
+					out.write(samples[i] & 0xffff, BITS_PER_SAMPLE);
+				
+				break;
+			
+			case FIXED:
+				
+				out.write((FIXED | order) << 1, 8);
+				
+				for(int i = 0; i < order; ++i)
+					out.write(samples[i] & 0xffff, BITS_PER_SAMPLE);
+				
+				partitions.writeTo(out, residual, order, length);
+				break;
+			
+			default:
+				
+				out.write((LPC | (order - 1)) << 1, 8);
+				
+				for(int i = 0; i < order; ++i)
+					out.write(samples[i] & 0xffff, BITS_PER_SAMPLE);
+				
+				out.write(LPC_PRECISION - 1, 4);
+				out.write(shift, 5);
+				
+				for(int c : coefficients)
+					out.write(c & ((1 << LPC_PRECISION) - 1), LPC_PRECISION);
+				
+				partitions.writeTo(out, residual, order, length);
+				break;
+			
+			}
+			
+		}
+		
+	}
+	
+	// How a residual is split into partitions, each with its own Rice parameter
+	private static final class RicePartitions {
+		
+		private static final int MAX_PARAMETER = 14;
+		
+		final int order;
+		final int[] parameters;
+		final long bits;
+		
+		private RicePartitions(int order, int[] parameters, long bits) {
+			
+			this.order = order;
+			this.parameters = parameters;
+			this.bits = bits;
+			
+		}
+		
+		// The partition order costing the fewest bits, estimating each partition's cost from the sum of
+		// its folded residuals.  Null if no partition order fits the block and predictor.
+		static RicePartitions choose(long[] residual, int predictorOrder, int length, int maxOrder) {
+			
+			RicePartitions best = null;
+			
+			for(int order = 0; order <= maxOrder; ++order) {
+				
+				int count = 1 << order;
+				
+				if(length % count != 0 || length / count <= predictorOrder)
+					break;
+				
+				int partitionLength = length / count;
+				int[] parameters = new int[count];
+				long bits = 2 + 4;
+				
+				for(int p = 0; p < count; ++p) {
+					
+					int start = p == 0 ? predictorOrder : p * partitionLength;
+					int end = (p + 1) * partitionLength;
+					long sum = 0;
+					
+					for(int i = start; i < end; ++i)
+						sum += fold(residual[i]);
+					
+					int n = end - start;
+					long partitionBits = Long.MAX_VALUE;
+					
+					for(int k = 0; k <= MAX_PARAMETER; ++k) {
+						
+						long candidate = (long) n * (k + 1) + (sum >>> k);
+						
+						if(candidate < partitionBits) {
+							
+							partitionBits = candidate;
+							parameters[p] = k;
+							
+						}
+						
+					}
+					
+					bits += 4 + partitionBits;
+					
+				}
+				
+				if(best == null || bits < best.bits)
+					best = new RicePartitions(order, parameters, bits);
+				
+			}
+			
+			return best;
+			
+		}
+		
+		void writeTo(BitWriter out, long[] residual, int predictorOrder, int length) {
+			
+			out.write(0, 2);
+			out.write(order, 4);
+			
+			int partitionLength = length >> order;
+			
+			for(int p = 0; p < parameters.length; ++p) {
+				
+				int k = parameters[p];
+				int start = p == 0 ? predictorOrder : p * partitionLength;
+				int end = (p + 1) * partitionLength;
+				
+				out.write(k, 4);
+				
+				for(int i = start; i < end; ++i) {
+					
+					long u = fold(residual[i]);
+					
+					out.writeUnary(u >>> k);
+					out.write(u & ((1L << k) - 1), k);
+					
+				}
+				
+			}
+			
+		}
+		
+		// Signed to unsigned: 0, -1, 1, -2, 2... become 0, 1, 2, 3, 4...
+		static long fold(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+		
+	}
+	
+	// Big endian bit packing into a growing buffer
+	private static final class BitWriter {
+		
+		private byte[] buffer;
+		private int length;
+		private long cache;
+		private int cacheBits;
+		
+		BitWriter(int capacity) {
+			this.buffer = new byte[Math.max(16, capacity)];
+		}
+		
+		// The low "bits" bits of "value", for up to 32 bits at a time
+		void write(long value, int bits) {
+			
+			if(bits == 0)
+				return;
+			
+			cache = (cache << bits) | (value & ((1L << bits) - 1));
+			cacheBits += bits;
+			
+			while(cacheBits >= 8) {
+				
+				cacheBits -= 8;
+				put((byte) (cache >>> cacheBits));
+				
+			}
+			
+		}
+		
+		// "value" zeros followed by a one
+		void writeUnary(long value) {
+			
+			for(; value >= 32; value -= 32)
+				write(0, 32);
+			
+			write(1, (int) value + 1);
+			
+		}
+		
+		void alignToByte() {
+			
+			if(cacheBits > 0)
+				write(0, 8 - cacheBits);
+			
+		}
+		
+		private void put(byte b) {
+			
+			if(length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			
+			buffer[length++] = b;
+			
+		}
+		
+		// Only complete bytes
+		byte[] buffer() {
+			return buffer;
+		}
+		
+		int byteLength() {
+			return length;
+		}
+		
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, length);
+		}
+		
+	}
+	
+}
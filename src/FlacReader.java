@@ -0,0 +1,355 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+// Decodes the 16 bit FLAC files FlacOutputStream writes, checking every frame's CRCs and the MD5 of the
+// whole stream, so an export can be checked before anything relies on it
+public final class FlacReader {
+	
+	private final byte[] data;
+	private int bitPosition;
+	
+	private int sampleRate;
+	private int numChannels;
+	private long totalSamples;
+	private byte[] expectedMd5;
+	
+	private FlacReader(byte[] data) {
+		this.data = data;
+	}
+	
+	// Decodes the whole file to interleaved samples
+	public static short[] read(File file) throws IOException {
+		return new FlacReader(Files.readAllBytes(file.toPath())).decode();
+	}
+	
+	// Throws if the file doesn't decode to exactly what was written
+	public static void verify(File file) throws IOException {
+		read(file);
+	}
+	
+	private short[] decode() throws IOException {
+		
+		if(data.length < 4 || data[0] != 'f' || data[1] != 'L' || data[2] != 'a' || data[3] != 'C')
+			throw new IOException("Not a FLAC file");
+		
+		bitPosition = 32;
+		
+		boolean last = false;
+		
+		while(!last) {
+			
+			last = readBits(1) == 1;
+			
+			int type = (int) readBits(7);
+			int length = (int) readBits(24);
+			int end = bitPosition / 8 + length;
+			
+			if(end > data.length)
+				throw new IOException("Metadata block runs past the end of the file");
+			
+			if(type == 0) {
+				
+				readBits(16 + 16 + 24 + 24);
+				sampleRate = (int) readBits(20);
+				numChannels = (int) readBits(3) + 1;
+				
+				if(readBits(5) + 1 != FlacOutputStream.BITS_PER_SAMPLE)
+					throw new IOException("Only 16 bit FLAC is supported");
+				
+				totalSamples = readBits(36);
+				expectedMd5 = new byte[16];
+				
+				for(int i = 0; i < 16; ++i)
+					expectedMd5[i] = (byte) readBits(8);
+				
+			}
+			
+			bitPosition = end * 8;
+			
+		}
+		
+		if(expectedMd5 == null)
+			throw new IOException("Missing STREAMINFO block");
+		
+		if(totalSamples * numChannels > Integer.MAX_VALUE)
+			throw new IOException("Too many samples to decode at once");
+		
+		short[] samples = new short[(int) (totalSamples * numChannels)];
+		int decoded = 0;
+		
+		while(bitPosition / 8 < data.length)
+			decoded += decodeFrame(samples, decoded);
+		
+		if(decoded != samples.length)
+			throw new IOException("Expected " + totalSamples + " samples but found " + decoded / numChannels);
+		
+		MessageDigest md5;
+		
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("MD5 isn't available", e);
+		}
+		
+		byte[] bytes = new byte[samples.length * 2];
+		
+		for(int i = 0; i < samples.length; ++i) {
+			
+			bytes[i * 2] = (byte) samples[i];
+			bytes[i * 2 + 1] = (byte) (samples[i] >> 8);
+			
+		}
+		
+		if(!Arrays.equals(md5.digest(bytes), expectedMd5))
+			throw new IOException("Decoded samples don't match the stream's MD5");
+		
+		return samples;
+		
+	}
+	
+	// Returns the number of samples decoded into "samples" at "offset"
+	private int decodeFrame(short[] samples, int offset) throws IOException {
+		
+		int frameStart = bitPosition / 8;
+		
+		if(readBits(15) != 0x7ffc)
+			throw new IOException("Lost frame sync at byte " + frameStart);
+		
+		readBits(1);
+		
+		int blockSizeCode = (int) readBits(4);
+		int sampleRateCode = (int) readBits(4);
+		int channelAssignment = (int) readBits(4);
+		
+		if(channelAssignment != numChannels - 1)
+			throw new IOException("Only independently coded channels are supported");
+		
+		int sampleSizeCode = (int) readBits(3);
+		
+		if(sampleSizeCode != 0 && sampleSizeCode != 4)
+			throw new IOException("Only 16 bit FLAC is supported");
+		
+		readBits(1);
+		readUtf8();
+		
+		int blockSize;
+		
+		switch(blockSizeCode) {
+		
+		case 0: throw new IOException("Reserved block size");
+		case 1: blockSize = 192; break;
+		case 6: blockSize = (int) readBits(8) + 1; break;
+		case 7: blockSize = (int) readBits(16) + 1; break;
+		default: blockSize = blockSizeCode < 8 ? 576 << (blockSizeCode - 2) : 256 << (blockSizeCode - 8); break;
+		
+		}
+		
+		if(sampleRateCode == 12)
+			readBits(8);
+		else if(sampleRateCode == 13 || sampleRateCode == 14)
+			readBits(16);
+		
+		int headerEnd = bitPosition / 8;
+		
+		if(readBits(8) != FlacOutputStream.crc8(data, frameStart, headerEnd - frameStart))
+			throw new IOException("Frame header CRC mismatch at byte " + frameStart);
+		
+		if(offset + blockSize * numChannels > samples.length)
+			throw new IOException("More samples than STREAMINFO gives");
+		
+		int[] channel = new int[blockSize];
+		
+		for(int c = 0; c < numChannels; ++c) {
+			
+			decodeSubframe(channel, blockSize);
+			
+			for(int i = 0; i < blockSize; ++i)
+				samples[offset + i * numChannels + c] = (short) channel[i];
+			
+		}
+		
+		bitPosition = (bitPosition + 7) & ~7;
+		
+		int frameEnd = bitPosition / 8;
+		
+		if(readBits(16) != FlacOutputStream.crc16(data, frameStart, frameEnd - frameStart))
+			throw new IOException("Frame CRC mismatch at byte " + frameStart);
+		
+		return blockSize * numChannels;
+		
+	}
+	
+	private void decodeSubframe(int[] samples, int blockSize) throws IOException {
+		
+		if(readBits(1) != 0)
+			throw new IOException("Bad subframe padding");
+		
+		int type = (int) readBits(6);
+		
+		if(readBits(1) != 0)
+			throw new IOException("Wasted bits aren't supported");
+		
+		if(type == 0) {
+			
+			Arrays.fill(samples, 0, blockSize, readSigned(16));
+			
+		} else if(type == 1) {
+			
+			for(int i = 0; i < blockSize; ++i)
+				samples[i] = readSigned(16);
+			
+		} else if(type >= 8 && type <= 12) {
+			
+			int order = type - 8;
+			
+			for(int i = 0; i < order; ++i)
+				samples[i] = readSigned(16);
+			
+			decodeResidual(samples, blockSize, order);
+			
+			for(int i = order; i < blockSize; ++i) {
+				
+				switch(order) {
+				
+				case 1: samples[i] += samples[i - 1]; break;
+				case 2: samples[i] += 2 * samples[i - 1] - samples[i - 2]; break;
+				case 3: samples[i] += 3 * samples[i - 1] - 3 * samples[i - 2] + samples[i - 3]; break;
+				case 4: samples[i] += 4 * samples[i - 1] - 6 * samples[i - 2] + 4 * samples[i - 3] - samples[i - 4]; break;
+				
+				}
+				
+			}
+			
+		} else if(type >= 32) {
+			
+			int order = type - 31;
+			
+			for(int i = 0; i < order; ++i)
+				samples[i] = readSigned(16);
+			
+			int precision = (int) readBits(4) + 1;
+			int shift = readSigned(5);
+			
+			if(shift < 0)
+				throw new IOException("Negative LPC shift");
+			
+			int[] coefficients = new int[order];
+			
+			for(int i = 0; i < order; ++i)
+				coefficients[i] = readSigned(precision);
+			
+			decodeResidual(samples, blockSize, order);
+			
+			for(int i = order; i < blockSize; ++i) {
+				
+				long prediction = 0;
+				
+				for(int j = 0; j < order; ++j)
+					prediction += (long) coefficients[j] * samples[i - 1 - j];
+				
+				samples[i] += (int) (prediction >> shift);
+				
+			}
+			
+		} else {
+			
+			throw new IOException("Reserved subframe type " + type);
+			
+		}
+		
+	}
+	
+	// Reads Rice coded residuals into "samples" after the warm-up samples
+	private void decodeResidual(int[] samples, int blockSize, int predictorOrder) throws IOException {
+		
+		int method = (int) readBits(2);
+		
+		if(method > 1)
+			throw new IOException("Reserved residual coding method");
+		
+		int parameterBits = method == 0 ? 4 : 5;
+		int partitionOrder = (int) readBits(4);
+		int partitionLength = blockSize >> partitionOrder;
+		
+		for(int p = 0; p < 1 << partitionOrder; ++p) {
+			
+			int start = p == 0 ? predictorOrder : p * partitionLength;
+			int end = (p + 1) * partitionLength;
+			int k = (int) readBits(parameterBits);
+			
+			if(k == (1 << parameterBits) - 1) {
+				
+				// Escaped: unencoded values of a given size
+				int bits = (int) readBits(5);
+				
+				for(int i = start; i < end; ++i)
+					samples[i] = bits == 0 ? 0 : readSigned(bits);
+				
+				continue;
+				
+			}
+			
+			for(int i = start; i < end; ++i) {
+				
+				long quotient = 0;
+				
+				while(readBits(1) == 0)
+					++quotient;
+				
+				long u = (quotient << k) | readBits(k);
+				
+				samples[i] = (int) ((u >>> 1) ^ -(u & 1));
+				
+			}
+			
+		}
+		
+	}
+	
+	private void readUtf8() throws IOException {
+		
+		int first = (int) readBits(8);
+		int continuations = 0;
+		
+		while(continuations < 7 && (first & (0x80 >> continuations)) != 0)
+			++continuations;
+		
+		if(continuations == 1 || continuations == 7)
+			throw new IOException("Bad frame number");
+		
+		for(int i = 1; i < continuations; ++i)
+			readBits(8);
+		
+	}
+	
+	private int readSigned(int bits) throws IOException {
+		
+		long value = readBits(bits);
+		
+		return (int) ((value << (64 - bits)) >> (64 - bits));
+		
+	}
+	
+	private long readBits(int bits) throws IOException {
+		
+		if(bitPosition + bits > data.length * 8L)
+			throw new EOFException("FLAC stream ends early");
+		
+		long value = 0;
+		
+		for(int i = 0; i < bits; ++i) {
+			
+			int bit = (data[bitPosition >> 3] >> (7 - (bitPosition & 7))) & 1;
+			
+			value = (value << 1) | bit;
+			++bitPosition;
+			
+		}
+		
+		return value;
+		
+	}
+	
+}
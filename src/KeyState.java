@@ -0,0 +1,150 @@
+import java.util.concurrent.atomic.*;
+
+// Which of the 128 MIDI notes are held, with how hard and since when.  One thread (the EDT) writes
+// and never waits; readers take consistent snapshots by retrying if a write was in progress.
+public final class KeyState {
+	
+	public static final int KEY_COUNT = 128;
+	public static final int WORD_COUNT = KEY_COUNT / 64;
+	
+	private final AtomicLongArray pressed;
+	private final AtomicIntegerArray velocities;
+	private final AtomicLongArray pressTimes;
+	
+	// Odd while a write is in progress
+	private final AtomicInteger sequence;
+	
+	public KeyState() {
+		
+		pressed = new AtomicLongArray(WORD_COUNT);
+		velocities = new AtomicIntegerArray(KEY_COUNT);
+		pressTimes = new AtomicLongArray(KEY_COUNT);
+		sequence = new AtomicInteger();
+		
+	}
+	
+	public void press(int note, int velocity) {
+		
+		checkNote(note);
+		
+		if(velocity < 1 || velocity > 255)
+			throw new IllegalArgumentException("Velocity must be within 1 to 255");
+		
+		int word = note >>> 6;
+		long bit = 1L << (note & 63);
+		
+		// Key repeat sends presses for keys already held, which shouldn't restart them
+		if((pressed.get(word) & bit) != 0)
+			return;
+		
+		sequence.incrementAndGet();
+		
+		velocities.set(note, velocity);
+		pressTimes.set(note, System.nanoTime());
+		pressed.set(word, pressed.get(word) | bit);
+		
+		sequence.incrementAndGet();
+		
+	}
+	
+	public void release(int note) {
+		
+		checkNote(note);
+		
+		int word = note >>> 6;
+		long bit = 1L << (note & 63);
+		
+		if((pressed.get(word) & bit) == 0)
+			return;
+		
+		sequence.incrementAndGet();
+		pressed.set(word, pressed.get(word) & ~bit);
+		sequence.incrementAndGet();
+		
+	}
+	
+	public void releaseAll() {
+		
+		sequence.incrementAndGet();
+		
+		for(int i = 0; i < WORD_COUNT; ++i)
+			pressed.set(i, 0L);
+		
+		sequence.incrementAndGet();
+		
+	}
+	
+	public boolean isPressed(int note) {
+		
+		checkNote(note);
+		
+		return (pressed.get(note >>> 6) & (1L << (note & 63))) != 0;
+		
+	}
+	
+	// Copies the held keys into "words" (one bit per note) and their velocities and press times into
+	// the other arrays (which may be null), all as of the same moment
+	public void snapshot(long[] words, int[] velocities, long[] pressTimes) {
+		
+		for(;;) {
+			
+			int before = sequence.get();
+			
+			if((before & 1) != 0)
+				continue;
+			
+			for(int i = 0; i < WORD_COUNT; ++i) {
+				
+				long bits = pressed.get(i);
+				words[i] = bits;
+				
+				while(bits != 0) {
+					
+					int note = (i << 6) + Long.numberOfTrailingZeros(bits);
+					
+					if(velocities != null)
+						velocities[note] = this.velocities.get(note);
+					
+					if(pressTimes != null)
+						pressTimes[note] = this.pressTimes.get(note);
+					
+					bits &= bits - 1;
+					
+				}
+				
+			}
+			
+			if(sequence.get() == before)
+				return;
+			
+		}
+		
+	}
+	
+	// Next held note at or after "note" in a snapshot's words, or -1 if there are none
+	public static int nextPressed(long[] words, int note) {
+		
+		for(int i = note >>> 6; i < WORD_COUNT; ++i) {
+			
+			long bits = words[i];
+			
+			if(i == note >>> 6)
+				bits &= -1L << (note & 63);
+			
+			if(bits != 0)
+				return (i << 6) + Long.numberOfTrailingZeros(bits);
+			
+		}
+		
+		return -1;
+		
+	}
+	
+	private static void checkNote(int note) {
+		
+		if(note < 0 || note >= KEY_COUNT)
+			throw new IllegalArgumentException("Note must be within 0 to " + (KEY_COUNT - 1));
+		
+	}
+	
+}
@@ -0,0 +1,112 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Hands the latest playback state from the sound thread to the UI without locks or allocation.  Three
+// frames are rotated: the writer fills one, the reader shows another, and the third holds whatever
+// was published last, so a slow reader just skips frames.
+public final class LiveStatus {
+	
+	private static final int INDEX_MASK = 3;
+	private static final int FRESH = 4;
+	
+	private final Frame[] frames;
+	
+	// Index of the frame between writer and reader, plus whether it's been published since last read
+	private final AtomicInteger shared;
+	
+	private int writing;
+	private int reading;
+	
+	public LiveStatus() {
+		
+		frames = new Frame[] { new Frame(), new Frame(), new Frame() };
+		shared = new AtomicInteger(2);
+		
+		writing = 0;
+		reading = 1;
+		
+	}
+	
+	// Only the sound thread may call this and "publish"
+	public Frame getWriteFrame() {
+		return frames[writing];
+	}
+	
+	public void publish() {
+		writing = shared.getAndSet(writing | FRESH) & INDEX_MASK;
+	}
+	
+	// Only the UI thread may call this; returns null if nothing new has been published
+	public Frame poll() {
+		
+		if((shared.get() & FRESH) == 0)
+			return null;
+		
+		reading = shared.getAndSet(reading) & INDEX_MASK;
+		
+		return frames[reading];
+		
+	}
+	
+	public static final class Frame {
+		
+		private int sliceIndex;
+		private Polyphony polyphony;
+		private RenderQuality quality;
+		private double load;
+		private double peakLoad;
+		private long overruns;
+		private int voices;
+		private double level;
+		private double latency;
+		private double maxLatency;
+		private long underruns;
+		
+		public void set(int sliceIndex, Polyphony polyphony, AdaptiveQuality adaptiveQuality, int voices, double level) {
+			
+			this.sliceIndex = sliceIndex;
+			this.polyphony = polyphony;
+			this.quality = adaptiveQuality.getQuality();
+			this.load = adaptiveQuality.getLoad();
+			this.peakLoad = adaptiveQuality.getPeakLoad();
+			this.overruns = adaptiveQuality.getOverruns();
+			this.voices = voices;
+			this.level = level;
+			
+		}
+		
+		// "latency" is from the keys being read to the block they're rendered into being heard, and
+		// "maxLatency" adds the longest a key press can wait to be read
+		public void setOutput(double latency, double maxLatency, long underruns) {
+			
+			this.latency = latency;
+			this.maxLatency = maxLatency;
+			this.underruns = underruns;
+			
+		}
+		
+		public int getSliceIndex() {
+			return sliceIndex;
+		}
+		
+		public Polyphony getPolyphony() {
+			return polyphony;
+		}
+		
+		public int getVoices() {
+			return voices;
+		}
+		
+		// Peak sample of the slice
+		public double getLevel() {
+			return level;
+		}
+		
+		public String getStatus() {
+			return AdaptiveQuality.format(quality, load, peakLoad, overruns) + "\nVoices: " + voices + ", Level: " + Math.round(level * 100.0) + "%" +
+				String.format(Locale.ROOT, "\nLatency: %.1f ms, up to %.1f ms, Underruns: %d", latency * 1000.0, maxLatency * 1000.0, underruns);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.*;
+
+// Rendered audio for a loop region [firstSlice, endSlice), so each pass after the first replays it
+// instead of synthesizing it again.  It holds the mix exactly as synthesized, before effects, clipping
+// and conversion, so a replay goes through those just as the first pass did.  Changes to the composition mark just the slices they can be
+// heard in (the changed slice and its release tail) to be rendered again on the next pass.
+public final class LoopBuffer implements Composition.SliceListener {
+	
+	private final Composition composition;
+	private final double sampleRate;
+	private final int firstSlice;
+	private final int endSlice;
+	private final long startSample;
+	private final double[] samples;
+	
+	// One bit per slice in the region, set while its samples need rendering
+	private final AtomicLongArray dirty;
+	
+	public LoopBuffer(Composition composition, double sampleRate, int firstSlice, int endSlice) {
+		
+		if(firstSlice < 0 || endSlice <= firstSlice)
+			throw new IllegalArgumentException("Loop region must contain at least one slice");
+		
+		this.composition = composition;
+		this.sampleRate = sampleRate;
+		this.firstSlice = firstSlice;
+		this.endSlice = endSlice;
+		this.startSample = composition.getSliceStartInSamples(firstSlice, sampleRate);
+		
+		long length = composition.getSliceStartInSamples(endSlice, sampleRate) - startSample;
+		
+		if(length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Loop region is too long");
+		
+		this.samples = new double[(int) length];
+		this.dirty = new AtomicLongArray((endSlice - firstSlice + 63) / 64);
+		
+		for(int i = 0; i < dirty.length(); ++i)
+			dirty.set(i, -1L);
+		
+	}
+	
+	public int getFirstSlice() {
+		return firstSlice;
+	}
+	
+	public int getEndSlice() {
+		return endSlice;
+	}
+	
+	public boolean contains(int sliceIndex) {
+		return sliceIndex >= firstSlice && sliceIndex < endSlice;
+	}
+	
+	@Override
+	public void sliceChanged(int sliceIndex) {
+		
+		int lookback = (int) Math.ceil(composition.getMaxEnvelopeLength() / composition.getSliceLength()) + 1;
+		
+		int first = Math.max(sliceIndex, firstSlice);
+		int last = (int) Math.min((long) sliceIndex + lookback, endSlice - 1);
+		
+		for(int i = first; i <= last; ++i) {
+			
+			int bit = i - firstSlice;
+			long mask = 1L << (bit & 63);
+			
+			for(;;) {
+				
+				long current = dirty.get(bit >>> 6);
+				
+				if((current & mask) != 0 || dirty.compareAndSet(bit >>> 6, current, current | mask))
+					break;
+				
+			}
+			
+		}
+		
+	}
+	
+	// Returns true if the slice needs rendering, in which case the caller must render it and "store"
+	// it.  It's marked clean first, so a change made while rendering marks it dirty again.
+	public boolean claim(int sliceIndex) {
+		
+		int bit = sliceIndex - firstSlice;
+		long mask = 1L << (bit & 63);
+		
+		for(;;) {
+			
+			long current = dirty.get(bit >>> 6);
+			
+			if((current & mask) == 0)
+				return false;
+			
+			if(dirty.compareAndSet(bit >>> 6, current, current & ~mask))
+				return true;
+			
+		}
+		
+	}
+	
+	public void store(int sliceIndex, double[] samples, int offset) {
+		
+		long start = composition.getSliceStartInSamples(sliceIndex, sampleRate);
+		
+		System.arraycopy(samples, offset, this.samples, (int) (start - startSample), composition.getSliceLengthInSamples(sliceIndex, sampleRate));
+		
+	}
+	
+	// Copies a clean slice's samples into "samples", returning how many there are
+	public int read(int sliceIndex, double[] samples, int offset) {
+		
+		long start = composition.getSliceStartInSamples(sliceIndex, sampleRate);
+		int length = composition.getSliceLengthInSamples(sliceIndex, sampleRate);
+		
+		System.arraycopy(this.samples, (int) (start - startSample), samples, offset, length);
+		
+		return length;
+		
+	}
+	
+}
@@ -1,7 +1,8 @@
 import java.awt.event.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
 
-import javax.sound.sampled.*;
 import javax.swing.*;
 import java.util.*;
 
@@ -9,38 +10,97 @@ public final class MainWindow extends JFrame implements KeyListener {
 	
 	private static final long serialVersionUID = 1L;
 
+	// Rate of the waveform's peak index, which doesn't follow live playback's sample rate
 	public static final double PLAYBACK_SAMPLE_RATE = 48000.0;
 	
+	// Silence played with each period size when calibrating the audio output, and the share of each
+	// block's time spent busy between writes, as if rendering it
+	public static final double CALIBRATION_LENGTH = 0.5;
+	public static final double CALIBRATION_LOAD = 0.5;
+	
+	// Shortest stretch of audio playback renders at once; shorter time slices are grouped up to it
+	public static final double LIVE_BLOCK_LENGTH = 0.005;
+	
+	// Computer keyboards can't tell how hard a key was pressed
+	public static final int KEYBOARD_VELOCITY = 64;
+	
+	// Each running instance claims its own journal here, by locking the lock file next to it, so
+	// instances can't overwrite each other's crash protection
+	public static final File JOURNAL_DIRECTORY = new File(System.getProperty("user.home"));
+	private static final String JOURNAL_NAME = ".jsimplesynth-journal";
+	private static final int MAX_JOURNALS = 16;
+	
 	private static final HashMap<Integer, Integer> KEY_CODE_TO_NOTE = generateNoteMappings();
 	
+	// Threads sharing dense slices' voices during live playback, including the sound thread itself
+	private static final int RENDER_WORKERS = Math.min(4, Runtime.getRuntime().availableProcessors());
+	
 	private volatile boolean stop;
 	public volatile Composition currentComposition;
 	private volatile int instrument;
+	private volatile boolean adaptive;
 	private Thread soundThread;
+	private RecordingJournal journal;
+	
+	// Null if every journal was claimed by another instance
+	private File journalFile;
+	private FileChannel journalLock;
+	private volatile PeakIndex peaks;
+	private final Thread peakUpdater;
+	private volatile boolean updatingPeaks;
+	private final javax.swing.Timer peakTimer;
+	private final LiveStatus liveStatus;
+	private final javax.swing.Timer displayTimer;
 	
-	private final TreeSet<Integer> notesPressed;
+	private final KeyState keys;
 	private final JTextArea noteDisplay;
 	private double timeSlice;
 	private final JLabel labelTimeSlice;
+	private int liveVoices;
+	private int parallelVoices;
+	private int exportVoices;
+	private VoiceStealing stealing;
+	private final JLabel labelVoices;
+	private double startTime;
+	private double loopStartTime;
+	private double loopEndTime;
+	private final JLabel labelPlayback;
+	private double audioSampleRate;
+	private int audioPeriodFrames;
+	private int audioPeriods;
+	private final JLabel labelAudio;
+	private Thread calibrationThread;
 	private final JTextArea instructions;
+	private final WaveformView waveform;
 	
 	private final JRadioButton buttonSquare;
 	private final JRadioButton buttonSawtooth;
 	private final JRadioButton buttonTriangle;
 	private final JRadioButton buttonSine;
+	private final JRadioButton buttonSample;
+	private final JButton buttonLoadSample;
+	private final JCheckBox checkAdaptive;
 	
 	private final JButton buttonChangeTimeSlice;
+	private final JButton buttonChangeVoices;
+	private final JButton buttonChangePlayback;
+	private final JButton buttonChangeAudio;
+	private final JButton buttonEffects;
+	private final JButton buttonTuning;
 	private final JButton buttonGo;
 	private final JButton buttonStop;
 	private final JButton buttonSave;
 	private final JButton buttonSaveWav;
+	private final JButton buttonSaveFlac;
 	private final JButton buttonLoad;
+	private final JButton buttonImportMidi;
+	private final JButton buttonExportMidi;
 	
 	public MainWindow() {
 		
 		super("JSimpleSynth");
 		
-		notesPressed = new TreeSet<Integer>();
+		keys = new KeyState();
 		
 		instructions = new JTextArea();
 		instructions.setEditable(false);
@@ -55,6 +115,29 @@ public final class MainWindow extends JFrame implements KeyListener {
 		
 		JLabel labelNotes = new JLabel("Notes:");
 		
+		waveform = new WaveformView();
+		
+		// The sound thread only publishes what's playing; the display catches up at its own pace
+		liveStatus = new LiveStatus();
+		
+		displayTimer = new javax.swing.Timer(50, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onDisplayTimer(); }
+		});
+		
+		// One thread brings the peaks up to date whenever the peak timer finds them out of date
+		peakUpdater = new Thread("Peak updater") {
+			@Override
+			public void run() { runPeakUpdater(); }
+		};
+		
+		peakUpdater.setDaemon(true);
+		
+		peakTimer = new javax.swing.Timer(250, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onPeakTimer(); }
+		});
+		
 		noteDisplay = new JTextArea();
 		noteDisplay.setEditable(false);
 		
@@ -62,12 +145,14 @@ public final class MainWindow extends JFrame implements KeyListener {
 		buttonSawtooth = new JRadioButton("Sawtooth");
 		buttonTriangle = new JRadioButton("Triangle");
 		buttonSine = new JRadioButton("Sine");
+		buttonSample = new JRadioButton("Sample");
 		
 		ButtonGroup group = new ButtonGroup();
 		group.add(buttonSquare);
 		group.add(buttonSawtooth);
 		group.add(buttonTriangle);
 		group.add(buttonSine);
+		group.add(buttonSample);
 		
 		ItemListener il = new ItemListener() {
 			@Override
@@ -78,9 +163,28 @@ public final class MainWindow extends JFrame implements KeyListener {
 		buttonSawtooth.addItemListener(il);
 		buttonTriangle.addItemListener(il);
 		buttonSine.addItemListener(il);
+		buttonSample.addItemListener(il);
+		
+		buttonLoadSample = new JButton("Load Sample...");
+		buttonLoadSample.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onLoadSample(); }
+		});
+		
+		Box sampleBox = Box.createHorizontalBox();
+		sampleBox.add(buttonSample);
+		sampleBox.add(buttonLoadSample);
 		
 		buttonSine.setSelected(true);
 		
+		checkAdaptive = new JCheckBox("Adaptive quality");
+		checkAdaptive.addItemListener(new ItemListener() {
+			@Override
+			public void itemStateChanged(ItemEvent e) { onAdaptive(); }
+		});
+		
+		checkAdaptive.setSelected(true);
+		
 		buttonGo = new JButton("Go!");
 		buttonGo.addActionListener(new ActionListener() {
 			@Override
@@ -105,12 +209,30 @@ public final class MainWindow extends JFrame implements KeyListener {
 			public void actionPerformed(ActionEvent e) { onSaveWav(); }
 		});
 		
+		buttonSaveFlac = new JButton("Save FLAC");
+		buttonSaveFlac.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onSaveFlac(); }
+		});
+		
 		buttonLoad = new JButton("Load");
 		buttonLoad.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) { onLoad(); }
 		});
 		
+		buttonImportMidi = new JButton("Import MIDI");
+		buttonImportMidi.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onImportMidi(); }
+		});
+		
+		buttonExportMidi = new JButton("Export MIDI");
+		buttonExportMidi.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onExportMidi(); }
+		});
+		
 		labelTimeSlice = new JLabel();
 		buttonChangeTimeSlice = new JButton("Change...");
 		buttonChangeTimeSlice.addActionListener(new ActionListener() {
@@ -122,33 +244,105 @@ public final class MainWindow extends JFrame implements KeyListener {
 		timeSliceBox.add(labelTimeSlice);
 		timeSliceBox.add(buttonChangeTimeSlice);
 		
+		labelVoices = new JLabel();
+		buttonChangeVoices = new JButton("Change...");
+		buttonChangeVoices.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onChangeVoices(); }
+		});
+		
+		Box voicesBox = Box.createHorizontalBox();
+		voicesBox.add(labelVoices);
+		voicesBox.add(buttonChangeVoices);
+		
+		labelPlayback = new JLabel();
+		buttonChangePlayback = new JButton("Change...");
+		buttonChangePlayback.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onChangePlayback(); }
+		});
+		
+		Box playbackBox = Box.createHorizontalBox();
+		playbackBox.add(labelPlayback);
+		playbackBox.add(buttonChangePlayback);
+		
+		labelAudio = new JLabel();
+		buttonChangeAudio = new JButton("Change...");
+		buttonChangeAudio.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onChangeAudio(); }
+		});
+		
+		Box audioBox = Box.createHorizontalBox();
+		audioBox.add(labelAudio);
+		audioBox.add(buttonChangeAudio);
+		
+		buttonEffects = new JButton("Effects...");
+		buttonEffects.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onEffects(); }
+		});
+		
+		buttonTuning = new JButton("Tuning...");
+		buttonTuning.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) { onTuning(); }
+		});
+		
 		Box controlBox = Box.createVerticalBox();
 		controlBox.add(buttonSquare);
 		controlBox.add(buttonSawtooth);
 		controlBox.add(buttonTriangle);
 		controlBox.add(buttonSine);
+		controlBox.add(sampleBox);
+		controlBox.add(checkAdaptive);
 		controlBox.add(timeSliceBox);
+		controlBox.add(voicesBox);
+		controlBox.add(playbackBox);
+		controlBox.add(audioBox);
+		controlBox.add(buttonEffects);
+		controlBox.add(buttonTuning);
 		controlBox.add(buttonGo);
 		controlBox.add(buttonStop);
 		controlBox.add(buttonSave);
 		controlBox.add(buttonSaveWav);
+		controlBox.add(buttonSaveFlac);
 		controlBox.add(buttonLoad);
+		controlBox.add(buttonImportMidi);
+		controlBox.add(buttonExportMidi);
 		controlBox.add(labelNotes);
 		controlBox.add(noteDisplay);
 		
-		Box mainBox = Box.createHorizontalBox();
-		mainBox.add(instructions);
-		mainBox.add(controlBox);
+		Box topBox = Box.createHorizontalBox();
+		topBox.add(instructions);
+		topBox.add(controlBox);
+		
+		Box mainBox = Box.createVerticalBox();
+		mainBox.add(topBox);
+		mainBox.add(waveform);
 		
 		instructions.addKeyListener(this);
+		instructions.addFocusListener(new FocusAdapter() {
+			// Releases would go to whatever has focus now, so keys would otherwise stay held
+			@Override
+			public void focusLost(FocusEvent e) { keys.releaseAll(); }
+		});
 		instructions.setFocusable(true);
 		
 		setTimeSlice(1.0 / 60.0);
+		setVoices(Synthesizer.DEFAULT_LIVE_VOICES, Synthesizer.DEFAULT_EXPORT_VOICES, Synthesizer.DEFAULT_STEALING, Synthesizer.DEFAULT_PARALLEL_VOICES);
+		setPlayback(0.0, 0.0, 0.0);
+		claimJournal();
+		setAudio(AudioOutput.DEFAULT_SAMPLE_RATE, AudioOutput.DEFAULT_PERIOD_FRAMES, AudioOutput.DEFAULT_PERIODS, null);
 		setControlAvailability();
 		setContentPane(mainBox);
 		pack();
 		setSize(this.getWidth(), getHeight() + 150);
 		
+		peakUpdater.start();
+		peakTimer.start();
+		displayTimer.start();
+		
 	}
 	
 	private void setTimeSlice(double timeSlice) {
@@ -156,12 +350,192 @@ public final class MainWindow extends JFrame implements KeyListener {
 		if(!Double.isFinite(timeSlice) || timeSlice <= 0.0)
 			return;
 		
-		timeSlice = Math.round(timeSlice * 10000.0) / 10000.0;
+		timeSlice = roundTimeSlice(timeSlice);
 		
 		this.timeSlice = timeSlice;
 		this.labelTimeSlice.setText("Time slice length: " + (timeSlice * 1000.0) + " ms");
-		this.currentComposition = new Composition(timeSlice);
+		setComposition(new Composition(timeSlice), null);
+		
+	}
+	
+	// Peaks follow the current composition and are brought up to date in the background as it changes
+	private void setComposition(Composition composition, PeakIndex peaks) {
+		
+		if(currentComposition != null)
+			currentComposition.removeSliceListener(this.peaks);
+		
+		if(peaks == null) {
+			
+			peaks = new PeakIndex(PLAYBACK_SAMPLE_RATE);
+			peaks.invalidate(composition);
+			
+		}
+		
+		composition.addSliceListener(peaks);
+		
+		this.currentComposition = composition;
+		this.peaks = peaks;
+		waveform.setPeakIndex(peaks);
+		
+	}
+	
+	private void onPeakTimer() {
+		
+		// Show the update's progress
+		if(updatingPeaks)
+			waveform.repaint();
+		else if(peaks.isDirty())
+			LockSupport.unpark(peakUpdater);
+		
+	}
+	
+	private void runPeakUpdater() {
+		
+		for(;;) {
+			
+			LockSupport.park(this);
+			
+			// setComposition replaces the composition before its peaks, so these always go together
+			PeakIndex peaks = this.peaks;
+			Composition composition = currentComposition;
+			
+			updatingPeaks = true;
+			
+			// A failed update is reported, and later changes are still picked up
+			try {
+				peaks.update(composition);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				updatingPeaks = false;
+			}
+			
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() { waveform.repaint(); }
+			});
+			
+		}
+		
+	}
+	
+	// A parallel voice count of 0 keeps live rendering on the sound thread
+	private void setVoices(int liveVoices, int exportVoices, VoiceStealing stealing, int parallelVoices) {
+		
+		if(liveVoices <= 0 || exportVoices <= 0 || parallelVoices < 0)
+			return;
+		
+		this.liveVoices = liveVoices;
+		this.exportVoices = exportVoices;
+		this.stealing = stealing;
+		this.parallelVoices = parallelVoices;
+		this.labelVoices.setText("Voices: " + liveVoices + " live, " + exportVoices + " export");
+		
+	}
+	
+	// Times are kept in seconds so they still make sense if the time slice length changes
+	private void setPlayback(double startTime, double loopStartTime, double loopEndTime) {
+		
+		if(!(startTime >= 0.0) || !(loopStartTime >= 0.0) || !(loopEndTime >= 0.0))
+			return;
+		
+		this.startTime = startTime;
+		this.loopStartTime = loopStartTime;
+		this.loopEndTime = loopEndTime;
+		
+		String text = "Start: " + startTime + " s, ";
+		
+		if(loopEndTime > loopStartTime && startTime >= loopEndTime)
+			text += "past the loop, so it starts at the loop: " + loopStartTime + " s to " + loopEndTime + " s";
+		else if(loopEndTime > loopStartTime)
+			text += "loop: " + loopStartTime + " s to " + loopEndTime + " s";
+		else
+			text += "no loop";
+		
+		labelPlayback.setText(text);
+		
+	}
+	
+	// "calibrated" is the latency calibration measured for these settings, if they came from calibration
+	private void setAudio(double sampleRate, int periodFrames, int periods, AudioOutput.Trial calibrated) {
+		
+		if(!(sampleRate > 0.0) || periodFrames <= 0 || periods <= 0)
+			return;
+		
+		this.audioSampleRate = sampleRate;
+		this.audioPeriodFrames = periodFrames;
+		this.audioPeriods = periods;
+		
+		String text = String.format(Locale.ROOT, "Audio: %d Hz, %d x %d frames (%.1f ms)", (long) sampleRate, periods, periodFrames, periods * periodFrames * 1000.0 / sampleRate);
+		
+		if(calibrated != null)
+			text += String.format(Locale.ROOT, ", calibrated at %.1f ms", calibrated.getLatency() * 1000.0);
+		
+		labelAudio.setText(text);
+		
+	}
+	
+	// Finds the smallest period size that plays without underruns, in the background since it takes a
+	// few seconds.  Playback waits for it, since it needs the sound card, so it only runs when asked for.
+	private void startCalibration() {
+		
+		double sampleRate = audioSampleRate;
+		int periods = audioPeriods;
+		int blockFrames = (int) Math.ceil(Math.max(LIVE_BLOCK_LENGTH, timeSlice) * sampleRate);
+		
+		calibrationThread = new Thread("Audio calibration") {
+			@Override
+			public void run() {
+				
+				AudioOutput.Calibration calibration = null;
+				Exception error = null;
+				
+				try {
+					calibration = AudioOutput.calibrate(sampleRate, periods, blockFrames, CALIBRATION_LENGTH, CALIBRATION_LOAD);
+				} catch(Exception e) {
+					error = e;
+				}
+				
+				AudioOutput.Calibration result = calibration;
+				Exception resultError = error;
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() { onCalibrationFinished(result, resultError); }
+				});
+				
+			}
+		};
+		
+		calibrationThread.setDaemon(true);
+		calibrationThread.start();
+		
+	}
+	
+	private void onCalibrationFinished(AudioOutput.Calibration calibration, Exception error) {
 		
+		calibrationThread = null;
+		setControlAvailability();
+		
+		if(calibration == null) {
+			
+			JOptionPane.showMessageDialog(this, "Audio calibration failed, so the settings are unchanged: " + error.getMessage());
+			return;
+			
+		}
+		
+		AudioOutput.Trial best = calibration.getBest();
+		setAudio(calibration.getSampleRate(), best.getPeriodFrames(), calibration.getPeriods(), best);
+		
+		JTextArea table = new JTextArea("Period sizes tried at " + (long) calibration.getSampleRate() + " Hz (* is the one chosen):\n\n" + calibration);
+		table.setEditable(false);
+		
+		JOptionPane.showMessageDialog(this, table, "Audio Calibration", JOptionPane.INFORMATION_MESSAGE);
+		
+	}
+	
+	private static double roundTimeSlice(double timeSlice) {
+		return Math.round(timeSlice * 10000.0) / 10000.0;
 	}
 	
 	private boolean isRunning() {
@@ -173,11 +547,15 @@ public final class MainWindow extends JFrame implements KeyListener {
 		boolean running = isRunning();
 		
 		buttonChangeTimeSlice.setEnabled(!running);
-		buttonGo.setEnabled(!running);
+		buttonChangeVoices.setEnabled(!running);
+		buttonChangePlayback.setEnabled(!running);
+		buttonChangeAudio.setEnabled(!running && calibrationThread == null);
+		buttonEffects.setEnabled(!running);
+		buttonTuning.setEnabled(!running);
+		buttonGo.setEnabled(!running && calibrationThread == null);
 		buttonStop.setEnabled(running);
-		buttonSave.setEnabled(!running);
-		buttonSaveWav.setEnabled(!running);
 		buttonLoad.setEnabled(!running);
+		buttonImportMidi.setEnabled(!running);
 		
 	}
 	
@@ -192,6 +570,9 @@ public final class MainWindow extends JFrame implements KeyListener {
 		else if(buttonTriangle.isSelected())
 			instrument = Tone.TRIANGLE;
 		
+		else if(buttonSample.isSelected())
+			instrument = Tone.SAMPLE;
+		
 		else
 			instrument = Tone.SINE;
 		
@@ -199,21 +580,53 @@ public final class MainWindow extends JFrame implements KeyListener {
 		
 	}
 	
-	private void onChangeTimeSlice() {
+	// The recording becomes part of the composition, played by the "Sample" instrument
+	private void onLoadSample() {
 		
-		if(isRunning())
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		
+		String answer = JOptionPane.showInputDialog(this, "Which MIDI note does the recording play at its own speed?  (60 is middle C)", Integer.toString(SampleInstrument.DEFAULT_ROOT_NOTE));
+		if(answer == null)
 			return;
 		
-		// We can't change an existing composition's time slice length
-		if(!currentComposition.isEmpty()) {
+		SampleInstrument sampleInstrument;
+		
+		try {
 			
-			int confirm = JOptionPane.showConfirmDialog(this, "Time slice length can't be changed for existing compositions.  Lose current composition?", "Confirm", JOptionPane.OK_CANCEL_OPTION);
+			sampleInstrument = new SampleInstrument(file, Integer.parseInt(answer.trim()));
 			
-			if(confirm != JOptionPane.OK_OPTION)
-				return;
+			// A bad file is reported here rather than just playing silence
+			if(sampleInstrument.getError() != null)
+				throw sampleInstrument.getError();
 			
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error loading sample: " + e.getMessage());
+			return;
 		}
 		
+		currentComposition.setSampleInstrument(sampleInstrument);
+		buttonSample.setSelected(true);
+		
+		instructions.grabFocus();
+		
+	}
+	
+	private void onAdaptive() {
+		
+		adaptive = checkAdaptive.isSelected();
+		instructions.grabFocus();
+		
+	}
+	
+	private void onChangeTimeSlice() {
+		
+		if(isRunning())
+			return;
+		
 		// Prompt for time slice length
 		String answer = JOptionPane.showInputDialog(this, "Choose a time slice length in milliseconds:", "Time Slice Length", JOptionPane.OK_CANCEL_OPTION);
 		if(answer == null)
@@ -222,209 +635,846 @@ public final class MainWindow extends JFrame implements KeyListener {
 		double timeSliceLength;
 		
 		try {
-			timeSliceLength = Double.parseDouble(answer) / 1000.0;
+			timeSliceLength = roundTimeSlice(Double.parseDouble(answer) / 1000.0);
 		} catch(Exception e) {
 			return;
 		}
 		
+		if(!Double.isFinite(timeSliceLength) || timeSliceLength <= 0.0)
+			return;
+		
+		Composition composition = currentComposition;
+		PeakIndex peaks = this.peaks;
+		
 		// Set time slice length and create new composition for that time slice length
 		setTimeSlice(timeSliceLength);
 		
-	}
-	
-	private void onGo() {
+		if(composition.isEmpty())
+			return;
 		
-		if(!isRunning()) {
-			
-			stop = false;
-			
-			double timeSlice = this.timeSlice;
+		// Convert the existing composition to the new time slice length, checking first if that would move notes
+		ResliceResult result = composition.reslice(timeSliceLength);
+		
+		if(!result.isLossless()) {
 			
-			soundThread = new Thread() {
-				@Override
-				public void run() { runSoundThread(timeSlice); }
-			};
+			String message = "Converting the current composition will move notes by up to " + Math.round(result.getMaxTimingError() * 1000.0 * 100.0) / 100.0 + " ms.  Convert it anyway?  (Choosing \"No\" starts a new composition.)";
+			int confirm = JOptionPane.showConfirmDialog(this, message, "Confirm", JOptionPane.YES_NO_CANCEL_OPTION);
 			
-			soundThread.start();
+			if(confirm == JOptionPane.NO_OPTION)
+				return;
 			
-			setControlAvailability();
-			instructions.grabFocus();
+			if(confirm != JOptionPane.YES_OPTION) {
+				
+				setTimeSlice(composition.getSliceLength());
+				setComposition(composition, peaks);
+				return;
+				
+			}
 			
 		}
 		
-	}
-	
-	private void onStop() {
+		setComposition(result.getComposition(), null);
 		
-		if(isRunning()) {
-			
-			stop = true;
-			soundThread.interrupt();
-			soundThread = null;
-			
-			setControlAvailability();
-			
-		}
+		if(result.isLossless())
+			JOptionPane.showMessageDialog(this, "The composition was converted without moving any notes.");
 		
 	}
 	
-	private void onSave() {
+	private void onChangeVoices() {
 		
 		if(isRunning())
 			return;
 		
-		JFileChooser chooser = new JFileChooser();
-		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+		String live = JOptionPane.showInputDialog(this, "Maximum voices during live playback:", Integer.toString(liveVoices));
+		if(live == null)
 			return;
 		
-		File file = chooser.getSelectedFile();
-		BufferedOutputStream os = null;
+		String export = JOptionPane.showInputDialog(this, "Maximum voices when saving WAV files:", Integer.toString(exportVoices));
+		if(export == null)
+			return;
+		
+		Object policy = JOptionPane.showInputDialog(this, "Which voices should be stolen when the limit is reached?", "Voice Stealing", JOptionPane.QUESTION_MESSAGE, null, VoiceStealing.values(), stealing);
+		if(policy == null)
+			return;
+		
+		String parallel = JOptionPane.showInputDialog(this, "Share live slices between " + RENDER_WORKERS + " threads once this many voices are playing (0 for never):", Integer.toString(parallelVoices));
+		if(parallel == null)
+			return;
 		
 		try {
-			
-			os = new BufferedOutputStream(new FileOutputStream(file));
-			currentComposition.writeTo(os);
-			os.close();
-			
+			setVoices(Integer.parseInt(live.trim()), Integer.parseInt(export.trim()), (VoiceStealing) policy, Integer.parseInt(parallel.trim()));
 		} catch(Exception e) {
-			JOptionPane.showMessageDialog(this, "Error saving file: " + e.getMessage());
+			return;
 		}
 		
+		instructions.grabFocus();
+		
 	}
 	
-	private void onSaveWav() {
+	private void onChangePlayback() {
 		
 		if(isRunning())
 			return;
 		
-		JFileChooser chooser = new JFileChooser();
-		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+		String start = JOptionPane.showInputDialog(this, "Start playing from (seconds):", Double.toString(startTime));
+		if(start == null)
 			return;
 		
-		File file = chooser.getSelectedFile();
+		String loopStart = JOptionPane.showInputDialog(this, "Loop from (seconds):", Double.toString(loopStartTime));
+		if(loopStart == null)
+			return;
 		
-		String answer = JOptionPane.showInputDialog(this, "What sample rate?  (Try 48000 if you don't know what to put)", "Sample Rate", JOptionPane.QUESTION_MESSAGE);
-		if(answer == null)
+		String loopEnd = JOptionPane.showInputDialog(this, "Loop back at (seconds, or the same as above for no loop):", Double.toString(loopEndTime));
+		if(loopEnd == null)
 			return;
 		
 		try {
-			
-			double sampleRate = Double.parseDouble(answer);
-			
-			currentComposition.saveWav(file, sampleRate);
-			
-			
+			setPlayback(Double.parseDouble(start.trim()), Double.parseDouble(loopStart.trim()), Double.parseDouble(loopEnd.trim()));
 		} catch(Exception e) {
-			JOptionPane.showMessageDialog(this, "Error saving file: " + e.getMessage());
+			return;
 		}
 		
+		instructions.grabFocus();
+		
 	}
 	
-	private void onLoad() {
+	private void onChangeAudio() {
 		
-		if(isRunning())
+		if(isRunning() || calibrationThread != null)
 			return;
 		
-		JFileChooser chooser = new JFileChooser();
-		if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+		String rate = JOptionPane.showInputDialog(this, "Live playback sample rate (Hz):", Long.toString((long) audioSampleRate));
+		if(rate == null)
 			return;
 		
-		File file = chooser.getSelectedFile();
-		BufferedInputStream is = null;
+		String periods = JOptionPane.showInputDialog(this, "Periods in the sound card's buffer:", Integer.toString(audioPeriods));
+		if(periods == null)
+			return;
+		
+		String periodFrames = JOptionPane.showInputDialog(this, "Frames per period (0 to find the smallest that plays smoothly):", Integer.toString(audioPeriodFrames));
+		if(periodFrames == null)
+			return;
 		
 		try {
 			
-			is = new BufferedInputStream(new FileInputStream(file));
+			int frames = Integer.parseInt(periodFrames.trim());
 			
-			Composition composition = Composition.readFrom(is);
-			is.close();
+			setAudio(Double.parseDouble(rate.trim()), frames > 0 ? frames : audioPeriodFrames, Integer.parseInt(periods.trim()), null);
 			
-			setTimeSlice(composition.getSliceLength());
-			currentComposition = composition;
+			if(frames == 0) {
+				
+				startCalibration();
+				setControlAvailability();
+				
+			}
 			
 		} catch(Exception e) {
-			JOptionPane.showMessageDialog(this, "Error loading file: " + e.getMessage());
+			return;
 		}
 		
+		instructions.grabFocus();
+		
 	}
 	
-	private void runSoundThread(double timeSlice) {
+	private void onEffects() {
 		
-		Composition composition = this.currentComposition;
+		if(isRunning())
+			return;
 		
-		int sampleCount = composition.getMaxSliceLengthInSamples(PLAYBACK_SAMPLE_RATE);
-		double[] samples = new double[sampleCount];
-		byte[] bytes = new byte[samples.length * 2];
+		String message = "Effects applied to the mix, in order and separated by semicolons:\n" +
+			"  delay <seconds> <feedback> <mix>\n" +
+			"  lowpass|highpass|bandpass <frequency> [<Q>]\n" +
+			"  reverb <decay seconds> <mix>\n" +
+			"For example: lowpass 4000; delay 0.3 0.4 0.25; reverb 1.5 0.2";
+		
+		String answer = JOptionPane.showInputDialog(this, message, currentComposition.getEffects().toString());
+		if(answer == null)
+			return;
+		
+		try {
+			currentComposition.setEffects(EffectChain.parse(answer));
+		} catch(IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(this, "Error in effects: " + e.getMessage());
+			return;
+		}
+		
+		// The waveform shows the mix after effects
+		PeakIndex peaks = this.peaks;
+		
+		if(peaks != null)
+			peaks.invalidate(currentComposition);
+		
+		instructions.grabFocus();
+		
+	}
+	
+	private void onTuning() {
+		
+		if(isRunning())
+			return;
+		
+		String[] kinds = { "Equal temperament", "Just intonation", "Scala file (.scl)" };
+		
+		Object kind = JOptionPane.showInputDialog(this, "Current tuning: " + currentComposition.getTuning() + "\nNew tuning:", "Tuning", JOptionPane.QUESTION_MESSAGE, null, kinds, kinds[0]);
+		if(kind == null)
+			return;
 		
-		AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, (float) PLAYBACK_SAMPLE_RATE, 16, 1, 2, (float) PLAYBACK_SAMPLE_RATE, true);
-		SourceDataLine line;
+		String answer = JOptionPane.showInputDialog(this, "Frequency of A4 in Hz:", Double.toString(Tuning.DEFAULT_A4));
+		if(answer == null)
+			return;
 		
-		int sliceIndex = 0;
+		Tuning tuning;
 		
 		try {
 			
-			line = AudioSystem.getSourceDataLine(format);
-			line.open(format, bytes.length * 1);
-			line.start();
+			double a4 = Double.parseDouble(answer.trim());
 			
-		} catch (LineUnavailableException e) {
-			e.printStackTrace();
-			System.exit(1);
+			if(kind == kinds[0]) {
+				
+				tuning = Tuning.equal(a4);
+				
+			} else if(kind == kinds[1]) {
+				
+				String[] tonics = new String[12];
+				
+				for(int i = 0; i < tonics.length; ++i)
+					tonics[i] = Tuning.pitchClassName(i);
+				
+				Object tonic = JOptionPane.showInputDialog(this, "Key to tune to:", "Just Intonation", JOptionPane.QUESTION_MESSAGE, null, tonics, tonics[0]);
+				if(tonic == null)
+					return;
+				
+				tuning = Tuning.just(a4, Arrays.asList(tonics).indexOf(tonic));
+				
+			} else {
+				
+				JFileChooser chooser = new JFileChooser();
+				if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+					return;
+				
+				// Middle C plays the scale's first degree, at its equal temperament pitch
+				double middleC = Tuning.equal(a4).getFrequency(Tuning.MIDDLE_C_NOTE);
+				
+				tuning = Tuning.readScala(chooser.getSelectedFile(), Tuning.MIDDLE_C_NOTE, middleC);
+				
+			}
+			
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error in tuning: " + e.getMessage());
 			return;
 		}
 		
-		for(; ; ++sliceIndex) {
+		currentComposition.setTuning(tuning);
+		instructions.grabFocus();
+		
+	}
+	
+	private void onGo() {
+		
+		if(!isRunning() && calibrationThread == null) {
+			
+			AudioOutput output;
+			
+			try {
+				output = new AudioOutput(audioSampleRate, audioPeriodFrames, audioPeriods);
+			} catch(Exception e) {
+				JOptionPane.showMessageDialog(this, "Error opening audio output: " + e.getMessage());
+				return;
+			}
+			
+			stop = false;
+			
+			double timeSlice = this.timeSlice;
+			RecordingJournal journal = openJournal();
+			
+			int startSlice = (int) Math.round(startTime / timeSlice);
+			int loopStartSlice = (int) Math.round(loopStartTime / timeSlice);
+			int loopEndSlice = (int) Math.round(loopEndTime / timeSlice);
 			
-			if(stop || Thread.interrupted())
-				break;
+			soundThread = new Thread() {
+				@Override
+				public void run() { runSoundThread(output, timeSlice, journal, startSlice, loopStartSlice, loopEndSlice); }
+			};
 			
-			// Write samples
-			int end = sampleCount * 2;
-			int written = 0;
+			soundThread.start();
 			
-			while(written < end)
-				written += line.write(bytes, written, end - written);
+			setControlAvailability();
+			instructions.grabFocus();
 			
+		}
+		
+	}
+	
+	// The first journal no other instance holds the lock of.  The lock is kept until the program exits.
+	private void claimJournal() {
+		
+		for(int i = 0; i < MAX_JOURNALS; ++i) {
 			
+			String name = i == 0 ? JOURNAL_NAME : JOURNAL_NAME + "-" + i;
 			
-			// Get current notes
-			synchronized(notesPressed) {
+			try {
 				
-				for(Integer note : notesPressed)
-					composition.addTone(sliceIndex, new Tone(instrument, note, 64));
+				FileChannel channel = new RandomAccessFile(new File(JOURNAL_DIRECTORY, name + ".lock"), "rw").getChannel();
 				
+				if(channel.tryLock() != null) {
+					
+					journalFile = new File(JOURNAL_DIRECTORY, name + ".jsj");
+					journalLock = channel;
+					return;
+					
+				}
+				
+				channel.close();
+				
+			} catch(IOException e) {
+				// Try the next one
 			}
 			
-			// Display notes
-			Polyphony p = composition.getSlice(sliceIndex);
+		}
+		
+	}
+	
+	// Keeps one journal per composition, across as many recording sessions as it takes
+	private RecordingJournal openJournal() {
+		
+		if(journal != null && journal.getComposition() == currentComposition)
+			return journal;
+		
+		discardJournal();
+		
+		if(journalFile == null) {
 			
-			SwingUtilities.invokeLater(new Runnable() {
-				@Override
-				public void run() { displayPolyphony(p); }
-			});
+			JOptionPane.showMessageDialog(this, "Recording won't be protected against crashes: every journal is in use by another instance.");
+			return null;
 			
-			// Generate notes
-			sampleCount = composition.generateSamples(samples, sliceIndex, PLAYBACK_SAMPLE_RATE);
+		}
+		
+		try {
+			journal = new RecordingJournal(journalFile, currentComposition, RecordingJournal.DEFAULT_SYNC_INTERVAL);
+		} catch(IOException e) {
+			JOptionPane.showMessageDialog(this, "Recording won't be protected against crashes: " + e.getMessage());
+		}
+		
+		return journal;
+		
+	}
+	
+	private void discardJournal() {
+		
+		if(journal != null)
+			journal.discard();
+		
+		journal = null;
+		
+	}
+	
+	// Offers to restore a recording left behind by a session that ended without saving it
+	public void recoverJournal() {
+		
+		if(journalFile == null || !journalFile.exists())
+			return;
+		
+		Composition recovered;
+		
+		try {
+			recovered = RecordingJournal.recover(journalFile);
+		} catch(IOException e) {
+			JOptionPane.showMessageDialog(this, "Error recovering unsaved recording: " + e.getMessage());
+			return;
+		}
+		
+		if(!recovered.isEmpty()) {
 			
-			for(int i = 0, j = 0; i < sampleCount; ++i) {
+			int confirm = JOptionPane.showConfirmDialog(this, "A recording from a previous session was never saved.  Recover it?", "Recover", JOptionPane.YES_NO_OPTION);
+			
+			if(confirm == JOptionPane.YES_OPTION) {
 				
-				short sample = (short) (samples[i] * Short.MAX_VALUE);
+				setTimeSlice(recovered.getSliceLength());
+				setComposition(recovered, null);
 				
-				bytes[j++] = (byte) ((sample >>> 8) & 0xff);
-				bytes[j++] = (byte) ((sample      ) & 0xff);
+				// The recovered piece is protected until it's saved, which discards the journal
+				openJournal();
+				return;
 				
 			}
 			
 		}
 		
-		line.stop();
-		line.close();
+		journalFile.delete();
+		
+	}
+	
+	private void onStop() {
+		
+		if(isRunning()) {
+			
+			stop = true;
+			soundThread.interrupt();
+			soundThread = null;
+			
+			setControlAvailability();
+			
+		}
+		
+	}
+	
+	private void onSave() {
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		Composition composition = currentComposition;
+		Composition snapshot = composition.snapshot();
+		PeakIndex peaks = this.peaks;
+		boolean recording = isRunning();
+		
+		runInBackground(new BackgroundTask("Error saving file: ") {
+			@Override
+			void execute() throws Exception {
+				
+				BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+				
+				try {
+					snapshot.writeTo(os);
+				} finally {
+					os.close();
+				}
+				
+				// Peaks still waiting on changes would be out of date, so they're left to be rebuilt on loading
+				if(!peaks.isDirty())
+					peaks.save(file);
+				
+			}
+			
+			@Override
+			void succeeded() {
+				
+				// The journal isn't needed once everything it protects has been saved
+				if(!recording && !isRunning() && journal != null && journal.getComposition() == composition)
+					discardJournal();
+				
+			}
+		});
+		
+	}
+	
+	private void onSaveWav() {
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		
+		String answer = JOptionPane.showInputDialog(this, "What sample rate?  (Try 48000 if you don't know what to put)", "Sample Rate", JOptionPane.QUESTION_MESSAGE);
+		if(answer == null)
+			return;
+		
+		double sampleRate;
+		
+		try {
+			sampleRate = Double.parseDouble(answer);
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error saving file: " + e.getMessage());
+			return;
+		}
+		
+		Composition snapshot = currentComposition.snapshot();
+		int exportVoices = this.exportVoices;
+		VoiceStealing stealing = this.stealing;
+		
+		runInBackground(new BackgroundTask("Error saving file: ") {
+			@Override
+			void execute() throws Exception {
+				
+				PeakIndex peaks = new PeakIndex(sampleRate);
+				
+				snapshot.saveWav(file, sampleRate, exportVoices, stealing, peaks);
+				peaks.save(file);
+				
+			}
+		});
+		
+	}
+	
+	private void onSaveFlac() {
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		
+		String answer = JOptionPane.showInputDialog(this, "What sample rate?  (Try 48000 if you don't know what to put)", "Sample Rate", JOptionPane.QUESTION_MESSAGE);
+		if(answer == null)
+			return;
+		
+		String level = JOptionPane.showInputDialog(this, "Compression level, from 0 (fastest) to 8 (smallest):", Integer.toString(FlacOutputStream.DEFAULT_COMPRESSION_LEVEL));
+		if(level == null)
+			return;
+		
+		double sampleRate;
+		int compressionLevel;
+		
+		try {
+			
+			sampleRate = Double.parseDouble(answer);
+			compressionLevel = Integer.parseInt(level.trim());
+			
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error saving file: " + e.getMessage());
+			return;
+		}
+		
+		Composition snapshot = currentComposition.snapshot();
+		int exportVoices = this.exportVoices;
+		VoiceStealing stealing = this.stealing;
+		
+		runInBackground(new BackgroundTask("Error saving file: ") {
+			@Override
+			void execute() throws Exception {
+				
+				PeakIndex peaks = new PeakIndex(sampleRate);
+				
+				snapshot.saveFlac(file, sampleRate, exportVoices, stealing, compressionLevel, peaks);
+				
+				// Decoding it again catches an encoder bug before the file is relied on
+				FlacReader.verify(file);
+				peaks.save(file);
+				
+			}
+		});
+		
+	}
+	
+	private void onLoad() {
+		
+		if(isRunning())
+			return;
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		BufferedInputStream is = null;
+		
+		try {
+			
+			is = new BufferedInputStream(new FileInputStream(file));
+			
+			Composition composition = Composition.readFrom(is);
+			is.close();
+			
+			PeakIndex peaks = null;
+			
+			// Peaks that can't be used are just rebuilt
+			try {
+				peaks = PeakIndex.load(file);
+			} catch(IOException e) {
+				JOptionPane.showMessageDialog(this, "The waveform saved with this file couldn't be read, so it will be rebuilt: " + e.getMessage());
+			}
+			
+			if(peaks != null && peaks.getSampleRate() != PLAYBACK_SAMPLE_RATE)
+				peaks = null;
+			
+			setTimeSlice(composition.getSliceLength());
+			setComposition(composition, peaks);
+			
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error loading file: " + e.getMessage());
+		}
+		
+	}
+	
+	private void onImportMidi() {
+		
+		if(isRunning())
+			return;
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		
+		try {
+			
+			// Notes come in at the current time slice length, played by the selected instrument
+			setComposition(new MidiConverter(timeSlice, instrument).read(file), null);
+			
+		} catch(Exception e) {
+			JOptionPane.showMessageDialog(this, "Error importing file: " + e.getMessage());
+		}
+		
+	}
+	
+	private void onExportMidi() {
+		
+		JFileChooser chooser = new JFileChooser();
+		if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		
+		File file = chooser.getSelectedFile();
+		Composition snapshot = currentComposition.snapshot();
+		MidiConverter converter = new MidiConverter(timeSlice, instrument);
+		
+		runInBackground(new BackgroundTask("Error exporting file: ") {
+			@Override
+			void execute() throws Exception { converter.write(snapshot, file); }
+		});
+		
+	}
+	
+	// Saving works from a snapshot on its own thread, so it can run while recording continues
+	private void runInBackground(BackgroundTask task) {
+		
+		new Thread(task).start();
+		
+	}
+	
+	private abstract class BackgroundTask implements Runnable {
+		
+		private final String errorMessage;
+		
+		BackgroundTask(String errorMessage) {
+			this.errorMessage = errorMessage;
+		}
+		
+		abstract void execute() throws Exception;
+		
+		// Called on the EDT after "execute" finishes without error
+		void succeeded() {}
+		
+		@Override
+		public void run() {
+			
+			try {
+				
+				execute();
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() { succeeded(); }
+				});
+				
+			} catch(Exception e) {
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() { JOptionPane.showMessageDialog(MainWindow.this, errorMessage + e.getMessage()); }
+				});
+				
+			}
+			
+		}
+		
+	}
+	
+	// Plays from "startSlice", going back to "loopStartSlice" on reaching "loopEndSlice" if the loop isn't
+	// empty.  Closes "output" when playback stops.
+	private void runSoundThread(AudioOutput output, double timeSlice, RecordingJournal journal, int startSlice, int loopStartSlice, int loopEndSlice) {
+		
+		Composition composition = this.currentComposition;
+		double sampleRate = output.getSampleRate();
+		
+		Synthesizer synthesizer = new Synthesizer(composition, sampleRate, liveVoices, stealing);
+		EffectChain.Processor effects = composition.getEffects().newProcessor(sampleRate);
+		AdaptiveQuality adaptiveQuality = new AdaptiveQuality();
+		
+		synthesizer.seek(startSlice);
+		
+		LoopBuffer loop = null;
+		
+		if(loopEndSlice > loopStartSlice) {
+			
+			loop = new LoopBuffer(composition, sampleRate, loopStartSlice, loopEndSlice);
+			composition.addSliceListener(loop);
+			
+		}
+		
+		int blockSlices = Math.max(1, (int) (LIVE_BLOCK_LENGTH / timeSlice));
+		int sampleCount = blockSlices * composition.getMaxSliceLengthInSamples(sampleRate);
+		double[] samples = new double[sampleCount];
+		short[] shorts = new short[sampleCount];
+		RenderWorkers workers = null;
+		
+		// Slices with few voices stay on this thread, since handing them out would cost more than it saves
+		if(parallelVoices > 0 && RENDER_WORKERS > 1) {
+			
+			workers = new RenderWorkers(RENDER_WORKERS, sampleCount);
+			synthesizer.getVoices().setWorkers(workers, parallelVoices);
+			
+		}
+		
+		long[] pressedWords = new long[KeyState.WORD_COUNT];
+		int[] velocities = new int[KeyState.KEY_COUNT];
+		
+		int sliceIndex = startSlice;
+		
+		// Playback starts with a block of silence, which the first block rendered follows
+		boolean silence = true;
+		
+		try {
+			
+			for(;;) {
+				
+				if(stop || Thread.interrupted())
+					break;
+				
+				// Starting at or past the loop's end jumps straight into it
+				if(loop != null && sliceIndex >= loop.getEndSlice())
+					sliceIndex = loop.getFirstSlice();
+				
+				// Slices in the loop go one at a time, since each may come from the loop buffer
+				int blockEnd = sliceIndex + blockSlices;
+				
+				if(loop != null && loop.contains(sliceIndex))
+					blockEnd = sliceIndex + 1;
+				else if(loop != null && sliceIndex < loop.getFirstSlice())
+					blockEnd = Math.min(blockEnd, loop.getFirstSlice());
+				
+				int blockLength = blockEnd - sliceIndex;
+				
+				// Write samples a slice's share at a time, getting the current notes for each of the new
+				// block's slices after its share, so notes are still read once per slice however many
+				// slices a block holds.  They're heard once everything queued ahead of them has played.
+				for(int i = 0; i < blockLength; ++i) {
+					
+					int shareStart = (int) ((long) sampleCount * i / blockLength);
+					int shareEnd = (int) ((long) sampleCount * (i + 1) / blockLength);
+					
+					if(silence)
+						output.writeSilence(shareEnd - shareStart);
+					else
+						output.write(shorts, shareStart, shareEnd - shareStart);
+					
+					keys.snapshot(pressedWords, velocities, null);
+					
+					for(int note = KeyState.nextPressed(pressedWords, 0); note >= 0; note = KeyState.nextPressed(pressedWords, note + 1))
+						composition.addTone(sliceIndex + i, new Tone(instrument, note, velocities[note]));
+					
+				}
+				
+				// A key pressed just after a snapshot waits about a share longer to be read
+				double latency = output.getLatency();
+				double maxLatency = latency + sampleCount / (double) blockLength / sampleRate;
+				
+				// Generate notes, unless they're already in the loop buffer and haven't changed since
+				long renderStart = System.nanoTime();
+				
+				boolean inLoop = loop != null && loop.contains(sliceIndex);
+				boolean rendered = false;
+				
+				silence = false;
+				
+				// The loop buffer holds the mix before effects, since what the effects add to a slice depends
+				// on everything played before it
+				if(inLoop && !loop.claim(sliceIndex)) {
+					
+					sampleCount = loop.read(sliceIndex, samples, 0);
+					rendered = true;
+					
+				} else {
+					
+					// Playback may have jumped here from a loop or a slice that came from the loop buffer
+					if(synthesizer.getSliceIndex() != sliceIndex)
+						synthesizer.seek(sliceIndex);
+					
+					// Silence needs neither synthesis nor conversion, once effects have finished ringing
+					if(!inLoop && effects.isSilent() && synthesizer.getSilentSlices(blockLength) == blockLength) {
+						
+						sampleCount = (int) synthesizer.skipSilence(blockLength);
+						silence = true;
+						
+					} else {
+						
+						sampleCount = synthesizer.renderSlices(samples, 0, blockLength);
+						rendered = true;
+						
+						if(inLoop)
+							loop.store(sliceIndex, samples, 0);
+						
+					}
+					
+				}
+				
+				if(rendered) {
+					
+					effects.process(samples, 0, sampleCount);
+					
+					for(int i = 0; i < sampleCount; ++i)
+						shorts[i] = (short) (Math.max(-1.0, Math.min(1.0, samples[i])) * Short.MAX_VALUE);
+					
+				}
+				
+				int peak = 0;
+				
+				if(!silence) {
+					
+					for(int i = 0; i < sampleCount; ++i)
+						peak = Math.max(peak, Math.abs(shorts[i]));
+					
+				}
+				
+				double level = peak / (double) Short.MAX_VALUE;
+				
+				// Step quality down when rendering gets close to the slice's deadline, and back up when it's not
+				long renderNanos = System.nanoTime() - renderStart;
+				long sliceNanos = (long) (sampleCount * 1.0e9 / sampleRate);
+				
+				RenderQuality quality = adaptiveQuality.update(renderNanos, sliceNanos);
+				synthesizer.setQuality(adaptive ? quality : RenderQuality.FULL);
+				
+				// Display notes
+				LiveStatus.Frame frame = liveStatus.getWriteFrame();
+				
+				frame.set(blockEnd - 1, composition.getSlice(blockEnd - 1), adaptiveQuality, synthesizer.getVoices().activeCount(), level);
+				frame.setOutput(latency, maxLatency, output.getUnderruns());
+				liveStatus.publish();
+				
+				sliceIndex = blockEnd;
+				
+			}
+			
+		} finally {
+			
+			output.close();
+			
+			if(workers != null)
+				workers.close();
+			
+			if(loop != null)
+				composition.removeSliceListener(loop);
+			
+		}
+		
 		currentComposition = composition;
 		
+		try {
+			
+			if(journal != null)
+				journal.flush();
+			
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		
+	}
+	
+	private void onDisplayTimer() {
+		
+		LiveStatus.Frame frame = liveStatus.poll();
+		
+		if(frame != null)
+			displayPolyphony(frame.getPolyphony(), frame.getStatus());
+		
 	}
 	
-	private void displayPolyphony(Polyphony polyphony) {
-		noteDisplay.setText(polyphony.toString());
+	private void displayPolyphony(Polyphony polyphony, String status) {
+		noteDisplay.setText(status + "\n" + polyphony.toString());
 	}
 	
 	@Override
@@ -436,9 +1486,7 @@ public final class MainWindow extends JFrame implements KeyListener {
 		
 		if(note != null) {
 			
-			synchronized(notesPressed) {
-				notesPressed.add(note);
-			}
+			keys.press(note, KEYBOARD_VELOCITY);
 			
 		}
 		
@@ -453,9 +1501,7 @@ public final class MainWindow extends JFrame implements KeyListener {
 		
 		if(note != null) {
 			
-			synchronized(notesPressed) {
-				notesPressed.remove(note);
-			}
+			keys.release(note);
 			
 		}
 		
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.util.*;
+
+import javax.sound.midi.*;
+
+public final class MidiConverter {
+	
+	public static final int SKIP_CHANNEL = -1;
+	
+	// Full MIDI velocity maps to the amplitude live recordings are made at
+	public static final int DEFAULT_MAX_AMPLITUDE = 64;
+	
+	private static final int CHANNEL_COUNT = 16;
+	private static final int META_TEMPO = 0x51;
+	private static final int DEFAULT_TEMPO = 500000;
+	private static final int MAX_TEMPO = 0xffffff;
+	private static final int EXPORT_RESOLUTION = 480;
+	
+	private final double sliceLength;
+	private final int[] channelTypes;
+	private int maxAmplitude;
+	
+	public MidiConverter(double sliceLength, int toneType) {
+		
+		if(!Double.isFinite(sliceLength) || sliceLength <= 0.0)
+			throw new IllegalArgumentException("Slice length must be positive and finite");
+		
+		if(toneType < 0 || toneType >= Tone.TYPE_COUNT)
+			throw new IllegalArgumentException();
+		
+		this.sliceLength = sliceLength;
+		this.channelTypes = new int[CHANNEL_COUNT];
+		this.maxAmplitude = DEFAULT_MAX_AMPLITUDE;
+		
+		Arrays.fill(channelTypes, toneType);
+		
+	}
+	
+	// Tone type that notes on a MIDI channel are imported as, or SKIP_CHANNEL to leave them out
+	public void setChannelType(int channel, int toneType) {
+		
+		if(toneType != SKIP_CHANNEL && (toneType < 0 || toneType >= Tone.TYPE_COUNT))
+			throw new IllegalArgumentException();
+		
+		channelTypes[channel] = toneType;
+		
+	}
+	
+	public void setMaxAmplitude(int maxAmplitude) {
+		
+		if(maxAmplitude <= 0 || maxAmplitude >= 256)
+			throw new IllegalArgumentException();
+		
+		this.maxAmplitude = maxAmplitude;
+		
+	}
+	
+	public Composition read(File file) throws IOException {
+		
+		try {
+			return read(MidiSystem.getSequence(file));
+		} catch(InvalidMidiDataException e) {
+			throw new IOException("Bad MIDI file: " + e.getMessage());
+		}
+		
+	}
+	
+	public Composition read(InputStream is) throws IOException {
+		
+		try {
+			return read(MidiSystem.getSequence(is));
+		} catch(InvalidMidiDataException e) {
+			throw new IOException("Bad MIDI file: " + e.getMessage());
+		}
+		
+	}
+	
+	// Events from all tracks are merged in tick order and swept into slices as they go.  Between
+	// events the sounding notes don't change, so each run of slices shares one Polyphony.
+	public Composition read(Sequence sequence) {
+		
+		javax.sound.midi.Track[] tracks = sequence.getTracks();
+		int[] positions = new int[tracks.length];
+		
+		boolean ppq = sequence.getDivisionType() == Sequence.PPQ;
+		double secondsPerTick = ppq ? DEFAULT_TEMPO / 1.0e6 / sequence.getResolution() : 1.0 / (sequence.getDivisionType() * sequence.getResolution());
+		
+		long lastTick = 0;
+		double lastSeconds = 0.0;
+		
+		// Velocity of each (channel, note) that's sounding, the slice it started in, and whether its
+		// note off came in that same slice (it still gets that one slice before stopping)
+		int[] velocities = new int[CHANNEL_COUNT * 128];
+		int[] startSlices = new int[CHANNEL_COUNT * 128];
+		boolean[] pendingOff = new boolean[CHANNEL_COUNT * 128];
+		boolean anyPending = false;
+		
+		Composition.Builder builder = new Composition.Builder(sliceLength);
+		Polyphony current = null;
+		int cursor = 0;
+		
+		for(;;) {
+			
+			// Next event across all tracks
+			int next = -1;
+			
+			for(int i = 0; i < tracks.length; ++i)
+				if(positions[i] < tracks[i].size() && (next < 0 || tracks[i].get(positions[i]).getTick() < tracks[next].get(positions[next]).getTick()))
+					next = i;
+			
+			if(next < 0)
+				break;
+			
+			MidiEvent event = tracks[next].get(positions[next]++);
+			MidiMessage message = event.getMessage();
+			
+			lastSeconds += (event.getTick() - lastTick) * secondsPerTick;
+			lastTick = event.getTick();
+			
+			int slice = (int) Math.min(Integer.MAX_VALUE - 1, Math.round(lastSeconds / sliceLength));
+			
+			// Emit slices up to this event with the notes sounding before it
+			if(slice > cursor) {
+				
+				if(current == null)
+					current = toPolyphony(velocities);
+				
+				if(anyPending) {
+					
+					builder.setSlice(cursor++, current);
+					
+					for(int key = 0; key < pendingOff.length; ++key) {
+						
+						if(pendingOff[key]) {
+							
+							velocities[key] = 0;
+							pendingOff[key] = false;
+							
+						}
+						
+					}
+					
+					anyPending = false;
+					current = toPolyphony(velocities);
+					
+				}
+				
+				for(; cursor < slice; ++cursor)
+					builder.setSlice(cursor, current);
+				
+			}
+			
+			if(message instanceof MetaMessage) {
+				
+				MetaMessage meta = (MetaMessage) message;
+				byte[] data = meta.getData();
+				
+				if(ppq && meta.getType() == META_TEMPO && data.length >= 3) {
+					
+					int tempo = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+					secondsPerTick = tempo / 1.0e6 / sequence.getResolution();
+					
+				}
+				
+				continue;
+				
+			}
+			
+			if(!(message instanceof ShortMessage))
+				continue;
+			
+			ShortMessage shortMessage = (ShortMessage) message;
+			int channel = shortMessage.getChannel();
+			int command = shortMessage.getCommand();
+			
+			if(channelTypes[channel] == SKIP_CHANNEL || (command != ShortMessage.NOTE_ON && command != ShortMessage.NOTE_OFF))
+				continue;
+			
+			int key = channel * 128 + shortMessage.getData1();
+			int velocity = command == ShortMessage.NOTE_ON ? shortMessage.getData2() : 0;
+			
+			if(velocity > 0) {
+				
+				velocities[key] = velocity;
+				startSlices[key] = slice;
+				pendingOff[key] = false;
+				
+			} else if(velocities[key] > 0) {
+				
+				if(startSlices[key] >= slice) {
+					
+					pendingOff[key] = true;
+					anyPending = true;
+					
+				} else
+					velocities[key] = 0;
+				
+			}
+			
+			current = null;
+			
+		}
+		
+		// Notes still pending or left on at the end get their one slice
+		if(anyPending)
+			builder.setSlice(cursor, toPolyphony(velocities));
+		
+		return builder.build();
+		
+	}
+	
+	private Polyphony toPolyphony(int[] velocities) {
+		
+		ArrayList<Tone> tones = new ArrayList<Tone>();
+		
+		for(int key = 0; key < velocities.length && tones.size() < 255; ++key) {
+			
+			if(velocities[key] > 0) {
+				
+				int amplitude = (int) Math.round(velocities[key] * maxAmplitude / 127.0);
+				tones.add(new Tone(channelTypes[key / 128], key % 128, amplitude));
+				
+			}
+			
+		}
+		
+		return new Polyphony(tones);
+		
+	}
+	
+	public void write(Composition composition, File file) throws IOException {
+		
+		Sequence sequence = toSequence(composition);
+		int[] types = MidiSystem.getMidiFileTypes(sequence);
+		
+		MidiSystem.write(sequence, types.length > 0 && types[0] == 0 ? 0 : 1, file);
+		
+	}
+	
+	public void write(Composition composition, OutputStream os) throws IOException {
+		MidiSystem.write(toSequence(composition), 0, os);
+	}
+	
+	// Each slice is one tick, with the tempo set to match.  Tone types are written to the channel of
+	// the same number, and amplitudes of the same note and type in a slice are summed.
+	public Sequence toSequence(Composition composition) throws IOException {
+		
+		int resolution = (int) Math.max(1, Math.min(EXPORT_RESOLUTION, Math.floor(MAX_TEMPO / (composition.getSliceLength() * 1.0e6))));
+		long tempo = Math.round(composition.getSliceLength() * 1.0e6 * resolution);
+		
+		if(tempo <= 0 || tempo > MAX_TEMPO)
+			throw new IOException("Slice length can't be represented as a MIDI tempo");
+		
+		try {
+			
+			Sequence sequence = new Sequence(Sequence.PPQ, resolution);
+			javax.sound.midi.Track track = sequence.createTrack();
+			
+			byte[] tempoData = { (byte) (tempo >>> 16), (byte) (tempo >>> 8), (byte) tempo };
+			track.add(new MidiEvent(new MetaMessage(META_TEMPO, tempoData, tempoData.length), 0));
+			
+			int[] previous = new int[Tone.TYPE_COUNT * 128];
+			int[] current = new int[Tone.TYPE_COUNT * 128];
+			int sliceCount = composition.getSliceCount();
+			Polyphony previousPolyphony = null;
+			
+			for(int i = 0; i <= sliceCount; ++i) {
+				
+				Polyphony polyphony = composition.getSlice(i);
+				
+				// Runs of slices sharing one Polyphony (including empty ones) can't change any note
+				if(polyphony == previousPolyphony)
+					continue;
+				
+				previousPolyphony = polyphony;
+				Arrays.fill(current, 0);
+				
+				for(int j = 0; j < polyphony.polyphony(); ++j) {
+					
+					Tone tone = polyphony.getTone(j);
+					current[tone.getType() * 128 + tone.getNote()] += tone.getAmplitude();
+					
+				}
+				
+				for(int key = 0; key < current.length; ++key) {
+					
+					int velocity = current[key] == 0 ? 0 : (int) Math.max(1, Math.min(127, Math.round(current[key] * 127.0 / maxAmplitude)));
+					
+					if(velocity == previous[key])
+						continue;
+					
+					// Changing amplitude mid-note restarts it at the new velocity
+					if(previous[key] > 0)
+						track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, key / 128, key % 128, 0), i));
+					
+					if(velocity > 0)
+						track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, key / 128, key % 128, velocity), i));
+					
+					previous[key] = velocity;
+					
+				}
+				
+			}
+			
+			return sequence;
+			
+		} catch(InvalidMidiDataException e) {
+			throw new IOException("Couldn't build MIDI sequence: " + e.getMessage());
+		}
+		
+	}
+	
+}
@@ -0,0 +1,451 @@
+import java.io.*;
+import java.util.*;
+
+// Min/max/RMS of rendered audio at several zoom levels.  The finest level summarizes every
+// BUCKET_SAMPLES samples and each level above it summarizes FANOUT buckets of the one below, so any
+// range can be drawn by reading a few buckets per pixel.
+public final class PeakIndex implements Composition.SliceListener {
+	
+	public static final int BUCKET_SAMPLES = 256;
+	public static final int FANOUT = 4;
+	
+	private static final int MAGIC = 0x4a535350; // "JSSP"
+	
+	private final double sampleRate;
+	private final ArrayList<Level> levels;
+	private long sampleCount;
+	private long writePosition;
+	
+	// Slices changed since the index was last brought up to date
+	private final SliceRange dirty;
+	
+	public PeakIndex(double sampleRate) {
+		
+		if(!Double.isFinite(sampleRate) || sampleRate <= 0.0)
+			throw new IllegalArgumentException("Sample rate must be positive and finite");
+		
+		this.sampleRate = sampleRate;
+		this.levels = new ArrayList<Level>();
+		this.dirty = new SliceRange();
+		
+		levels.add(new Level());
+		
+	}
+	
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	
+	public synchronized long getSampleCount() {
+		return sampleCount;
+	}
+	
+	public synchronized int getLevelCount() {
+		return levels.size();
+	}
+	
+	// Samples must either continue on from the last write or start on a bucket boundary
+	public synchronized void write(long position, double[] samples, int offset, int length) {
+		
+		if(position != writePosition && position % BUCKET_SAMPLES != 0)
+			throw new IllegalArgumentException("Writes must continue on or start at a bucket boundary");
+		
+		if(length == 0)
+			return;
+		
+		Level level = levels.get(0);
+		
+		for(int i = 0; i < length; ++i) {
+			
+			long sample = position + i;
+			int bucket = (int) (sample / BUCKET_SAMPLES);
+			
+			level.ensureSize(bucket + 1);
+			
+			// Starting a bucket over replaces whatever it held before
+			if(sample % BUCKET_SAMPLES == 0)
+				level.clear(bucket);
+			
+			level.add(bucket, samples[offset + i]);
+			
+		}
+		
+		writePosition = position + length;
+		sampleCount = Math.max(sampleCount, writePosition);
+		
+		updateLevels((int) (position / BUCKET_SAMPLES), (int) ((writePosition - 1) / BUCKET_SAMPLES));
+		
+	}
+	
+	public void append(double[] samples, int offset, int length) {
+		
+		synchronized(this) {
+			write(sampleCount, samples, offset, length);
+		}
+		
+	}
+	
+	// Same as appending "length" zeros, a bucket at a time
+	public synchronized void appendSilence(long length) {
+		
+		if(length <= 0)
+			return;
+		
+		Level level = levels.get(0);
+		long position = sampleCount;
+		long end = position + length;
+		
+		if(end / BUCKET_SAMPLES >= Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Peak index is too long");
+		
+		level.ensureSize((int) ((end + BUCKET_SAMPLES - 1) / BUCKET_SAMPLES));
+		
+		while(position < end) {
+			
+			int bucket = (int) (position / BUCKET_SAMPLES);
+			int count = (int) Math.min(end - position, BUCKET_SAMPLES - position % BUCKET_SAMPLES);
+			
+			if(position % BUCKET_SAMPLES == 0)
+				level.clear(bucket);
+			
+			level.mins[bucket] = Math.min(level.mins[bucket], 0.0f);
+			level.maxs[bucket] = Math.max(level.maxs[bucket], 0.0f);
+			level.counts[bucket] += count;
+			
+			position += count;
+			
+		}
+		
+		updateLevels((int) (sampleCount / BUCKET_SAMPLES), (int) ((end - 1) / BUCKET_SAMPLES));
+		
+		sampleCount = end;
+		writePosition = end;
+		
+	}
+	
+	// Recomputes the buckets above the given range of finest buckets
+	private void updateLevels(int first, int last) {
+		
+		for(int l = 1; ; ++l) {
+			
+			Level below = levels.get(l - 1);
+			
+			if(below.size <= 1 && l == levels.size())
+				break;
+			
+			if(l == levels.size())
+				levels.add(new Level());
+			
+			Level level = levels.get(l);
+			
+			first /= FANOUT;
+			last /= FANOUT;
+			
+			level.ensureSize((below.size + FANOUT - 1) / FANOUT);
+			
+			for(int bucket = first; bucket <= last; ++bucket) {
+				
+				level.clear(bucket);
+				
+				for(int child = bucket * FANOUT; child < Math.min(below.size, (bucket + 1) * FANOUT); ++child)
+					level.merge(bucket, below, child);
+				
+			}
+			
+		}
+		
+	}
+	
+	// Fills one value per pixel for the samples between "start" and "end", reading from the coarsest
+	// level whose buckets are no bigger than a pixel.  Pixels past the end of the index are left NaN.
+	public synchronized void query(long start, long end, float[] mins, float[] maxs, float[] rms) {
+		
+		int pixels = mins.length;
+		double samplesPerPixel = (end - start) / (double) pixels;
+		
+		int l = 0;
+		long bucketSamples = BUCKET_SAMPLES;
+		
+		while(l + 1 < levels.size() && bucketSamples * FANOUT <= samplesPerPixel) {
+			
+			++l;
+			bucketSamples *= FANOUT;
+			
+		}
+		
+		Level level = levels.get(l);
+		
+		for(int p = 0; p < pixels; ++p) {
+			
+			long from = start + (long) (p * samplesPerPixel);
+			long to = Math.max(from + 1, start + (long) ((p + 1) * samplesPerPixel));
+			
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			double squares = 0.0;
+			long count = 0;
+			
+			for(long bucket = from / bucketSamples; bucket <= (to - 1) / bucketSamples && bucket < level.size; ++bucket) {
+				
+				int b = (int) bucket;
+				
+				min = Math.min(min, level.mins[b]);
+				max = Math.max(max, level.maxs[b]);
+				squares += level.squares[b];
+				count += level.counts[b];
+				
+			}
+			
+			mins[p] = count == 0 ? Float.NaN : min;
+			maxs[p] = count == 0 ? Float.NaN : max;
+			
+			if(rms != null)
+				rms[p] = count == 0 ? Float.NaN : (float) Math.sqrt(squares / count);
+			
+		}
+		
+	}
+	
+	@Override
+	public void sliceChanged(int sliceIndex) {
+		dirty.add(sliceIndex);
+	}
+	
+	public boolean isDirty() {
+		return !dirty.isEmpty();
+	}
+	
+	// Re-renders only the slices changed since the last update, plus the release and effect tails they
+	// affect, the way an export renders them.  Only one thread should update an index at a time.
+	public void update(Composition composition) {
+		
+		long range = dirty.take();
+		
+		if(range < 0)
+			return;
+		
+		// Everything marked dirty so far is in the snapshot, and anything later will be marked again
+		composition = composition.snapshot();
+		
+		int firstSlice = SliceRange.getFirst(range);
+		EffectChain.Processor effects = composition.getEffects().newProcessor(sampleRate);
+		int lastSlice = SliceRange.getLast(range) + (int) Math.ceil((composition.getMaxEnvelopeLength() + composition.getEffects().getTailLength()) / composition.getSliceLength()) + 1;
+		
+		// Start on a bucket boundary, from the slice containing it
+		long start = composition.getSliceStartInSamples(firstSlice, sampleRate) / BUCKET_SAMPLES * BUCKET_SAMPLES;
+		int sliceIndex = firstSlice;
+		
+		while(sliceIndex > 0 && composition.getSliceStartInSamples(sliceIndex, sampleRate) > start)
+			--sliceIndex;
+		
+		// Effects carry sound over from everything before, so they need to start where there's been
+		// enough silence for a fresh chain to be in the state a full render's would be
+		if(!composition.getEffects().isEmpty()) {
+			
+			int cut = 0;
+			
+			for(int c : DistributedRender.findCuts(composition))
+				if(c <= sliceIndex)
+					cut = c;
+			
+			sliceIndex = cut;
+			
+		}
+		
+		Synthesizer synthesizer = new Synthesizer(composition, sampleRate);
+		synthesizer.seek(sliceIndex);
+		
+		double[] samples = new double[composition.getMaxSliceLengthInSamples(sampleRate)];
+		
+		// Carry on to the end of a bucket so none is left holding only part of its samples
+		long end = composition.getSliceStartInSamples(lastSlice + 1, sampleRate);
+		
+		for(long position = composition.getSliceStartInSamples(sliceIndex, sampleRate); position < end || position % BUCKET_SAMPLES != 0 && position < getSampleCount(); ) {
+			
+			int count = synthesizer.renderSlice(samples);
+			
+			effects.process(samples, 0, count);
+			
+			int skip = (int) Math.max(0, Math.min(count, start - position));
+			
+			if(count > skip)
+				write(position + skip, samples, skip, count - skip);
+			
+			position += count;
+			
+		}
+		
+	}
+	
+	// Marks the whole of a composition as needing to be rendered into the index
+	public void invalidate(Composition composition) {
+		
+		if(!composition.isEmpty())
+			dirty.add(0, composition.getSliceCount() - 1);
+		
+	}
+	
+	public static PeakIndex build(Composition composition, double sampleRate) {
+		
+		PeakIndex index = new PeakIndex(sampleRate);
+		
+		index.invalidate(composition);
+		index.update(composition);
+		
+		return index;
+		
+	}
+	
+	// Peaks for a .jss or WAV file are kept next to it, with ".peaks" added to the name
+	public static File getSidecar(File file) {
+		return new File(file.getPath() + ".peaks");
+	}
+	
+	public void save(File file) throws IOException {
+		
+		BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(getSidecar(file)));
+		
+		try {
+			writeTo(os);
+		} finally {
+			os.close();
+		}
+		
+	}
+	
+	// Returns null if there are no peaks for the file or they're older than it
+	public static PeakIndex load(File file) throws IOException {
+		
+		File sidecar = getSidecar(file);
+		
+		if(!sidecar.exists() || sidecar.lastModified() < file.lastModified())
+			return null;
+		
+		BufferedInputStream is = new BufferedInputStream(new FileInputStream(sidecar));
+		
+		try {
+			return readFrom(is);
+		} finally {
+			is.close();
+		}
+		
+	}
+	
+	// Only the finest level is stored; the others are rebuilt from it when read
+	public synchronized void writeTo(OutputStream os) throws IOException {
+		
+		Level level = levels.get(0);
+		
+		BinaryIO.writeInt(os, MAGIC);
+		BinaryIO.writeDouble(os, sampleRate);
+		BinaryIO.writeLong(os, sampleCount);
+		
+		DataOutputStream dos = new DataOutputStream(os);
+		
+		for(int i = 0; i < level.size; ++i) {
+			
+			dos.writeFloat(level.mins[i]);
+			dos.writeFloat(level.maxs[i]);
+			dos.writeDouble(level.squares[i]);
+			dos.writeInt(level.counts[i]);
+			
+		}
+		
+		dos.flush();
+		
+	}
+	
+	public static PeakIndex readFrom(InputStream is) throws IOException {
+		
+		if(BinaryIO.readInt(is) != MAGIC)
+			throw new IOException("Not a peak index");
+		
+		double sampleRate = BinaryIO.readDouble(is);
+		long sampleCount = BinaryIO.readLong(is);
+		
+		if(!Double.isFinite(sampleRate) || sampleRate <= 0.0 || sampleCount < 0 || sampleCount / BUCKET_SAMPLES >= Integer.MAX_VALUE)
+			throw new IOException("Bad peak index header");
+		
+		PeakIndex index = new PeakIndex(sampleRate);
+		Level level = index.levels.get(0);
+		int size = (int) ((sampleCount + BUCKET_SAMPLES - 1) / BUCKET_SAMPLES);
+		
+		DataInputStream dis = new DataInputStream(is);
+		
+		level.ensureSize(size);
+		
+		for(int i = 0; i < size; ++i) {
+			
+			level.mins[i] = dis.readFloat();
+			level.maxs[i] = dis.readFloat();
+			level.squares[i] = dis.readDouble();
+			level.counts[i] = dis.readInt();
+			
+		}
+		
+		index.sampleCount = sampleCount;
+		index.writePosition = sampleCount;
+		
+		if(size > 0)
+			index.updateLevels(0, size - 1);
+		
+		return index;
+		
+	}
+	
+	private static final class Level {
+		
+		float[] mins = new float[16];
+		float[] maxs = new float[16];
+		double[] squares = new double[16];
+		int[] counts = new int[16];
+		int size;
+		
+		void ensureSize(int newSize) {
+			
+			if(newSize > mins.length) {
+				
+				int capacity = Math.max(newSize, mins.length * 2);
+				
+				mins = Arrays.copyOf(mins, capacity);
+				maxs = Arrays.copyOf(maxs, capacity);
+				squares = Arrays.copyOf(squares, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				
+			}
+			
+			for(; size < newSize; ++size)
+				clear(size);
+			
+		}
+		
+		void clear(int bucket) {
+			
+			mins[bucket] = Float.POSITIVE_INFINITY;
+			maxs[bucket] = Float.NEGATIVE_INFINITY;
+			squares[bucket] = 0.0;
+			counts[bucket] = 0;
+			
+		}
+		
+		void add(int bucket, double sample) {
+			
+			mins[bucket] = Math.min(mins[bucket], (float) sample);
+			maxs[bucket] = Math.max(maxs[bucket], (float) sample);
+			squares[bucket] += sample * sample;
+			++counts[bucket];
+			
+		}
+		
+		void merge(int bucket, Level below, int child) {
+			
+			mins[bucket] = Math.min(mins[bucket], below.mins[child]);
+			maxs[bucket] = Math.max(maxs[bucket], below.maxs[child]);
+			squares[bucket] += below.squares[child];
+			counts[bucket] += below.counts[child];
+			
+		}
+		
+	}
+	
+}
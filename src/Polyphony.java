@@ -33,6 +33,18 @@ public final class Polyphony {
 		
 	}
 	
+	public Polyphony(Polyphony first, Polyphony second) {
+		
+		if(first.tones.length + second.tones.length >= 256)
+			throw new IllegalArgumentException("Polyphony is limited to 255 tones");
+		
+		this.tones = new Tone[first.tones.length + second.tones.length];
+		
+		System.arraycopy(first.tones, 0, this.tones, 0, first.tones.length);
+		System.arraycopy(second.tones, 0, this.tones, first.tones.length, second.tones.length);
+		
+	}
+	
 	public Polyphony(Collection<Tone> tones) {
 		
 		this.tones = new Tone[tones.size()];
@@ -46,7 +58,7 @@ public final class Polyphony {
 			if(tone == null)
 				throw new NullPointerException();
 			
-			this.tones[i] = tone;
+			this.tones[i++] = tone;
 			
 		}
 		
@@ -56,6 +68,56 @@ public final class Polyphony {
 		return tones.length;
 	}
 	
+	public Tone getTone(int index) {
+		return tones[index];
+	}
+	
+	// Tones transposed out of the MIDI note range are dropped
+	public Polyphony transpose(int semitones) {
+		
+		if(semitones == 0)
+			return this;
+		
+		Tone[] transposed = new Tone[tones.length];
+		int count = 0;
+		
+		for(Tone tone : tones) {
+			
+			int note = tone.getNote() + semitones;
+			
+			if(note >= 0 && note < 128)
+				transposed[count++] = new Tone(tone.getType(), note, tone.getAmplitude());
+			
+		}
+		
+		return new Polyphony(Arrays.copyOf(transposed, count));
+		
+	}
+	
+	// Amplitudes are rounded and clamped to the range a tone can hold
+	public Polyphony scaleAmplitude(double factor) {
+		
+		if(!Double.isFinite(factor) || factor < 0.0)
+			throw new IllegalArgumentException("Amplitude factor must be non-negative and finite");
+		
+		if(factor == 1.0)
+			return this;
+		
+		Tone[] scaled = new Tone[tones.length];
+		
+		for(int i = 0; i < tones.length; ++i) {
+			
+			Tone tone = tones[i];
+			int amplitude = (int) Math.min(255L, Math.round(tone.getAmplitude() * factor));
+			
+			scaled[i] = new Tone(tone.getType(), tone.getNote(), amplitude);
+			
+		}
+		
+		return new Polyphony(scaled);
+		
+	}
+	
 	public void writeTo(OutputStream os) throws IOException {
 		
 		os.write(tones.length);
@@ -81,21 +143,35 @@ public final class Polyphony {
 	}
 	
 	public void renderTo(double[] samples, double start, double sampleRate) {
+		renderTo(samples, start, sampleRate, Tuning.EQUAL);
+	}
+	
+	public void renderTo(double[] samples, double start, double sampleRate, Tuning tuning) {
 		
 		for(Tone tone : tones)
-			tone.addTo(samples, start, sampleRate);
+			tone.addTo(samples, start, sampleRate, tuning);
 		
 	}
 	
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Polyphony && Arrays.equals(tones, ((Polyphony) other).tones);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(tones);
+	}
+	
 	@Override
 	public String toString() {
 		
-		String str = "";
+		StringBuilder sb = new StringBuilder();
 		
 		for(Tone tone : tones)
-			str += tone + "\n";
+			sb.append(tone).append('\n');
 		
-		return str;
+		return sb.toString();
 		
 	}
 	
@@ -7,6 +7,7 @@ public class Program {
 		MainWindow window = new MainWindow();
 		window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		window.setVisible(true);
+		window.recoverJournal();
 
 	}
 
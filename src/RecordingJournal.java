@@ -0,0 +1,254 @@
+import java.io.*;
+import java.util.zip.*;
+
+// Appends each slice to a file as it changes, so a crash loses at most the last sync interval.  The
+// journal listens to the composition, which only marks which slices changed; a background thread reads
+// just those slices, then flushes and syncs them to disk.  Slices recorded over again (while looping)
+// are appended again, but slices that are only played aren't written at all.
+public final class RecordingJournal implements Closeable, Composition.SliceListener {
+	
+	private static final int MAGIC = 0x4a53534a; // "JSSJ"
+	
+	public static final long DEFAULT_SYNC_INTERVAL = 1000;
+	
+	private final File file;
+	private final Composition composition;
+	private final long syncInterval;
+	private final FileOutputStream fos;
+	private final DataOutputStream os;
+	private final Thread writer;
+	
+	// Slices changed since they were last written
+	private final SliceSet changed;
+	private volatile boolean closed;
+	private IOException error;
+	
+	public RecordingJournal(File file, Composition composition, long syncInterval) throws IOException {
+		
+		if(syncInterval <= 0)
+			throw new IllegalArgumentException("Sync interval must be positive");
+		
+		this.file = file;
+		this.composition = composition;
+		this.syncInterval = syncInterval;
+		this.fos = new FileOutputStream(file);
+		this.os = new DataOutputStream(new BufferedOutputStream(fos));
+		
+		// Header, then everything already in the composition as the journal's first batch
+		os.writeInt(MAGIC);
+		os.writeDouble(composition.getSliceLength());
+		os.writeByte(Tone.TYPE_COUNT);
+		
+		for(int i = 0; i < Tone.TYPE_COUNT; ++i)
+			composition.getEnvelope(i).writeTo(os);
+		
+		SampleInstrument sampleInstrument = composition.getSampleInstrument();
+		
+		os.writeBoolean(sampleInstrument != null);
+		
+		if(sampleInstrument != null)
+			sampleInstrument.writeTo(os);
+		
+		composition.getEffects().writeTo(os);
+		composition.getTuning().writeTo(os);
+		
+		this.changed = new SliceSet();
+		
+		composition.addSliceListener(this);
+		
+		for(int i = composition.nextNonEmptySlice(0); i >= 0; i = composition.nextNonEmptySlice(i + 1))
+			changed.add(i);
+		
+		this.writer = new Thread() {
+			@Override
+			public void run() { runWriter(); }
+		};
+		
+		writer.setDaemon(true);
+		writer.start();
+		
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public Composition getComposition() {
+		return composition;
+	}
+	
+	// Called on the thread changing the composition, often the audio thread; never blocks once the
+	// slice's chunk of the set exists
+	@Override
+	public void sliceChanged(int sliceIndex) {
+		changed.add(sliceIndex);
+	}
+	
+	public synchronized void flush() throws IOException {
+		
+		if(error != null)
+			throw error;
+		
+		int[] slices = changed.take();
+		
+		if(slices.length == 0)
+			return;
+		
+		try {
+			
+			// Emptied slices are written too, so recovery empties them as well
+			for(int sliceIndex : slices)
+				writeRecord(sliceIndex, composition.getSliceSynchronized(sliceIndex));
+			
+			os.flush();
+			fos.getFD().sync();
+			
+		} catch(IOException e) {
+			
+			error = e;
+			throw e;
+			
+		}
+		
+	}
+	
+	// Each record is checksummed so a write torn by a crash can be told apart from real data
+	private void writeRecord(int sliceIndex, Polyphony polyphony) throws IOException {
+		
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		
+		BinaryIO.writeInt(record, sliceIndex);
+		polyphony.writeTo(record);
+		
+		CRC32 crc = new CRC32();
+		crc.update(record.toByteArray());
+		
+		record.writeTo(os);
+		os.writeInt((int) crc.getValue());
+		
+	}
+	
+	private void runWriter() {
+		
+		while(!closed) {
+			
+			try {
+				
+				flush();
+				Thread.sleep(syncInterval);
+				
+			} catch(InterruptedException e) {
+				// Woken up to close
+			} catch(IOException e) {
+				return;
+			}
+			
+		}
+		
+	}
+	
+	@Override
+	public void close() throws IOException {
+		
+		closed = true;
+		composition.removeSliceListener(this);
+		writer.interrupt();
+		
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		try {
+			flush();
+		} finally {
+			os.close();
+		}
+		
+	}
+	
+	// Closes the journal and deletes it, once its contents are safe elsewhere
+	public void discard() {
+		
+		try {
+			close();
+		} catch(IOException e) {
+			// It's being thrown away anyway
+		}
+		
+		file.delete();
+		
+	}
+	
+	// Rebuilds the composition from a journal, keeping the latest record of each slice.  Reading stops
+	// quietly at the first incomplete or corrupt record, which is where a crash interrupted writing.
+	public static Composition recover(File file) throws IOException {
+		
+		DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		
+		try {
+			
+			if(is.readInt() != MAGIC)
+				throw new IOException("Not a recording journal");
+			
+			Composition composition = new Composition(is.readDouble());
+			int envelopeCount = is.readUnsignedByte();
+			
+			for(int i = 0; i < envelopeCount; ++i) {
+				
+				Envelope envelope = Envelope.readFrom(is);
+				
+				if(i < Tone.TYPE_COUNT)
+					composition.setEnvelope(i, envelope);
+				
+			}
+			
+			if(is.readBoolean())
+				composition.setSampleInstrument(SampleInstrument.readFrom(is));
+			
+			composition.setEffects(EffectChain.readFrom(is));
+			composition.setTuning(Tuning.readFrom(is));
+			
+			for(;;) {
+				
+				int sliceIndex;
+				Polyphony polyphony;
+				int checksum;
+				
+				try {
+					
+					sliceIndex = is.readInt();
+					polyphony = Polyphony.readFrom(is);
+					checksum = is.readInt();
+					
+				} catch(IOException e) {
+					break;
+				}
+				
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				
+				BinaryIO.writeInt(record, sliceIndex);
+				polyphony.writeTo(record);
+				
+				CRC32 crc = new CRC32();
+				crc.update(record.toByteArray());
+				
+				if((int) crc.getValue() != checksum || sliceIndex < 0)
+					break;
+				
+				composition.setSlice(sliceIndex, polyphony);
+				
+			}
+			
+			return composition;
+			
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad recording journal: " + e.getMessage());
+		} finally {
+			is.close();
+		}
+		
+	}
+	
+}
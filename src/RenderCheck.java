@@ -0,0 +1,579 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+// Renders a fixed set of compositions and compares the results with golden results recorded earlier,
+// so a change to the engine can be shown to leave its output alone and not make rendering slower:
+//
+//   java RenderCheck record <golden directory> [options] [extra.jss...]
+//   java RenderCheck check <golden directory> [options] [extra.jss...]
+//
+// abc.jss (from the working directory) and a few generated stress compositions are always rendered,
+// each at several sample rates and in every WAV sample format.  Every WAV file is compared by SHA-256
+// with the hashes in the golden directory's golden.txt, which is the same on every machine.
+//
+// Speed (seconds of audio per second of rendering, best of several runs) and bytes allocated per
+// second of audio depend on the machine, so they're only recorded and checked with --speed, in a
+// file of their own that should be recorded on the machine doing the checking.  "check" exits with
+// status 1 if anything got worse.
+//
+// Options:
+//   --rates 22050,44100,96000   sample rates to render at
+//   --speed <file>              speed and allocation baseline to record or check against
+//   --repeats 5                 timed runs (of at least half a second) per composition and rate
+//   --slowdown 0.2              fraction speed may fall by before it counts as a regression
+//   --allocation 0.1            fraction allocation may grow by before it counts as a regression
+//   --audio                     (record) keep the golden WAV files as well as their hashes
+//   --tolerance 0.0             (check) largest sample difference accepted when a hash doesn't match,
+//                               which needs golden WAV files kept by "record --audio"
+public final class RenderCheck {
+	
+	private static final String GOLDEN_FILE = "golden.txt";
+	private static final int WAV_HEADER_LENGTH = 44;
+	private static final long MIN_TIMED_NANOSECONDS = 500000000L;
+	
+	// Allocation too small to matter, such as the JIT's own, isn't held against a change
+	private static final long ALLOCATION_SLACK = 64 * 1024;
+	
+	private final File goldenDirectory;
+	private final File workDirectory;
+	private final Map<String, Composition> corpus;
+	
+	private int[] sampleRates = { 22050, 44100, 96000 };
+	private int repeats = 5;
+	private double slowdown = 0.2;
+	private double allocation = 0.1;
+	private double tolerance = 0.0;
+	private boolean keepAudio;
+	private File speedFile;
+	
+	private RenderCheck(File goldenDirectory) throws IOException {
+		
+		this.goldenDirectory = goldenDirectory;
+		this.workDirectory = Files.createTempDirectory("render-check").toFile();
+		this.corpus = new LinkedHashMap<String, Composition>();
+		
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		if(args.length < 2 || (!args[0].equals("record") && !args[0].equals("check"))) {
+			
+			System.err.println("Usage: java RenderCheck record|check <golden directory> [options] [extra.jss...]");
+			System.exit(2);
+			
+		}
+		
+		RenderCheck check = new RenderCheck(new File(args[1]));
+		List<File> extra = new ArrayList<File>();
+		
+		for(int i = 2; i < args.length; ++i) {
+			
+			switch(args[i]) {
+			
+			case "--rates":
+				
+				String[] rates = args[++i].split(",");
+				check.sampleRates = new int[rates.length];
+				
+				for(int j = 0; j < rates.length; ++j)
+					check.sampleRates[j] = Integer.parseInt(rates[j].trim());
+				
+				break;
+			
+			case "--repeats":
+				check.repeats = Math.max(1, Integer.parseInt(args[++i]));
+				break;
+			
+			case "--slowdown":
+				check.slowdown = Double.parseDouble(args[++i]);
+				break;
+			
+			case "--allocation":
+				check.allocation = Double.parseDouble(args[++i]);
+				break;
+			
+			case "--tolerance":
+				check.tolerance = Double.parseDouble(args[++i]);
+				break;
+			
+			case "--audio":
+				check.keepAudio = true;
+				break;
+			
+			case "--speed":
+				check.speedFile = new File(args[++i]);
+				break;
+			
+			default:
+				extra.add(new File(args[i]));
+				break;
+			
+			}
+			
+		}
+		
+		check.loadCorpus(extra);
+		
+		boolean passed;
+		
+		try {
+			passed = args[0].equals("record") ? check.record() : check.check();
+		} finally {
+			check.workDirectory.delete();
+		}
+		
+		System.exit(passed ? 0 : 1);
+		
+	}
+	
+	private void loadCorpus(List<File> extra) throws IOException {
+		
+		List<File> files = new ArrayList<File>();
+		files.add(new File("abc.jss"));
+		files.addAll(extra);
+		
+		for(File file : files) {
+			
+			InputStream is = new BufferedInputStream(new FileInputStream(file));
+			
+			try {
+				corpus.put(file.getName().replaceFirst("\\.jss$", ""), Composition.readFrom(is));
+			} finally {
+				is.close();
+			}
+			
+		}
+		
+		corpus.put("dense", generateDense(1));
+		corpus.put("sparse", generateSparse(2));
+		corpus.put("short-slices", generateShortSlices(3));
+		corpus.put("effects", generateEffects(4));
+		
+	}
+	
+	// Many voices of every waveform at once, changing often: the voice pool and synthesis at their busiest
+	private static Composition generateDense(long seed) {
+		
+		Random random = new Random(seed);
+		Composition.Builder builder = new Composition.Builder(0.01);
+		List<Tone> tones = new ArrayList<Tone>();
+		
+		for(int slice = 0; slice < 2000; ++slice) {
+			
+			if(slice % 8 == 0) {
+				
+				tones.clear();
+				
+				for(int i = 0; i < 24; ++i)
+					tones.add(new Tone(random.nextInt(Tone.SAMPLE), 24 + random.nextInt(84), 4 + random.nextInt(12)));
+				
+			}
+			
+			builder.setSlice(slice, new Polyphony(tones));
+			
+		}
+		
+		return builder.build();
+		
+	}
+	
+	// Short phrases between long gaps, which rendering should skip rather than synthesize
+	private static Composition generateSparse(long seed) {
+		
+		Random random = new Random(seed);
+		Composition.Builder builder = new Composition.Builder(0.05);
+		
+		for(int slice = 0; slice < 2400; ++slice) {
+			
+			if(slice % 200 >= 20)
+				continue;
+			
+			List<Tone> tones = new ArrayList<Tone>();
+			
+			for(int i = 0; i < 3; ++i)
+				tones.add(new Tone(random.nextInt(Tone.SAMPLE), 48 + random.nextInt(36), 40));
+			
+			builder.setSlice(slice, new Polyphony(tones));
+			
+		}
+		
+		return builder.build();
+		
+	}
+	
+	// A melody at a millisecond per slice, so per-slice costs dominate
+	private static Composition generateShortSlices(long seed) {
+		
+		Random random = new Random(seed);
+		Composition.Builder builder = new Composition.Builder(0.001);
+		Tone tone = null;
+		
+		for(int slice = 0; slice < 20000; ++slice) {
+			
+			if(slice % 7 == 0)
+				tone = new Tone(random.nextInt(Tone.SAMPLE), 36 + random.nextInt(48), 60);
+			
+			builder.setSlice(slice, new Polyphony(tone));
+			
+		}
+		
+		return builder.build();
+		
+	}
+	
+	// Chords through the whole effects chain, with its tails running past the last slice
+	private static Composition generateEffects(long seed) {
+		
+		Random random = new Random(seed);
+		Composition.Builder builder = new Composition.Builder(0.1);
+		List<Tone> tones = new ArrayList<Tone>();
+		
+		for(int slice = 0; slice < 150; ++slice) {
+			
+			if(slice % 4 == 0) {
+				
+				tones.clear();
+				
+				int root = 48 + random.nextInt(24);
+				
+				for(int interval : new int[] { 0, 4, 7 })
+					tones.add(new Tone(Tone.SAWTOOTH, root + interval, 30));
+				
+			}
+			
+			if(slice % 4 != 3)
+				builder.setSlice(slice, new Polyphony(tones));
+			
+		}
+		
+		Composition composition = builder.build();
+		composition.setEffects(EffectChain.parse("lowpass 3000; delay 0.2 0.5 0.3; reverb 1.0 0.3"));
+		
+		return composition;
+		
+	}
+	
+	private boolean record() throws IOException {
+		
+		if(!goldenDirectory.isDirectory() && !goldenDirectory.mkdirs())
+			throw new IOException("Can't create " + goldenDirectory);
+		
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(goldenDirectory, GOLDEN_FILE)), "UTF-8"));
+		PrintWriter speedOut = null;
+		
+		try {
+			
+			out.println("# output <composition> <rate> <format> <sha-256>");
+			
+			if(speedFile != null) {
+				
+				speedOut = new PrintWriter(new OutputStreamWriter(new FileOutputStream(speedFile), "UTF-8"));
+				speedOut.println("# speed <composition> <rate> <audio seconds per second> <bytes allocated per audio second>");
+				
+			}
+			
+			for(Map.Entry<String, Composition> entry : corpus.entrySet()) {
+				
+				for(int sampleRate : sampleRates) {
+					
+					for(WavSampleFormat format : WavSampleFormat.values()) {
+						
+						File wav = render(entry.getValue(), sampleRate, format);
+						String hash = hash(wav);
+						
+						out.println("output " + entry.getKey() + " " + sampleRate + " " + format + " " + hash);
+						System.out.println(entry.getKey() + " " + sampleRate + " " + format + ": " + hash);
+						
+						if(keepAudio)
+							Files.move(wav.toPath(), new File(goldenDirectory, audioName(entry.getKey(), sampleRate, format)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+						else
+							wav.delete();
+						
+					}
+					
+					if(speedOut != null) {
+						
+						Speed speed = measure(entry.getValue(), sampleRate);
+						
+						speedOut.println(String.format(Locale.ROOT, "speed %s %d %.4f %d", entry.getKey(), sampleRate, speed.realtimeFactor, speed.bytesPerSecond));
+						System.out.println(entry.getKey() + " " + sampleRate + ": " + speed);
+						
+					}
+					
+				}
+				
+			}
+			
+		} finally {
+			
+			out.close();
+			
+			if(speedOut != null)
+				speedOut.close();
+			
+		}
+		
+		return true;
+		
+	}
+	
+	private boolean check() throws IOException {
+		
+		Map<String, String[]> golden = readResults(new File(goldenDirectory, GOLDEN_FILE));
+		Map<String, String[]> speeds = speedFile != null ? readResults(speedFile) : null;
+		int failures = 0;
+		
+		for(Map.Entry<String, Composition> entry : corpus.entrySet()) {
+			
+			for(int sampleRate : sampleRates) {
+				
+				for(WavSampleFormat format : WavSampleFormat.values()) {
+					
+					String key = "output " + entry.getKey() + " " + sampleRate + " " + format;
+					String[] expected = golden.get(key);
+					File wav = render(entry.getValue(), sampleRate, format);
+					String hash = hash(wav);
+					String result;
+					
+					if(expected == null) {
+						
+						result = "FAIL (no golden result)";
+						++failures;
+						
+					} else if(expected[4].equals(hash)) {
+						
+						result = "identical";
+						
+					} else {
+						
+						File reference = new File(goldenDirectory, audioName(entry.getKey(), sampleRate, format));
+						double difference = reference.exists() ? maxDifference(reference, wav) : Double.POSITIVE_INFINITY;
+						
+						if(difference <= tolerance) {
+							
+							result = "within tolerance (" + difference + ")";
+							
+						} else {
+							
+							result = "FAIL (" + (reference.exists() ? "differs by up to " + difference : "hash " + hash) + ")";
+							++failures;
+							
+						}
+						
+					}
+					
+					wav.delete();
+					System.out.println(entry.getKey() + " " + sampleRate + " " + format + ": " + result);
+					
+				}
+				
+				if(speeds == null)
+					continue;
+				
+				String[] expected = speeds.get("speed " + entry.getKey() + " " + sampleRate);
+				Speed speed = measure(entry.getValue(), sampleRate);
+				String result = speed.toString();
+				
+				if(expected == null) {
+					
+					result += " FAIL (no baseline)";
+					++failures;
+					
+				} else {
+					
+					double realtimeFactor = Double.parseDouble(expected[3]);
+					long bytesPerSecond = Long.parseLong(expected[4]);
+					
+					result += String.format(Locale.ROOT, ", %.2fx baseline speed", speed.realtimeFactor / realtimeFactor);
+					
+					if(speed.realtimeFactor < realtimeFactor * (1.0 - slowdown)) {
+						
+						result += " FAIL (slower)";
+						++failures;
+						
+					}
+					
+					if(bytesPerSecond >= 0 && speed.bytesPerSecond > bytesPerSecond * (1.0 + allocation) + ALLOCATION_SLACK) {
+						
+						result += " FAIL (allocates more, was " + bytesPerSecond + ")";
+						++failures;
+						
+					}
+					
+				}
+				
+				System.out.println(entry.getKey() + " " + sampleRate + ": " + result);
+				
+			}
+			
+		}
+		
+		System.out.println(failures == 0 ? "No regressions" : failures + " regression(s)");
+		
+		return failures == 0;
+		
+	}
+	
+	private static Map<String, String[]> readResults(File file) throws IOException {
+		
+		Map<String, String[]> golden = new HashMap<String, String[]>();
+		
+		for(String line : Files.readAllLines(file.toPath())) {
+			
+			if(line.isEmpty() || line.startsWith("#"))
+				continue;
+			
+			String[] fields = line.split(" ");
+			
+			if(fields.length != 5)
+				throw new IOException("Bad golden result: " + line);
+			
+			// Keyed by everything before the results
+			String key = fields[0] + " " + fields[1] + " " + fields[2];
+			
+			if(fields[0].equals("output"))
+				key += " " + fields[3];
+			
+			golden.put(key, fields);
+			
+		}
+		
+		return golden;
+		
+	}
+	
+	private File render(Composition composition, int sampleRate, WavSampleFormat format) throws IOException {
+		
+		File file = File.createTempFile("render", ".wav", workDirectory);
+		
+		composition.saveWav(file, sampleRate, Synthesizer.DEFAULT_EXPORT_VOICES, Synthesizer.DEFAULT_STEALING, format, null);
+		
+		return file;
+		
+	}
+	
+	// Best of several 16 bit renders, which follow the hashed renders so the JIT has warmed up
+	private Speed measure(Composition composition, int sampleRate) throws IOException {
+		
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		long thread = Thread.currentThread().getId();
+		
+		double bestFactor = 0.0;
+		long leastBytes = Long.MAX_VALUE;
+		
+		for(int i = 0; i < repeats; ++i) {
+			
+			long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+			long start = System.nanoTime();
+			long elapsed;
+			double seconds = 0.0;
+			
+			// Short renders are repeated, so timer and scheduling noise doesn't swamp them
+			do {
+				
+				File wav = render(composition, sampleRate, WavSampleFormat.PCM_INT_16);
+				
+				seconds += (wav.length() - WAV_HEADER_LENGTH) / (double) WavSampleFormat.PCM_INT_16.BYTES_PER_SAMPLE / sampleRate;
+				elapsed = System.nanoTime() - start;
+				
+				wav.delete();
+				
+			} while(elapsed < MIN_TIMED_NANOSECONDS);
+			
+			long allocated = allocations != null ? allocations.getThreadAllocatedBytes(thread) - allocatedBefore : -1;
+			
+			bestFactor = Math.max(bestFactor, seconds / (elapsed / 1e9));
+			leastBytes = Math.min(leastBytes, allocated < 0 ? -1 : (long) (allocated / seconds));
+			
+		}
+		
+		return new Speed(bestFactor, leastBytes);
+		
+	}
+	
+	private static double maxDifference(File expected, File actual) throws IOException {
+		
+		WavReader a = new WavReader(expected);
+		WavReader b = new WavReader(actual);
+		
+		try {
+			
+			if(a.getFrameCount() != b.getFrameCount() || a.getSampleFormat() != b.getSampleFormat())
+				return Double.POSITIVE_INFINITY;
+			
+			double max = 0.0;
+			
+			for(long frame = 0; frame < a.getFrameCount(); ++frame)
+				max = Math.max(max, Math.abs(a.getSample(frame, 0) - b.getSample(frame, 0)));
+			
+			return max;
+			
+		} finally {
+			
+			a.close();
+			b.close();
+			
+		}
+		
+	}
+	
+	private static String hash(File file) throws IOException {
+		
+		MessageDigest digest;
+		
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 isn't available", e);
+		}
+		
+		InputStream is = new BufferedInputStream(new FileInputStream(file));
+		
+		try {
+			
+			byte[] buffer = new byte[65536];
+			
+			for(int read; (read = is.read(buffer)) > 0; )
+				digest.update(buffer, 0, read);
+			
+		} finally {
+			is.close();
+		}
+		
+		StringBuilder hex = new StringBuilder();
+		
+		for(byte b : digest.digest())
+			hex.append(String.format("%02x", b & 0xff));
+		
+		return hex.toString();
+		
+	}
+	
+	private static String audioName(String composition, int sampleRate, WavSampleFormat format) {
+		return composition + "-" + sampleRate + "-" + format + ".wav";
+	}
+	
+	private static final class Speed {
+		
+		final double realtimeFactor;
+		final long bytesPerSecond;
+		
+		Speed(double realtimeFactor, long bytesPerSecond) {
+			
+			this.realtimeFactor = realtimeFactor;
+			this.bytesPerSecond = bytesPerSecond;
+			
+		}
+		
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%.1fx realtime, %d bytes allocated per second", realtimeFactor, bytesPerSecond);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,29 @@
+public enum RenderQuality {
+	
+	// Ordered from most to least expensive
+	FULL          (true,  true,  1.0),
+	FAST_SINE     (true,  false, 1.0),
+	NAIVE         (false, false, 1.0),
+	REDUCED_VOICES(false, false, 0.5);
+	
+	public final boolean BAND_LIMITED;
+	public final boolean EXACT_SINE;
+	public final double VOICE_FRACTION;
+	
+	RenderQuality(boolean bandLimited, boolean exactSine, double voiceFraction) {
+		
+		this.BAND_LIMITED = bandLimited;
+		this.EXACT_SINE = exactSine;
+		this.VOICE_FRACTION = voiceFraction;
+		
+	}
+	
+	public RenderQuality lower() {
+		return ordinal() + 1 < values().length ? values()[ordinal() + 1] : this;
+	}
+	
+	public RenderQuality higher() {
+		return ordinal() > 0 ? values()[ordinal() - 1] : this;
+	}
+	
+}
@@ -0,0 +1,193 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// A small set of threads that share the voices of one render between them.  The thread asking for the
+// render takes part as worker 0, rendering straight into the output; every other worker renders into
+// its own scratch buffer.  The buffers are then summed in a tree, each worker adding in its partner's
+// buffer as soon as that's ready, so summing takes log2(workers) steps.  The threads are kept for as
+// long as the workers are open and wait between renders, so a render costs no thread start-up.
+public final class RenderWorkers implements Closeable {
+	
+	private final Thread[] threads;
+	private final double[][] scratch;
+	
+	// Workers' progress in the current render, as (generation, levels of the tree summed into their buffer)
+	private final AtomicLongArray progress;
+	
+	// Bumped to start a render; everything below is set before it changes
+	private volatile long generation;
+	private volatile boolean closed;
+	
+	// What went wrong in a worker thread during the current render
+	private volatile Throwable failure;
+	
+	private VoicePool pool;
+	private double[] samples;
+	private int offset;
+	private int length;
+	private long startSample;
+	private double sampleRate;
+	private RenderQuality quality;
+	
+	// "maxLength" is the most samples a render will ask for
+	public RenderWorkers(int workerCount, int maxLength) {
+		
+		if(workerCount <= 0)
+			throw new IllegalArgumentException("Worker count must be positive");
+		
+		this.threads = new Thread[workerCount - 1];
+		this.scratch = new double[workerCount][];
+		this.progress = new AtomicLongArray(workerCount);
+		
+		for(int i = 1; i < workerCount; ++i) {
+			
+			int worker = i;
+			
+			scratch[i] = new double[maxLength];
+			threads[i - 1] = new Thread("Render worker " + i) {
+				@Override
+				public void run() { runWorker(worker); }
+			};
+			
+			threads[i - 1].setDaemon(true);
+			threads[i - 1].setPriority(Thread.MAX_PRIORITY);
+			threads[i - 1].start();
+			
+		}
+		
+	}
+	
+	public int getWorkerCount() {
+		return scratch.length;
+	}
+	
+	// Adds every unmuted voice of "pool" to "samples", as VoicePool.render does
+	void render(VoicePool pool, double[] samples, int offset, int length, long startSample, double sampleRate, RenderQuality quality) {
+		
+		if(closed)
+			throw new IllegalStateException("Render workers are closed");
+		
+		if(length > 0 && threads.length > 0 && length > scratch[1].length)
+			throw new IllegalArgumentException("Render is longer than the workers' buffers");
+		
+		this.pool = pool;
+		this.samples = samples;
+		this.offset = offset;
+		this.length = length;
+		this.startSample = startSample;
+		this.sampleRate = sampleRate;
+		this.quality = quality;
+		
+		long generation = this.generation + 1;
+		this.generation = generation;
+		
+		for(Thread thread : threads)
+			LockSupport.unpark(thread);
+		
+		work(0, generation);
+		
+		// Nothing refers to the caller's buffer between renders
+		this.samples = null;
+		this.pool = null;
+		
+		Throwable failure = this.failure;
+		
+		if(failure != null) {
+			
+			this.failure = null;
+			throw new IllegalStateException("Render worker failed", failure);
+			
+		}
+		
+		if(closed)
+			throw new IllegalStateException("Render workers were closed during a render");
+		
+	}
+	
+	private void runWorker(int worker) {
+		
+		long seen = 0;
+		
+		while(!closed) {
+			
+			long generation = this.generation;
+			
+			if(generation == seen) {
+				
+				LockSupport.park(this);
+				continue;
+				
+			}
+			
+			seen = generation;
+			work(worker, generation);
+			
+		}
+		
+	}
+	
+	private void work(int worker, long generation) {
+		
+		int workerCount = scratch.length;
+		double[] buffer = worker == 0 ? samples : scratch[worker];
+		int bufferOffset = worker == 0 ? offset : 0;
+		
+		if(worker != 0)
+			Arrays.fill(buffer, 0, length, 0.0);
+		
+		// A failed part is summed like any other, so nobody waits on it, and the render throws at the end
+		try {
+			pool.renderPart(worker, workerCount, buffer, bufferOffset, length, startSample, sampleRate, quality);
+		} catch(Throwable e) {
+			failure = e;
+		}
+		
+		progress.set(worker, generation << 6);
+		
+		// At each level, workers that are a multiple of twice the stride take in the buffer of the worker
+		// one stride along, once it holds everything below it in the tree
+		int level = 0;
+		
+		for(int stride = 1; stride < workerCount && worker % (stride * 2) == 0; stride *= 2) {
+			
+			int partner = worker + stride;
+			
+			if(partner < workerCount) {
+				
+				long ready = (generation << 6) | level;
+				
+				while(progress.get(partner) < ready) {
+					
+					if(closed)
+						return;
+					
+					Thread.yield();
+					
+				}
+				
+				double[] other = scratch[partner];
+				
+				for(int i = 0; i < length; ++i)
+					buffer[bufferOffset + i] += other[i];
+				
+			}
+			
+			progress.set(worker, (generation << 6) | ++level);
+			
+		}
+		
+	}
+	
+	@Override
+	public void close() {
+		
+		closed = true;
+		
+		for(Thread thread : threads)
+			LockSupport.unpark(thread);
+		
+	}
+	
+}
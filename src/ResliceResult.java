@@ -0,0 +1,26 @@
+public final class ResliceResult {
+	
+	private final Composition composition;
+	private final double maxTimingError;
+	
+	ResliceResult(Composition composition, double maxTimingError) {
+		
+		this.composition = composition;
+		this.maxTimingError = maxTimingError;
+		
+	}
+	
+	public Composition getComposition() {
+		return composition;
+	}
+	
+	// Furthest any note started or stopped from where it did in the original, in seconds
+	public double getMaxTimingError() {
+		return maxTimingError;
+	}
+	
+	public boolean isLossless() {
+		return maxTimingError == 0.0;
+	}
+	
+}
@@ -0,0 +1,178 @@
+import java.io.*;
+import java.util.*;
+
+// Schroeder's reverberator: four comb filters in parallel, followed by two all-pass filters in series
+// to thicken the echoes
+public final class Reverb implements Effect {
+	
+	private static final double[] COMB_DELAYS = { 0.0297, 0.0371, 0.0411, 0.0437 };
+	private static final double[] ALL_PASS_DELAYS = { 0.0050, 0.0017 };
+	private static final double ALL_PASS_GAIN = 0.7;
+	
+	private final double decayTime;
+	private final double mix;
+	
+	// "decayTime" is how long the reverb takes to die down by 60 dB
+	public Reverb(double decayTime, double mix) {
+		
+		if(!Double.isFinite(decayTime) || decayTime <= 0.0)
+			throw new IllegalArgumentException("Decay time must be positive and finite");
+		
+		if(!(mix >= 0.0 && mix <= 1.0))
+			throw new IllegalArgumentException("Mix must be between 0 and 1");
+		
+		this.decayTime = decayTime;
+		this.mix = mix;
+		
+	}
+	
+	public double getDecayTime() {
+		return decayTime;
+	}
+	
+	public double getMix() {
+		return mix;
+	}
+	
+	@Override
+	public int getType() {
+		return REVERB;
+	}
+	
+	@Override
+	public double getTailLength() {
+		
+		if(mix == 0.0)
+			return 0.0;
+		
+		double allPassLength = 0.0;
+		
+		for(double delay : ALL_PASS_DELAYS)
+			allPassLength += delay * Math.log(SILENCE_LEVEL) / Math.log(ALL_PASS_GAIN);
+		
+		return decayTime * Math.log(SILENCE_LEVEL) / Math.log(0.001) + allPassLength;
+		
+	}
+	
+	@Override
+	public Effect.Processor newProcessor(double sampleRate) {
+		return new Processor(sampleRate);
+	}
+	
+	@Override
+	public void writeTo(OutputStream os) throws IOException {
+		
+		BinaryIO.writeDouble(os, decayTime);
+		BinaryIO.writeDouble(os, mix);
+		
+	}
+	
+	public static Reverb readFrom(InputStream is) throws IOException {
+		
+		double decayTime = BinaryIO.readDouble(is);
+		double mix = BinaryIO.readDouble(is);
+		
+		try {
+			return new Reverb(decayTime, mix);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad reverb: " + e.getMessage());
+		}
+		
+	}
+	
+	@Override
+	public String toString() {
+		return "reverb " + decayTime + " " + mix;
+	}
+	
+	private final class Processor implements Effect.Processor {
+		
+		private final double[][] combs;
+		private final double[] combGains;
+		private final int[] combPositions;
+		
+		private final double[][] allPasses;
+		private final int[] allPassPositions;
+		
+		Processor(double sampleRate) {
+			
+			combs = new double[COMB_DELAYS.length][];
+			combGains = new double[COMB_DELAYS.length];
+			combPositions = new int[COMB_DELAYS.length];
+			
+			// Each comb's feedback is set so its echoes die down by 60 dB over the decay time
+			for(int i = 0; i < combs.length; ++i) {
+				
+				combs[i] = new double[Math.max(1, (int) Math.round(COMB_DELAYS[i] * sampleRate))];
+				combGains[i] = Math.pow(0.001, COMB_DELAYS[i] / decayTime);
+				
+			}
+			
+			allPasses = new double[ALL_PASS_DELAYS.length][];
+			allPassPositions = new int[ALL_PASS_DELAYS.length];
+			
+			for(int i = 0; i < allPasses.length; ++i)
+				allPasses[i] = new double[Math.max(1, (int) Math.round(ALL_PASS_DELAYS[i] * sampleRate))];
+			
+		}
+		
+		@Override
+		public void process(double[] samples, int offset, int length) {
+			
+			for(int i = offset; i < offset + length; ++i) {
+				
+				double x = samples[i];
+				double wet = 0.0;
+				
+				for(int c = 0; c < combs.length; ++c) {
+					
+					double[] comb = combs[c];
+					int position = combPositions[c];
+					double echo = comb[position];
+					
+					comb[position] = x + echo * combGains[c];
+					combPositions[c] = position + 1 == comb.length ? 0 : position + 1;
+					
+					wet += echo;
+					
+				}
+				
+				wet *= 1.0 / combs.length;
+				
+				for(int a = 0; a < allPasses.length; ++a) {
+					
+					double[] allPass = allPasses[a];
+					int position = allPassPositions[a];
+					double delayed = allPass[position];
+					double y = delayed - ALL_PASS_GAIN * wet;
+					
+					allPass[position] = wet + ALL_PASS_GAIN * y;
+					allPassPositions[a] = position + 1 == allPass.length ? 0 : position + 1;
+					
+					wet = y;
+					
+				}
+				
+				samples[i] = x + wet * mix;
+				
+			}
+			
+		}
+		
+		@Override
+		public void reset() {
+			
+			for(double[] comb : combs)
+				Arrays.fill(comb, 0.0);
+			
+			for(double[] allPass : allPasses)
+				Arrays.fill(allPass, 0.0);
+			
+			Arrays.fill(combPositions, 0);
+			Arrays.fill(allPassPositions, 0);
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,95 @@
+import java.io.*;
+
+// Plays a recorded WAV file, pitched to each note by reading it faster or slower.  The file is
+// mapped once when the instrument is made and every voice reads it in place, so nothing is copied or
+// locked while notes start or play.
+public final class SampleInstrument {
+	
+	public static final int DEFAULT_ROOT_NOTE = 60;
+	
+	private final File file;
+	private final int rootNote;
+	
+	private final WavReader reader;
+	private final IOException error;
+	
+	// "rootNote" is the note the recording plays at its own speed; a file that can't be read plays as
+	// silence
+	public SampleInstrument(File file, int rootNote) {
+		
+		if(file == null)
+			throw new NullPointerException();
+		
+		if(rootNote < 0 || rootNote >= 128)
+			throw new IllegalArgumentException("Root note must be within 0 to 127");
+		
+		this.file = file;
+		this.rootNote = rootNote;
+		
+		WavReader reader = null;
+		IOException error = null;
+		
+		try {
+			reader = new WavReader(file);
+		} catch(IOException e) {
+			error = e;
+		}
+		
+		this.reader = reader;
+		this.error = error;
+		
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public int getRootNote() {
+		return rootNote;
+	}
+	
+	// Why the file couldn't be read, or null if it could
+	public IOException getError() {
+		return error;
+	}
+	
+	// The recording, or null if it couldn't be read
+	public WavReader getReader() {
+		return reader;
+	}
+	
+	// Frames of the recording to advance per output sample so it sounds "note" at "sampleRate"
+	public double getStep(int note, double sampleRate, Tuning tuning) {
+		
+		if(reader == null)
+			return 0.0;
+		
+		return tuning.getFrequency(note) / tuning.getFrequency(rootNote) * reader.getSampleRate() / sampleRate;
+		
+	}
+	
+	public void writeTo(OutputStream os) throws IOException {
+		
+		BinaryIO.writeString(os, file.getPath());
+		os.write(rootNote);
+		
+	}
+	
+	public static SampleInstrument readFrom(InputStream is) throws IOException {
+		
+		String path = BinaryIO.readString(is);
+		int rootNote = BinaryIO.readByte(is);
+		
+		if(rootNote >= 128)
+			throw new IOException("Bad value for root note");
+		
+		return new SampleInstrument(new File(path), rootNote);
+		
+	}
+	
+	@Override
+	public String toString() {
+		return file.getName() + " (root " + rootNote + ")";
+	}
+	
+}
@@ -0,0 +1,14 @@
+import java.io.*;
+
+// Somewhere rendered 16 bit samples can be written, such as a WAV or FLAC file
+public interface SampleOutput extends Closeable {
+	
+	void write(short[] samples, int offset, int length) throws IOException;
+	
+	// Converts samples within -1 to 1 to the output's own format
+	void write(double[] samples, int offset, int length) throws IOException;
+	
+	// Writes "length" samples of silence, which outputs may store more cheaply than written samples
+	void writeSilence(long length) throws IOException;
+	
+}
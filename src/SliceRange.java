@@ -0,0 +1,63 @@
+import java.util.concurrent.atomic.*;
+
+// A range of slice indices that threads can widen without locking, for keeping track of which slices
+// have changed.  The first and last slices are packed into a single long.
+final class SliceRange {
+	
+	private static final long EMPTY = Long.MAX_VALUE;
+	
+	private final AtomicLong range;
+	
+	SliceRange() {
+		range = new AtomicLong(EMPTY);
+	}
+	
+	void add(int sliceIndex) {
+		add(sliceIndex, sliceIndex);
+	}
+	
+	void add(int first, int last) {
+		
+		for(;;) {
+			
+			long current = range.get();
+			long updated;
+			
+			if(current == EMPTY)
+				updated = pack(first, last);
+			else
+				updated = pack(Math.min(first, getFirst(current)), Math.max(last, getLast(current)));
+			
+			if(range.compareAndSet(current, updated))
+				return;
+			
+		}
+		
+	}
+	
+	boolean isEmpty() {
+		return range.get() == EMPTY;
+	}
+	
+	// Empties the range, returning what it held for "getFirst" and "getLast", or -1 if it was empty
+	long take() {
+		
+		long taken = range.getAndSet(EMPTY);
+		
+		return taken == EMPTY ? -1 : taken;
+		
+	}
+	
+	static int getFirst(long range) {
+		return (int) (range >>> 32);
+	}
+	
+	static int getLast(long range) {
+		return (int) range;
+	}
+	
+	private static long pack(int first, int last) {
+		return ((long) first << 32) | last;
+	}
+	
+}
@@ -0,0 +1,95 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// A set of slice indices that threads can add to without locking, for keeping track of exactly which
+// slices have changed.  Slices are bits in chunks of 4096; only the first slice added to a chunk takes
+// a lock, to make room for it.
+final class SliceSet {
+	
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_WORDS = (1 << CHUNK_BITS) / 64;
+	
+	// Replaced, never changed in place, when a chunk is added
+	private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+	
+	void add(int sliceIndex) {
+		
+		if(sliceIndex < 0)
+			throw new IllegalArgumentException();
+		
+		AtomicLongArray chunk = getChunk(sliceIndex >>> CHUNK_BITS);
+		int word = (sliceIndex >>> 6) & (CHUNK_WORDS - 1);
+		long bit = 1L << (sliceIndex & 63);
+		
+		for(;;) {
+			
+			long current = chunk.get(word);
+			
+			if((current & bit) != 0 || chunk.compareAndSet(word, current, current | bit))
+				return;
+			
+		}
+		
+	}
+	
+	private AtomicLongArray getChunk(int index) {
+		
+		AtomicLongArray[] chunks = this.chunks;
+		
+		if(index < chunks.length && chunks[index] != null)
+			return chunks[index];
+		
+		return addChunk(index);
+		
+	}
+	
+	private synchronized AtomicLongArray addChunk(int index) {
+		
+		AtomicLongArray[] chunks = Arrays.copyOf(this.chunks, Math.max(this.chunks.length, index + 1));
+		
+		if(chunks[index] == null)
+			chunks[index] = new AtomicLongArray(CHUNK_WORDS);
+		
+		this.chunks = chunks;
+		
+		return chunks[index];
+		
+	}
+	
+	// Empties the set, returning what it held in ascending order
+	int[] take() {
+		
+		AtomicLongArray[] chunks = this.chunks;
+		int[] taken = new int[16];
+		int count = 0;
+		
+		for(int c = 0; c < chunks.length; ++c) {
+			
+			if(chunks[c] == null)
+				continue;
+			
+			for(int w = 0; w < CHUNK_WORDS; ++w) {
+				
+				if(chunks[c].get(w) == 0)
+					continue;
+				
+				long bits = chunks[c].getAndSet(w, 0);
+				
+				for(; bits != 0; bits &= bits - 1) {
+					
+					if(count == taken.length)
+						taken = Arrays.copyOf(taken, count * 2);
+					
+					taken[count++] = (c << CHUNK_BITS) | (w << 6) | Long.numberOfTrailingZeros(bits);
+					
+				}
+				
+			}
+			
+		}
+		
+		return Arrays.copyOf(taken, count);
+		
+	}
+	
+}
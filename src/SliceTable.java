@@ -0,0 +1,161 @@
+import java.util.*;
+
+// Non-empty slices of a composition, stored in fixed size chunks.  Snapshots share every chunk with
+// the table they were taken from; whichever side writes to a shared chunk afterwards copies it first.
+public final class SliceTable {
+	
+	private static final int CHUNK_BITS = 8;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	private Polyphony[][] chunks;
+	private boolean[] owned;
+	private int sliceCount;
+	private int size;
+	
+	public SliceTable() {
+		
+		this.chunks = new Polyphony[1][];
+		this.owned = new boolean[1];
+		
+	}
+	
+	private SliceTable(SliceTable other) {
+		
+		this.chunks = other.chunks.clone();
+		this.owned = new boolean[chunks.length];
+		this.sliceCount = other.sliceCount;
+		this.size = other.size;
+		
+	}
+	
+	public SliceTable snapshot() {
+		
+		Arrays.fill(owned, false);
+		
+		return new SliceTable(this);
+		
+	}
+	
+	// Returns null for empty slices
+	public Polyphony get(int index) {
+		
+		int chunk = index >>> CHUNK_BITS;
+		
+		if(index < 0 || chunk >= chunks.length || chunks[chunk] == null)
+			return null;
+		
+		return chunks[chunk][index & CHUNK_MASK];
+		
+	}
+	
+	public void put(int index, Polyphony polyphony) {
+		
+		if(index < 0)
+			throw new IllegalArgumentException();
+		
+		if(polyphony.polyphony() == 0)
+			throw new IllegalArgumentException("Empty slices aren't stored");
+		
+		int chunk = index >>> CHUNK_BITS;
+		
+		if(chunk >= chunks.length) {
+			
+			int length = Math.max(chunk + 1, chunks.length * 2);
+			
+			chunks = Arrays.copyOf(chunks, length);
+			owned = Arrays.copyOf(owned, length);
+			
+		}
+		
+		if(chunks[chunk] == null) {
+			
+			chunks[chunk] = new Polyphony[CHUNK_SIZE];
+			owned[chunk] = true;
+			
+		} else if(!owned[chunk]) {
+			
+			chunks[chunk] = chunks[chunk].clone();
+			owned[chunk] = true;
+			
+		}
+		
+		if(chunks[chunk][index & CHUNK_MASK] == null)
+			++size;
+		
+		chunks[chunk][index & CHUNK_MASK] = polyphony;
+		sliceCount = Math.max(sliceCount, index + 1);
+		
+	}
+	
+	public void remove(int index) {
+		
+		if(get(index) == null)
+			return;
+		
+		int chunk = index >>> CHUNK_BITS;
+		
+		if(!owned[chunk]) {
+			
+			chunks[chunk] = chunks[chunk].clone();
+			owned[chunk] = true;
+			
+		}
+		
+		chunks[chunk][index & CHUNK_MASK] = null;
+		--size;
+		
+		// Find the new last slice if that was it
+		if(index == sliceCount - 1) {
+			
+			sliceCount = 0;
+			
+			for(int i = index - 1; i >= 0 && sliceCount == 0; --i) {
+				
+				if(chunks[i >>> CHUNK_BITS] == null)
+					i &= ~CHUNK_MASK;
+				
+				else if(chunks[i >>> CHUNK_BITS][i & CHUNK_MASK] != null)
+					sliceCount = i + 1;
+				
+			}
+			
+		}
+		
+	}
+	
+	// Index of the first non-empty slice at or after "index", or -1 if there isn't one
+	public int next(int index) {
+		
+		for(int chunk = Math.max(0, index) >>> CHUNK_BITS; chunk < chunks.length && index < sliceCount; ++chunk) {
+			
+			if(chunks[chunk] != null) {
+				
+				for(int i = Math.max(index, chunk << CHUNK_BITS) & CHUNK_MASK; i < CHUNK_SIZE; ++i)
+					if(chunks[chunk][i] != null)
+						return (chunk << CHUNK_BITS) | i;
+				
+			}
+			
+			index = (chunk + 1) << CHUNK_BITS;
+			
+		}
+		
+		return -1;
+		
+	}
+	
+	public int getSliceCount() {
+		return sliceCount;
+	}
+	
+	// Number of non-empty slices
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+}
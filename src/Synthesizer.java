@@ -0,0 +1,342 @@
+import java.util.*;
+
+public final class Synthesizer {
+	
+	// Live playback has a deadline per slice, so it gets a much lower cap than offline export
+	public static final int DEFAULT_LIVE_VOICES = 32;
+	public static final int DEFAULT_EXPORT_VOICES = 256;
+	public static final VoiceStealing DEFAULT_STEALING = VoiceStealing.QUIETEST;
+	
+	// Fewer voices than this render faster on one thread than shared between several
+	public static final int DEFAULT_PARALLEL_VOICES = 16;
+	
+	// Seconds of audio offline rendering does per call
+	public static final double EXPORT_BLOCK_LENGTH = 0.5;
+	
+	private static final int KEY_COUNT = Tone.TYPE_COUNT * 128;
+	
+	private final Composition composition;
+	private final double sampleRate;
+	private final VoicePool pool;
+	
+	// Voice holding each (type, note) key, whether the key lost its voice to stealing (it stays
+	// silent until released), plus scratch space for summing a slice's tones by key
+	private final Voice[] held;
+	private final boolean[] stolen;
+	private final double[] keyAmplitudes;
+	private final double[] keyFreqs;
+	private final int[] touchedKeys;
+	
+	// Tones of the slice before "sliceIndex" as last turned into events, and whether any of its keys
+	// couldn't get a voice (they try again at the next slice even if nothing changes)
+	private Polyphony previous;
+	private boolean unvoiced;
+	
+	private int sliceIndex;
+	private RenderQuality quality;
+	
+	// Composition's tuning as of the last events, with its phase increments at this sample rate
+	private Tuning tuning;
+	private double[] increments;
+	
+	public Synthesizer(Composition composition, double sampleRate) {
+		this(composition, sampleRate, DEFAULT_EXPORT_VOICES, DEFAULT_STEALING);
+	}
+	
+	public Synthesizer(Composition composition, double sampleRate, int maxVoices, VoiceStealing stealing) {
+		
+		if(composition == null)
+			throw new NullPointerException();
+		
+		if(!Double.isFinite(sampleRate) || sampleRate <= 0.0)
+			throw new IllegalArgumentException("Sample rate must be positive and finite");
+		
+		this.composition = composition;
+		this.sampleRate = sampleRate;
+		this.pool = new VoicePool(maxVoices, stealing);
+		
+		this.held = new Voice[KEY_COUNT];
+		this.stolen = new boolean[KEY_COUNT];
+		this.keyAmplitudes = new double[KEY_COUNT];
+		this.keyFreqs = new double[KEY_COUNT];
+		this.touchedKeys = new int[KEY_COUNT];
+		
+		Arrays.fill(keyAmplitudes, -1.0);
+		
+		this.previous = composition.getSlice(-1);
+		this.quality = RenderQuality.FULL;
+		
+	}
+	
+	public int getSliceIndex() {
+		return sliceIndex;
+	}
+	
+	public double getSampleRate() {
+		return sampleRate;
+	}
+	
+	public VoicePool getVoices() {
+		return pool;
+	}
+	
+	public RenderQuality getQuality() {
+		return quality;
+	}
+	
+	public void setQuality(RenderQuality quality) {
+		
+		if(quality == null)
+			throw new NullPointerException();
+		
+		this.quality = quality;
+		
+	}
+	
+	public boolean isSilent() {
+		return pool.activeCount() == 0;
+	}
+	
+	// How many of the next slices (up to "max") are certain to be silent: nothing is sounding and none
+	// of them has tones
+	public int getSilentSlices(int max) {
+		
+		if(unvoiced || !isSilent())
+			return 0;
+		
+		int next = composition.nextNonEmptySlice(sliceIndex);
+		
+		return next < 0 ? max : Math.min(max, next - sliceIndex);
+		
+	}
+	
+	// Moves past silent slices without rendering them, returning how many samples they would have been
+	public long skipSilence(int sliceCount) {
+		
+		if(getSilentSlices(sliceCount) < sliceCount)
+			throw new IllegalArgumentException("Slices to skip must be silent");
+		
+		long start = composition.getSliceStartInSamples(sliceIndex, sampleRate);
+		
+		sliceIndex += sliceCount;
+		previous = composition.getSlice(sliceIndex - 1);
+		
+		return composition.getSliceStartInSamples(sliceIndex, sampleRate) - start;
+		
+	}
+	
+	public void seek(int sliceIndex) {
+		
+		if(sliceIndex < 0)
+			throw new IllegalArgumentException();
+		
+		pool.reset();
+		Arrays.fill(held, null);
+		Arrays.fill(stolen, false);
+		
+		unvoiced = false;
+		
+		// Voices sounding at the target slice can only have been affected by the last few slices'
+		// note events, since envelopes are evaluated from absolute note on/off positions
+		int lookback = (int) Math.ceil(composition.getMaxEnvelopeLength() / composition.getSliceLength()) + 1;
+		
+		for(int i = Math.max(0, sliceIndex - lookback); i < sliceIndex; ++i) {
+			
+			processEvents(i);
+			pool.expire(composition.getSliceEndInSamples(i, sampleRate), sampleRate);
+			
+		}
+		
+		this.previous = composition.getSlice(sliceIndex - 1);
+		this.sliceIndex = sliceIndex;
+		
+	}
+	
+	public int renderSlice(double[] samples) {
+		return renderSlice(samples, 0);
+	}
+	
+	public int renderSlice(double[] samples, int offset) {
+		return renderSlices(samples, offset, 1);
+	}
+	
+	// Renders the next "sliceCount" slices into "samples" with one zero-fill.  Voices play straight
+	// through runs of slices whose tones don't change, including whole stretches of empty slices, so
+	// short slices don't cost a call per voice per slice.  Returns the number of samples rendered.
+	public int renderSlices(double[] samples, int offset, int sliceCount) {
+		
+		if(sliceCount < 0)
+			throw new IllegalArgumentException();
+		
+		int endSlice = sliceIndex + sliceCount;
+		long blockStart = composition.getSliceStartInSamples(sliceIndex, sampleRate);
+		long blockEnd = composition.getSliceStartInSamples(endSlice, sampleRate);
+		int sampleLength = (int) (blockEnd - blockStart);
+		
+		if(samples.length - offset < sampleLength)
+			throw new IllegalArgumentException();
+		
+		Arrays.fill(samples, offset, offset + sampleLength, 0.0);
+		
+		long spanStart = blockStart;
+		
+		while(sliceIndex < endSlice) {
+			
+			Polyphony polyphony = composition.getSlice(sliceIndex);
+			
+			// Only slices that sound different from the one before need events
+			if(unvoiced || (polyphony != previous && !polyphony.equals(previous))) {
+				
+				long start = composition.getSliceStartInSamples(sliceIndex, sampleRate);
+				
+				pool.render(samples, offset + (int) (spanStart - blockStart), (int) (start - spanStart), spanStart, sampleRate, quality);
+				spanStart = start;
+				
+				processEvents(sliceIndex);
+				
+			}
+			
+			previous = polyphony;
+			
+			// Skip straight to the next slice with tones
+			if(polyphony.polyphony() == 0 && !unvoiced) {
+				
+				int next = composition.nextNonEmptySlice(sliceIndex + 1);
+				
+				sliceIndex = next < 0 || next > endSlice ? endSlice : next;
+				
+			} else {
+				
+				++sliceIndex;
+				
+			}
+			
+		}
+		
+		pool.render(samples, offset + (int) (spanStart - blockStart), (int) (blockEnd - spanStart), spanStart, sampleRate, quality);
+		
+		return sampleLength;
+		
+	}
+	
+	// Sample voices read the instrument's recording in place, so starting one allocates nothing and
+	// takes no locks
+	private WavReader getRecording(int type) {
+		
+		SampleInstrument instrument = composition.getSampleInstrument();
+		
+		if(type != Tone.SAMPLE || instrument == null)
+			return null;
+		
+		return instrument.getReader();
+		
+	}
+	
+	private double getRecordingStep(int type, int note) {
+		
+		SampleInstrument instrument = composition.getSampleInstrument();
+		
+		if(type != Tone.SAMPLE || instrument == null)
+			return 0.0;
+		
+		return instrument.getStep(note, sampleRate, tuning);
+		
+	}
+	
+	// Turns the difference between the previous slice's tones and this one's into note on/off events
+	private void processEvents(int index) {
+		
+		Polyphony polyphony = composition.getSlice(index);
+		long start = composition.getSliceStartInSamples(index, sampleRate);
+		
+		// The increments are only looked up again when the tuning changes
+		if(composition.getTuning() != tuning) {
+			
+			tuning = composition.getTuning();
+			increments = tuning.getIncrements(sampleRate);
+			
+		}
+		
+		int touched = 0;
+		
+		unvoiced = false;
+		
+		for(int i = 0; i < polyphony.polyphony(); ++i) {
+			
+			Tone tone = polyphony.getTone(i);
+			int key = tone.getType() * 128 + tone.getNote();
+			
+			if(keyAmplitudes[key] < 0.0) {
+				
+				keyAmplitudes[key] = 0.0;
+				keyFreqs[key] = tuning.getFrequency(tone.getNote());
+				touchedKeys[touched++] = key;
+				
+			}
+			
+			keyAmplitudes[key] += tone.getAmplitude() / 255.0;
+			
+		}
+		
+		// Note off for held keys absent from this slice
+		for(int key = 0; key < held.length; ++key) {
+			
+			if(keyAmplitudes[key] >= 0.0)
+				continue;
+			
+			Voice voice = held[key];
+			
+			if(voice != null) {
+				
+				voice.release(start);
+				held[key] = null;
+				
+			}
+			
+			stolen[key] = false;
+			
+		}
+		
+		// Note on for new keys
+		for(int i = 0; i < touched; ++i) {
+			
+			int key = touchedKeys[i];
+			int type = key / 128;
+			
+			if(held[key] != null)
+				held[key].setAmplitude(keyAmplitudes[key]);
+			
+			else if(!stolen[key]) {
+				
+				Voice voice = pool.allocate(start, sampleRate);
+				
+				if(voice != null) {
+					
+					// Stealing a held voice silences its key until that key is released
+					if(voice.isActive() && !voice.isReleased()) {
+						
+						int stolenKey = voice.getType() * 128 + voice.getNote();
+						
+						held[stolenKey] = null;
+						stolen[stolenKey] = true;
+						
+					}
+					
+					voice.start(type, key % 128, keyAmplitudes[key], keyFreqs[key], increments[key % 128], composition.getEnvelope(type), getRecording(type), getRecordingStep(type, key % 128), start);
+					held[key] = voice;
+					
+				} else {
+					
+					unvoiced = true;
+					
+				}
+				
+			}
+			
+			keyAmplitudes[key] = -1.0;
+			
+		}
+		
+	}
+	
+}
@@ -2,20 +2,26 @@ import java.io.*;
 
 public final class Tone {
 	
-	private static final double[] EQUAL_FREQS = generateEqual();
+	private static final int SINE_TABLE_BITS = 12;
+	private static final double[] SINE_TABLE = generateSineTable();
 	
 	public static final int SQUARE = 0;
 	public static final int SAWTOOTH = 1;
 	public static final int TRIANGLE = 2;
 	public static final int SINE = 3;
 	
+	// Plays the composition's sample instrument, so it can't be rendered from the tone alone
+	public static final int SAMPLE = 4;
+	
+	public static final int TYPE_COUNT = 5;
+	
 	private final int type;
 	private final int note;
 	private final int amplitude;
 	
 	public Tone(int type, int note, int amplitude) {
 		
-		if(type < 0 || type > SINE)
+		if(type < 0 || type >= TYPE_COUNT)
 			throw new IllegalArgumentException();
 		
 		if(note < 0 || note >= 128)
@@ -30,6 +36,18 @@ public final class Tone {
 		
 	}
 	
+	public int getType() {
+		return type;
+	}
+	
+	public int getNote() {
+		return note;
+	}
+	
+	public int getAmplitude() {
+		return amplitude;
+	}
+	
 	public void writeTo(OutputStream os) throws IOException {
 		
 		os.write(type);
@@ -44,7 +62,7 @@ public final class Tone {
 		if(type < 0)
 			throw new IOException("End of stream reached before data could be read");
 		
-		if(type > SINE)
+		if(type >= TYPE_COUNT)
 			throw new IOException("Bad value for tone type");
 		
 		int note = is.read();
@@ -63,10 +81,14 @@ public final class Tone {
 	}
 	
 	public void addTo(double[] samples, double start, double sampleRate) {
+		addTo(samples, start, sampleRate, Tuning.EQUAL);
+	}
+	
+	public void addTo(double[] samples, double start, double sampleRate, Tuning tuning) {
 		
 		double amplitude = this.amplitude / 255.0;
 		
-		double freq = EQUAL_FREQS[note];
+		double freq = tuning.getFrequency(note);
 		
 		switch(type) {
 		
@@ -74,6 +96,7 @@ public final class Tone {
 		case SAWTOOTH: addSawtooth(samples, start, freq, amplitude, sampleRate); break;
 		case TRIANGLE: addTriangle(samples, start, freq, amplitude, sampleRate); break;
 		case SINE:     addSine    (samples, start, freq, amplitude, sampleRate); break;
+		case SAMPLE:   break;
 		
 		default:
 			assert(false);
@@ -82,6 +105,23 @@ public final class Tone {
 		
 	}
 	
+	@Override
+	public boolean equals(Object other) {
+		
+		if(!(other instanceof Tone))
+			return false;
+		
+		Tone tone = (Tone) other;
+		
+		return type == tone.type && note == tone.note && amplitude == tone.amplitude;
+		
+	}
+	
+	@Override
+	public int hashCode() {
+		return (type << 16) | (note << 8) | amplitude;
+	}
+	
 	@Override
 	public String toString() {
 		return "{MIDI: " + note + ", Volume: " + amplitude + ", Type: " + typeName(type) + "}";
@@ -95,6 +135,7 @@ public final class Tone {
 		case SAWTOOTH: return "Sawtooth";
 		case TRIANGLE: return "Triangle";
 		case SINE:     return "Sine";
+		case SAMPLE:   return "Sample";
 		
 		}
 		
@@ -163,6 +204,122 @@ public final class Tone {
 		
 	}
 	
+	// Unit amplitude waveform of the given type, in phase with the add* methods
+	public static double waveAtTime(int type, double time, double freq) {
+		
+		double posInCycle;
+		
+		switch(type) {
+		
+		case SQUARE:
+			posInCycle = (time * freq) % 1.0;
+			return posInCycle < 0.5 ? 1.0 : -1.0;
+		
+		case SAWTOOTH:
+			posInCycle = (time * freq + 0.25) % 1.0;
+			return posInCycle * 2.0 - 1.0;
+		
+		case TRIANGLE:
+			posInCycle = (time * freq + 0.25) % 1.0;
+			double posInHalfCycle = (posInCycle * 2.0) % 1.0;
+			return posInCycle < 0.5 ? posInHalfCycle * 2.0 - 1.0 : 1.0 - posInHalfCycle * 2.0;
+		
+		case SINE:
+			return sineWaveAtTime(time, freq);
+		
+		}
+		
+		throw new IllegalArgumentException();
+		
+	}
+	
+	public static double waveAtTime(int type, double time, double freq, double sampleRate, RenderQuality quality) {
+		return waveAtTimeWithIncrement(type, time, freq, freq / sampleRate, quality);
+	}
+	
+	// As above, given the frequency in cycles per sample rather than the sample rate, such as from
+	// Tuning.getIncrements
+	public static double waveAtTimeWithIncrement(int type, double time, double freq, double increment, RenderQuality quality) {
+		
+		double posInCycle;
+		
+		switch(type) {
+		
+		case SQUARE:
+			
+			if(!quality.BAND_LIMITED)
+				break;
+			
+			posInCycle = (time * freq) % 1.0;
+			return (posInCycle < 0.5 ? 1.0 : -1.0) + polyBlep(posInCycle, increment) - polyBlep((posInCycle + 0.5) % 1.0, increment);
+		
+		case SAWTOOTH:
+			
+			if(!quality.BAND_LIMITED)
+				break;
+			
+			posInCycle = (time * freq + 0.25) % 1.0;
+			return posInCycle * 2.0 - 1.0 - polyBlep(posInCycle, increment);
+		
+		case SINE:
+			
+			if(!quality.EXACT_SINE)
+				return fastSine(time * freq);
+			
+			break;
+		
+		}
+		
+		return waveAtTime(type, time, freq);
+		
+	}
+	
+	// Correction for a unit step at the start of the cycle, smoothing it over one sample either side
+	private static double polyBlep(double posInCycle, double posPerSample) {
+		
+		if(posInCycle < posPerSample) {
+			
+			double t = posInCycle / posPerSample;
+			return t + t - t * t - 1.0;
+			
+		}
+		
+		if(posInCycle > 1.0 - posPerSample) {
+			
+			double t = (posInCycle - 1.0) / posPerSample;
+			return t * t + t + t + 1.0;
+			
+		}
+		
+		return 0.0;
+		
+	}
+	
+	// Sine of a position in cycles, interpolated from a table
+	public static double fastSine(double cycles) {
+		
+		double pos = (cycles - Math.floor(cycles)) * (1 << SINE_TABLE_BITS);
+		int index = (int) pos;
+		double fraction = pos - index;
+		
+		index &= (1 << SINE_TABLE_BITS) - 1;
+		
+		return SINE_TABLE[index] + (SINE_TABLE[index + 1] - SINE_TABLE[index]) * fraction;
+		
+	}
+	
+	private static double[] generateSineTable() {
+		
+		// One extra entry so interpolation never needs to wrap around
+		double[] table = new double[(1 << SINE_TABLE_BITS) + 1];
+		
+		for(int i = 0; i < table.length; ++i)
+			table[i] = Math.sin(i * Math.PI * 2.0 / (1 << SINE_TABLE_BITS));
+		
+		return table;
+		
+	}
+	
 	public static double sineWaveAtTime(double time, double freq) {
 		return Math.sin((time * freq) * Math.PI * 2.0);
 	}
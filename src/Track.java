@@ -0,0 +1,53 @@
+public final class Track {
+	
+	private final String name;
+	private final Composition composition;
+	private volatile double gain;
+	private volatile boolean muted;
+	
+	public Track(String name, Composition composition) {
+		
+		if(name == null || composition == null)
+			throw new NullPointerException();
+		
+		this.name = name;
+		this.composition = composition;
+		this.gain = 1.0;
+		
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public Composition getComposition() {
+		return composition;
+	}
+	
+	public double getGain() {
+		return gain;
+	}
+	
+	public void setGain(double gain) {
+		
+		if(!Double.isFinite(gain) || gain < 0.0)
+			throw new IllegalArgumentException("Gain must be non-negative and finite");
+		
+		this.gain = gain;
+		
+	}
+	
+	public boolean isMuted() {
+		return muted;
+	}
+	
+	public void setMuted(boolean muted) {
+		this.muted = muted;
+	}
+	
+	@Override
+	public String toString() {
+		return "{Track: " + name + ", Gain: " + gain + (muted ? ", Muted" : "") + "}";
+	}
+	
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+// Frequency of each of the 128 notes.  Tunings are immutable and stored with the composition.  Each one
+// keeps the phase increment (cycles per sample) of every note for each sample rate it's rendered at, so
+// voices don't divide frequency by sample rate as they render, and a change of tuning costs a lookup.
+public final class Tuning {
+	
+	public static final double DEFAULT_A4 = 440.0;
+	
+	public static final int A4_NOTE = 69;
+	public static final int MIDDLE_C_NOTE = 60;
+	
+	// 5-limit just intervals above the tonic, as (numerator, denominator)
+	private static final int[][] JUST_RATIOS = {
+		{ 1, 1 }, { 16, 15 }, { 9, 8 }, { 6, 5 }, { 5, 4 }, { 4, 3 },
+		{ 45, 32 }, { 3, 2 }, { 8, 5 }, { 5, 3 }, { 9, 5 }, { 15, 8 }
+	};
+	
+	private static final String[] NOTE_NAMES = { "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+	
+	// Twelve tone equal temperament with A4 at 440 Hz, the tuning compositions start with
+	public static final Tuning EQUAL = equal(DEFAULT_A4);
+	
+	private final String name;
+	private final double[] freqs;
+	
+	// Phase increments by sample rate
+	private final HashMap<Double, double[]> increments;
+	
+	private Tuning(String name, double[] freqs) {
+		
+		if(name == null)
+			throw new NullPointerException();
+		
+		if(freqs.length != 128)
+			throw new IllegalArgumentException("Tunings have a frequency for each of 128 notes");
+		
+		for(double freq : freqs)
+			if(!Double.isFinite(freq) || freq <= 0.0)
+				throw new IllegalArgumentException("Frequencies must be positive and finite");
+		
+		this.name = name;
+		this.freqs = freqs;
+		this.increments = new HashMap<Double, double[]>();
+		
+	}
+	
+	public static Tuning equal(double a4) {
+		
+		checkReference(a4);
+		
+		double[] freqs = new double[128];
+		
+		for(int i = 0; i < freqs.length; ++i)
+			freqs[i] = a4 * Math.pow(2, (i - A4_NOTE) / 12.0);
+		
+		return new Tuning(String.format(Locale.ROOT, "Equal temperament (A4 = %s Hz)", formatHz(a4)), freqs);
+		
+	}
+	
+	// Just intonation built on "tonic" (0 for C up to 11 for B), whose notes keep their equal
+	// temperament frequencies for the given A4
+	public static Tuning just(double a4, int tonic) {
+		
+		checkReference(a4);
+		
+		if(tonic < 0 || tonic >= 12)
+			throw new IllegalArgumentException("Tonic must be within 0 to 11");
+		
+		Tuning equal = equal(a4);
+		int root = MIDDLE_C_NOTE + tonic;
+		double[] freqs = new double[128];
+		
+		for(int i = 0; i < freqs.length; ++i) {
+			
+			int[] ratio = JUST_RATIOS[Math.floorMod(i - root, 12)];
+			
+			freqs[i] = equal.freqs[root] * Math.pow(2, Math.floorDiv(i - root, 12)) * ratio[0] / ratio[1];
+			
+		}
+		
+		return new Tuning(String.format(Locale.ROOT, "Just intonation in %s (A4 = %s Hz)", NOTE_NAMES[tonic], formatHz(a4)), freqs);
+		
+	}
+	
+	public static Tuning readScala(File file, int baseNote, double baseFrequency) throws IOException {
+		
+		Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1);
+		
+		try {
+			return readScala(reader, baseNote, baseFrequency);
+		} finally {
+			reader.close();
+		}
+		
+	}
+	
+	// Reads a Scala scale (.scl): a description, the number of pitches, then each pitch above the first
+	// degree as cents (with a decimal point) or a ratio, the last being the interval the scale repeats
+	// at.  Lines starting with '!' are comments.  "baseNote" plays the first degree at "baseFrequency".
+	public static Tuning readScala(Reader reader, int baseNote, double baseFrequency) throws IOException {
+		
+		if(baseNote < 0 || baseNote >= 128)
+			throw new IllegalArgumentException("Base note must be within 0 to 127");
+		
+		checkReference(baseFrequency);
+		
+		BufferedReader lines = new BufferedReader(reader);
+		List<String> values = new ArrayList<String>();
+		
+		for(String line = lines.readLine(); line != null; line = lines.readLine())
+			if(!line.startsWith("!"))
+				values.add(line.trim());
+		
+		if(values.size() < 2)
+			throw new IOException("Scala file ends before the number of pitches");
+		
+		String description = values.get(0);
+		int count;
+		
+		try {
+			count = Integer.parseInt(firstToken(values.get(1)));
+		} catch(NumberFormatException e) {
+			throw new IOException("Bad number of pitches: " + values.get(1));
+		}
+		
+		if(count <= 0)
+			throw new IOException("Scala scale has no pitches");
+		
+		if(values.size() < count + 2)
+			throw new IOException("Scala file has fewer pitches than it says");
+		
+		// Ratio of each degree to the first, then the ratio the scale repeats at
+		double[] ratios = new double[count + 1];
+		ratios[0] = 1.0;
+		
+		for(int i = 1; i <= count; ++i)
+			ratios[i] = parseScalaPitch(firstToken(values.get(i + 1)));
+		
+		double[] freqs = new double[128];
+		
+		for(int i = 0; i < freqs.length; ++i)
+			freqs[i] = baseFrequency * Math.pow(ratios[count], Math.floorDiv(i - baseNote, count)) * ratios[Math.floorMod(i - baseNote, count)];
+		
+		try {
+			return new Tuning(description.isEmpty() ? "Scala scale" : description, freqs);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Scala scale goes out of range: " + e.getMessage());
+		}
+		
+	}
+	
+	private static double parseScalaPitch(String pitch) throws IOException {
+		
+		double ratio;
+		
+		try {
+			
+			if(pitch.contains(".")) {
+				
+				ratio = Math.pow(2.0, Double.parseDouble(pitch) / 1200.0);
+				
+			} else {
+				
+				int slash = pitch.indexOf('/');
+				
+				if(slash < 0)
+					ratio = Long.parseLong(pitch);
+				else
+					ratio = Long.parseLong(pitch.substring(0, slash)) / (double) Long.parseLong(pitch.substring(slash + 1));
+				
+			}
+			
+		} catch(NumberFormatException e) {
+			throw new IOException("Bad pitch: " + pitch);
+		}
+		
+		if(!Double.isFinite(ratio) || ratio <= 0.0)
+			throw new IOException("Bad pitch: " + pitch);
+		
+		return ratio;
+		
+	}
+	
+	private static String firstToken(String line) {
+		
+		String[] tokens = line.split("\\s+");
+		
+		return tokens.length == 0 ? "" : tokens[0];
+		
+	}
+	
+	private static void checkReference(double freq) {
+		
+		if(!Double.isFinite(freq) || freq <= 0.0)
+			throw new IllegalArgumentException("Reference frequency must be positive and finite");
+		
+	}
+	
+	private static String formatHz(double freq) {
+		return freq == Math.rint(freq) ? Long.toString((long) freq) : Double.toString(freq);
+	}
+	
+	// "C" for 0 up to "B" for 11
+	public static String pitchClassName(int pitchClass) {
+		return NOTE_NAMES[pitchClass];
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public double getFrequency(int note) {
+		return freqs[note];
+	}
+	
+	// Cycles per sample of every note at "sampleRate", made once per sample rate.  The array is shared,
+	// so it must not be modified.
+	public synchronized double[] getIncrements(double sampleRate) {
+		
+		double[] table = increments.get(sampleRate);
+		
+		if(table == null) {
+			
+			table = new double[freqs.length];
+			
+			for(int i = 0; i < table.length; ++i)
+				table[i] = freqs[i] / sampleRate;
+			
+			increments.put(sampleRate, table);
+			
+		}
+		
+		return table;
+		
+	}
+	
+	public void writeTo(OutputStream os) throws IOException {
+		
+		BinaryIO.writeString(os, name);
+		os.write(freqs.length);
+		
+		for(double freq : freqs)
+			BinaryIO.writeDouble(os, freq);
+		
+	}
+	
+	public static Tuning readFrom(InputStream is) throws IOException {
+		
+		String name = BinaryIO.readString(is);
+		int count = BinaryIO.readByte(is);
+		
+		if(count != 128)
+			throw new IOException("Bad note count for tuning");
+		
+		double[] freqs = new double[count];
+		
+		for(int i = 0; i < count; ++i)
+			freqs[i] = BinaryIO.readDouble(is);
+		
+		try {
+			return new Tuning(name, freqs);
+		} catch(IllegalArgumentException e) {
+			throw new IOException("Bad tuning: " + e.getMessage());
+		}
+		
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		
+		if(!(other instanceof Tuning))
+			return false;
+		
+		Tuning tuning = (Tuning) other;
+		
+		return name.equals(tuning.name) && Arrays.equals(freqs, tuning.freqs);
+		
+	}
+	
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + Arrays.hashCode(freqs);
+	}
+	
+	@Override
+	public String toString() {
+		return name;
+	}
+	
+}
@@ -0,0 +1,161 @@
+public final class Voice {
+	
+	private boolean active;
+	private int type;
+	private int note;
+	private double amplitude;
+	private double freq;
+	private Envelope envelope;
+	
+	// Cycles per sample at the sample rate being rendered
+	private double increment;
+	
+	// Recording for sample voices, read in place from its mapping, and how many of its frames pass
+	// per output sample
+	private WavReader recording;
+	private double recordingStep;
+	
+	// Envelope state, as absolute sample positions so that it can be evaluated at any time
+	private long onSample;
+	private long offSample;
+	
+	Voice() {}
+	
+	void start(int type, int note, double amplitude, double freq, double increment, Envelope envelope, long onSample) {
+		start(type, note, amplitude, freq, increment, envelope, null, 0.0, onSample);
+	}
+	
+	void start(int type, int note, double amplitude, double freq, double increment, Envelope envelope, WavReader recording, double recordingStep, long onSample) {
+		
+		this.active = true;
+		this.type = type;
+		this.note = note;
+		this.amplitude = amplitude;
+		this.freq = freq;
+		this.increment = increment;
+		this.envelope = envelope;
+		this.recording = recording;
+		this.recordingStep = recordingStep;
+		this.onSample = onSample;
+		this.offSample = Long.MAX_VALUE;
+		
+	}
+	
+	void release(long offSample) {
+		
+		if(offSample < this.offSample)
+			this.offSample = Math.max(offSample, onSample);
+		
+	}
+	
+	void stop() {
+		active = false;
+	}
+	
+	void setAmplitude(double amplitude) {
+		this.amplitude = amplitude;
+	}
+	
+	public boolean isActive() {
+		return active;
+	}
+	
+	public boolean isReleased() {
+		return offSample != Long.MAX_VALUE;
+	}
+	
+	public int getType() {
+		return type;
+	}
+	
+	public int getNote() {
+		return note;
+	}
+	
+	public double getAmplitude() {
+		return amplitude;
+	}
+	
+	public long getOnSample() {
+		return onSample;
+	}
+	
+	public long getOffSample() {
+		return offSample;
+	}
+	
+	public double levelAt(long sample, double sampleRate) {
+		
+		if(sample < offSample)
+			return envelope.levelHeld((sample - onSample) / sampleRate);
+		
+		return envelope.levelReleased((offSample - onSample) / sampleRate, (sample - offSample) / sampleRate);
+		
+	}
+	
+	// Adds this voice to "length" samples starting at "offset", the first of which lies at absolute
+	// sample position "startSample"
+	public void addTo(double[] samples, int offset, int length, long startSample, double sampleRate, RenderQuality quality) {
+		
+		if(!active)
+			return;
+		
+		if(type == Tone.SAMPLE) {
+			
+			addSampleTo(samples, offset, length, startSample, sampleRate);
+			return;
+			
+		}
+		
+		for(int i = 0; i < length; ++i) {
+			
+			long sample = startSample + i;
+			double time = sample / sampleRate;
+			
+			samples[offset + i] += Tone.waveAtTimeWithIncrement(type, time, freq, increment, quality) * amplitude * levelAt(sample, sampleRate);
+			
+		}
+		
+	}
+	
+	// Reads the recording in place, interpolating linearly between frames at the read position the
+	// sample's distance from the note's start gives; it's silent past the recording's end
+	private void addSampleTo(double[] samples, int offset, int length, long startSample, double sampleRate) {
+		
+		if(recording == null)
+			return;
+		
+		long frames = recording.getFrameCount();
+		
+		if(frames == 0)
+			return;
+		
+		long first = Math.max(startSample, onSample);
+		long end = Math.min(startSample + length, onSample + (long) ((frames - 1) / recordingStep) + 1);
+		
+		for(long sample = first; sample < end; ++sample) {
+			
+			double position = (sample - onSample) * recordingStep;
+			long frame = (long) position;
+			double fraction = position - frame;
+			
+			double value = recording.getMonoSample(frame);
+			
+			if(fraction > 0.0 && frame + 1 < frames)
+				value += (recording.getMonoSample(frame + 1) - value) * fraction;
+			
+			samples[offset + (int) (sample - startSample)] += value * amplitude * levelAt(sample, sampleRate);
+			
+		}
+		
+	}
+	
+	// Stops the voice if its release tail has finished by absolute sample position "sample"
+	void expire(long sample, double sampleRate) {
+		
+		if(active && isReleased() && (sample - offSample) / sampleRate >= envelope.getRelease())
+			active = false;
+		
+	}
+	
+}
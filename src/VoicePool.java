@@ -0,0 +1,199 @@
+public final class VoicePool {
+	
+	private final Voice[] voices;
+	private final VoiceStealing stealing;
+	private long stolenCount;
+	
+	// Scratch space for choosing which voices to leave out at reduced quality
+	private final boolean[] muted;
+	private final double[] loudness;
+	
+	// Renders with at least "parallelThreshold" voices sounding are shared between the workers
+	private RenderWorkers workers;
+	private int parallelThreshold;
+	
+	// The pool size is the voice limit; once it's reached, new notes steal a voice
+	public VoicePool(int maxVoices, VoiceStealing stealing) {
+		
+		if(maxVoices <= 0)
+			throw new IllegalArgumentException("Voice limit must be positive");
+		
+		if(stealing == null)
+			throw new NullPointerException();
+		
+		this.voices = new Voice[maxVoices];
+		this.stealing = stealing;
+		this.muted = new boolean[maxVoices];
+		this.loudness = new double[maxVoices];
+		
+		for(int i = 0; i < voices.length; ++i)
+			voices[i] = new Voice();
+		
+	}
+	
+	public int size() {
+		return voices.length;
+	}
+	
+	public Voice get(int index) {
+		return voices[index];
+	}
+	
+	public VoiceStealing getStealing() {
+		return stealing;
+	}
+	
+	public long getStolenCount() {
+		return stolenCount;
+	}
+	
+	// Null workers render every voice on the calling thread
+	public void setWorkers(RenderWorkers workers, int parallelThreshold) {
+		
+		if(parallelThreshold <= 0)
+			throw new IllegalArgumentException("Voice threshold must be positive");
+		
+		this.workers = workers;
+		this.parallelThreshold = parallelThreshold;
+		
+	}
+	
+	public int activeCount() {
+		
+		int count = 0;
+		
+		for(Voice voice : voices)
+			if(voice.isActive())
+				++count;
+		
+		return count;
+		
+	}
+	
+	// Returns a free voice, or the voice to steal according to the stealing policy.  A stolen voice
+	// is still active and keeps its old note so that the caller can tell what was cut off.  Voices
+	// started at "sample" itself are never stolen, so null is returned if they fill the pool.
+	public Voice allocate(long sample, double sampleRate) {
+		
+		Voice victim = null;
+		
+		for(Voice voice : voices) {
+			
+			if(!voice.isActive())
+				return voice;
+			
+			if(voice.getOnSample() < sample && (victim == null || isBetterVictim(voice, victim, sample, sampleRate)))
+				victim = voice;
+			
+		}
+		
+		if(victim != null)
+			++stolenCount;
+		
+		return victim;
+		
+	}
+	
+	private boolean isBetterVictim(Voice voice, Voice victim, long sample, double sampleRate) {
+		
+		switch(stealing) {
+		
+		case OLDEST:
+			return voice.getOnSample() < victim.getOnSample();
+		
+		case QUIETEST:
+			return voice.getAmplitude() * voice.levelAt(sample, sampleRate) < victim.getAmplitude() * victim.levelAt(sample, sampleRate);
+		
+		case LOWEST_PRIORITY:
+			
+			// Voices already releasing go first, then the lowest notes, then the oldest
+			if(voice.isReleased() != victim.isReleased())
+				return voice.isReleased();
+			
+			if(voice.getNote() != victim.getNote())
+				return voice.getNote() < victim.getNote();
+			
+			return voice.getOnSample() < victim.getOnSample();
+		
+		}
+		
+		throw new IllegalStateException();
+		
+	}
+	
+	public void render(double[] samples, int offset, int length, long startSample, double sampleRate, RenderQuality quality) {
+		
+		int audible = muteQuietest(quality, startSample, sampleRate);
+		
+		if(workers != null && audible >= parallelThreshold && length > 0)
+			workers.render(this, samples, offset, length, startSample, sampleRate, quality);
+		else
+			renderPart(0, 1, samples, offset, length, startSample, sampleRate, quality);
+		
+		expire(startSample + length, sampleRate);
+		
+	}
+	
+	// Adds every "parts"-th unmuted voice, starting from "part", so each part gets a fair share of them
+	void renderPart(int part, int parts, double[] samples, int offset, int length, long startSample, double sampleRate, RenderQuality quality) {
+		
+		for(int i = part; i < voices.length; i += parts)
+			if(!muted[i])
+				voices[i].addTo(samples, offset, length, startSample, sampleRate, quality);
+		
+	}
+	
+	// Leaves the quietest voices out of this render when the quality calls for fewer voices.  They
+	// keep playing silently, so they come back where they would have been once quality recovers.
+	// Returns how many voices are left to render.
+	private int muteQuietest(RenderQuality quality, long sample, double sampleRate) {
+		
+		int active = 0;
+		
+		for(int i = 0; i < voices.length; ++i) {
+			
+			muted[i] = !voices[i].isActive();
+			
+			if(!muted[i]) {
+				
+				loudness[i] = voices[i].getAmplitude() * voices[i].levelAt(sample, sampleRate);
+				++active;
+				
+			}
+			
+		}
+		
+		int toMute = active - (int) Math.ceil(active * quality.VOICE_FRACTION);
+		
+		for(; toMute > 0; --toMute) {
+			
+			int quietest = -1;
+			
+			for(int i = 0; i < voices.length; ++i)
+				if(!muted[i] && (quietest < 0 || loudness[i] < loudness[quietest]))
+					quietest = i;
+			
+			muted[quietest] = true;
+			--active;
+			
+		}
+		
+		return active;
+		
+	}
+	
+	public void expire(long sample, double sampleRate) {
+		
+		for(Voice voice : voices)
+			voice.expire(sample, sampleRate);
+		
+	}
+	
+	public void reset() {
+		
+		for(Voice voice : voices)
+			voice.stop();
+		
+	}
+	
+}
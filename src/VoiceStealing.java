@@ -0,0 +1,18 @@
+public enum VoiceStealing {
+	
+	OLDEST("Oldest note first"),
+	QUIETEST("Quietest note first"),
+	LOWEST_PRIORITY("Released, then lowest notes first");
+	
+	public final String DESCRIPTION;
+	
+	VoiceStealing(String description) {
+		this.DESCRIPTION = description;
+	}
+	
+	@Override
+	public String toString() {
+		return DESCRIPTION;
+	}
+	
+}
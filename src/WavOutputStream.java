@@ -2,10 +2,11 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 
-public class WavOutputStream implements Closeable {
+public class WavOutputStream implements SampleOutput {
 
 	private static final int HEADER_LENGTH = 44;
 	private static final int FMT_SIZE = 16;
+	private static final int SILENCE_CHUNK_LENGTH = 65536;
 	
 	private final FileChannel channel; 
 	private final long sampleRate;
@@ -13,6 +14,9 @@ public class WavOutputStream implements Closeable {
 	private final WavSampleFormat sampleFormat;
 	private long samplesWritten;
 	
+	// Reused between writes, and grown when a write needs more room
+	private ByteBuffer buffer;
+	
 	public WavOutputStream(String name, long sampleRate, int numChannels, WavSampleFormat sampleFormat) throws IOException {
 		
 		this(new RandomAccessFile(name, "rw"), sampleRate, numChannels, sampleFormat);
@@ -40,6 +44,9 @@ public class WavOutputStream implements Closeable {
 		
 		samplesWritten = 0;
 		
+		// Anything already in the file would otherwise be left after the new samples
+		file.setLength(0);
+		
 		// Seek to where samples will begin being written
 		file.seek(HEADER_LENGTH);
 		
@@ -53,21 +60,18 @@ public class WavOutputStream implements Closeable {
 		if(length % numChannels != 0)
 			throw new IllegalArgumentException("All channels' samples must be written at once.");
 		
-		ByteBuffer buffer = ByteBuffer.allocateDirect(length * sampleFormat.BYTES_PER_SAMPLE);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer buffer = getBuffer(length * sampleFormat.BYTES_PER_SAMPLE);
 		
 		IntBuffer asInt = buffer.asIntBuffer();
 		asInt.put(samples, offset, length);
 		
-		buffer.rewind();
-		
 		samplesWritten += length;
 		
-		while(length > 0)
-			length -= channel.write(buffer);
+		writeFully(buffer);
 		
 	}
 	
+	@Override
 	public void write(short[] samples, int offset, int length) throws IOException {
 		
 		if(!sampleFormat.isCorrectArrayType(samples))
@@ -76,18 +80,14 @@ public class WavOutputStream implements Closeable {
 		if(length % numChannels != 0)
 			throw new IllegalArgumentException("All channels' samples must be written at once.");
 		
-		ByteBuffer buffer = ByteBuffer.allocateDirect(length * sampleFormat.BYTES_PER_SAMPLE);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer buffer = getBuffer(length * sampleFormat.BYTES_PER_SAMPLE);
 		
 		ShortBuffer asShort = buffer.asShortBuffer();
 		asShort.put(samples, offset, length);
 		
-		buffer.rewind();
-		
 		samplesWritten += length;
 		
-		while(length > 0)
-			length -= channel.write(buffer);
+		writeFully(buffer);
 		
 	}
 	
@@ -99,18 +99,56 @@ public class WavOutputStream implements Closeable {
 		if(length % numChannels != 0)
 			throw new IllegalArgumentException("All channels' samples must be written at once.");
 		
-		ByteBuffer buffer = ByteBuffer.allocateDirect(length * sampleFormat.BYTES_PER_SAMPLE);
-		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer buffer = getBuffer(length * sampleFormat.BYTES_PER_SAMPLE);
 		
 		FloatBuffer asFloat = buffer.asFloatBuffer();
 		asFloat.put(samples, offset, length);
 		
-		buffer.rewind();
+		samplesWritten += length;
+		
+		writeFully(buffer);
+		
+	}
+	
+	// Converts samples within -1 to 1 straight into the file's format.  16 bit samples come out exactly
+	// as they always have from saveWav, so exports in that format don't change.  Integer formats clip
+	// samples beyond that range rather than letting them wrap around.
+	@Override
+	public void write(double[] samples, int offset, int length) throws IOException {
+		
+		if(length % numChannels != 0)
+			throw new IllegalArgumentException("All channels' samples must be written at once.");
+		
+		ByteBuffer buffer = getBuffer(length * sampleFormat.BYTES_PER_SAMPLE);
+		
+		switch(sampleFormat) {
 		
+		case PCM_INT_16:
+			for(int i = offset; i < offset + length; ++i)
+				buffer.putShort((short) (Math.max(-1.0, Math.min(1.0, samples[i])) * Short.MAX_VALUE));
+			break;
+		
+		case PCM_UINT_8:
+			for(int i = offset; i < offset + length; ++i)
+				buffer.put((byte) ((int) (Math.max(-1.0, Math.min(1.0, samples[i])) * Byte.MAX_VALUE) + 128));
+			break;
+		
+		case PCM_INT_32:
+			for(int i = offset; i < offset + length; ++i)
+				buffer.putInt((int) (Math.max(-1.0, Math.min(1.0, samples[i])) * Integer.MAX_VALUE));
+			break;
+		
+		case PCM_FLOAT:
+			for(int i = offset; i < offset + length; ++i)
+				buffer.putFloat((float) samples[i]);
+			break;
+		
+		}
+		
+		buffer.flip();
 		samplesWritten += length;
 		
-		while(length > 0)
-			length -= channel.write(buffer);
+		writeFully(buffer);
 		
 	}
 	
@@ -124,12 +162,71 @@ public class WavOutputStream implements Closeable {
 		
 		ByteBuffer buffer = ByteBuffer.wrap(samples, offset, length);
 		
-		buffer.rewind();
+		samplesWritten += length;
+		
+		writeFully(buffer);
+		
+	}
+	
+	// Silence is left as a hole in the file where the format's silence is zero, so the file system
+	// only has to store it if it doesn't support sparse files
+	@Override
+	public void writeSilence(long length) throws IOException {
+		
+		if(length < 0)
+			throw new IllegalArgumentException("Length can't be negative.");
+		
+		if(length % numChannels != 0)
+			throw new IllegalArgumentException("All channels' samples must be written at once.");
+		
+		long bytes = length * sampleFormat.BYTES_PER_SAMPLE;
 		
 		samplesWritten += length;
 		
-		while(length > 0)
-			length -= channel.write(buffer);
+		if(!sampleFormat.IS_BYTE) {
+			
+			channel.position(channel.position() + bytes);
+			return;
+			
+		}
+		
+		// Unsigned 8 bit silence is the middle value, so it has to be written out
+		while(bytes > 0) {
+			
+			ByteBuffer buffer = getBuffer((int) Math.min(bytes, SILENCE_CHUNK_LENGTH));
+			
+			while(buffer.hasRemaining())
+				buffer.put((byte) 0x80);
+			
+			buffer.flip();
+			bytes -= buffer.remaining();
+			
+			writeFully(buffer);
+			
+		}
+		
+	}
+	
+	private ByteBuffer getBuffer(int length) {
+		
+		if(buffer == null || buffer.capacity() < length) {
+			
+			buffer = ByteBuffer.allocateDirect(length);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+		}
+		
+		buffer.clear();
+		buffer.limit(length);
+		
+		return buffer;
+		
+	}
+	
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		
+		while(buffer.hasRemaining())
+			channel.write(buffer);
 		
 	}
 	
@@ -137,13 +234,69 @@ public class WavOutputStream implements Closeable {
 		return samplesWritten;
 	}
 	
+	// Appends the samples of a file written by another WavOutputStream with the same format, copying
+	// them from file to file without passing through the Java heap
+	public void writeFrom(File file) throws IOException {
+		
+		FileChannel source = new RandomAccessFile(file, "r").getChannel();
+		
+		try {
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			
+			while(header.hasRemaining())
+				if(source.read(header, header.position()) < 0)
+					throw new IOException("Not a WAV file: " + file);
+			
+			// Everything from "WAVE" up to the data length says what format the samples are in
+			byte[] expected = createHeader(0);
+			
+			for(int i = 8; i < HEADER_LENGTH - 4; ++i)
+				if(header.get(i) != expected[i])
+					throw new IOException("WAV file has a different format: " + file);
+			
+			long rawBytes = header.getInt(HEADER_LENGTH - 4) & 0xffffffffL;
+			int blockAlign = numChannels * sampleFormat.BYTES_PER_SAMPLE;
+			
+			if(rawBytes % blockAlign != 0 || source.size() < HEADER_LENGTH + rawBytes)
+				throw new IOException("WAV file is incomplete: " + file);
+			
+			for(long copied = 0; copied < rawBytes; )
+				copied += source.transferTo(HEADER_LENGTH + copied, rawBytes - copied, channel);
+			
+			samplesWritten += rawBytes / sampleFormat.BYTES_PER_SAMPLE;
+			
+		} finally {
+			source.close();
+		}
+		
+	}
+	
 	@Override
 	public void close() throws IOException {
 		
+		long rawBytes = samplesWritten * sampleFormat.BYTES_PER_SAMPLE;
+		byte[] header = createHeader(rawBytes);
+		
+		// Silence at the end is only a hole until something's written after it
+		long end = HEADER_LENGTH + rawBytes;
+		
+		if(channel.size() < end)
+			channel.write(ByteBuffer.wrap(new byte[1]), end - 1);
+		
+		channel.position(0);
+		
+		writeFully(ByteBuffer.wrap(header));
+		
+		channel.close();
+		
+	}
+	
+	private byte[] createHeader(long rawBytes) {
+		
 		byte[] header = new byte[HEADER_LENGTH];
 		int offset = 0;
 		
-		long rawBytes = samplesWritten * sampleFormat.BYTES_PER_SAMPLE;
 		long riffChunkSize = rawBytes + HEADER_LENGTH - 8;
 		
 		long byteRate = sampleRate * numChannels * sampleFormat.BYTES_PER_SAMPLE;
@@ -206,17 +359,7 @@ public class WavOutputStream implements Closeable {
 		header[offset++] = (byte) ((rawBytes >> 16) & 0xff);
 		header[offset++] = (byte) ((rawBytes >> 24) & 0xff);
 		
-		channel.position(0);
-		
-		ByteBuffer buffer = ByteBuffer.wrap(header);
-		buffer.rewind();
-		
-		int toWrite = header.length;
-		
-		while(toWrite > 0)
-			toWrite -= channel.write(buffer);
-		
-		channel.close();
+		return header;
 		
 	}
 	
@@ -0,0 +1,169 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+// Reads WAV files by memory-mapping them, so any number of threads can share one read-only copy of
+// the samples.  The counterpart of WavOutputStream, reading the same sample formats.
+public final class WavReader implements Closeable {
+	
+	private static final int FORMAT_EXTENSIBLE = 0xfffe;
+	
+	private final File file;
+	private final FileChannel channel;
+	private final ByteBuffer data;
+	private final long sampleRate;
+	private final int numChannels;
+	private final WavSampleFormat sampleFormat;
+	private final long frameCount;
+	
+	public WavReader(File file) throws IOException {
+		
+		this.file = file;
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+		
+		try {
+			
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("WAV file is too large to map");
+			
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			
+			if(buffer.remaining() < 12 || buffer.getInt(0) != 0x46464952 || buffer.getInt(8) != 0x45564157) // "RIFF", "WAVE"
+				throw new IOException("Not a WAV file");
+			
+			ByteBuffer data = null;
+			WavSampleFormat sampleFormat = null;
+			long sampleRate = 0;
+			int numChannels = 0;
+			
+			// Chunks are padded to an even length
+			for(int position = 12; position + 8 <= buffer.limit(); ) {
+				
+				int id = buffer.getInt(position);
+				long size = buffer.getInt(position + 4) & 0xffffffffL;
+				int start = position + 8;
+				
+				if(start + size > buffer.limit())
+					size = buffer.limit() - start;
+				
+				if(id == 0x20746d66) { // "fmt "
+					
+					if(size < 16)
+						throw new IOException("Bad WAV format chunk");
+					
+					int formatCode = buffer.getShort(start) & 0xffff;
+					int bitsPerSample = buffer.getShort(start + 14) & 0xffff;
+					
+					// The real format code starts the sub-format GUID
+					if(formatCode == FORMAT_EXTENSIBLE && size >= 26)
+						formatCode = buffer.getShort(start + 24) & 0xffff;
+					
+					numChannels = buffer.getShort(start + 2) & 0xffff;
+					sampleRate = buffer.getInt(start + 4) & 0xffffffffL;
+					sampleFormat = findFormat(formatCode, bitsPerSample);
+					
+				} else if(id == 0x61746164) { // "data"
+					
+					buffer.position(start);
+					buffer.limit(start + (int) size);
+					
+					data = buffer.slice();
+					data.order(ByteOrder.LITTLE_ENDIAN);
+					
+					buffer.limit(buffer.capacity());
+					
+				}
+				
+				position = start + (int) size + (int) (size & 1);
+				
+			}
+			
+			if(sampleFormat == null || data == null)
+				throw new IOException("WAV file is missing its format or data");
+			
+			if(numChannels == 0 || sampleRate == 0)
+				throw new IOException("Bad WAV format chunk");
+			
+			this.data = data;
+			this.sampleRate = sampleRate;
+			this.numChannels = numChannels;
+			this.sampleFormat = sampleFormat;
+			this.frameCount = data.limit() / (numChannels * sampleFormat.BYTES_PER_SAMPLE);
+			
+		} catch(IOException e) {
+			
+			channel.close();
+			throw e;
+			
+		}
+		
+	}
+	
+	private static WavSampleFormat findFormat(int formatCode, int bitsPerSample) throws IOException {
+		
+		for(WavSampleFormat format : WavSampleFormat.values())
+			if(format.FORMAT_CODE == formatCode && format.BITS_PER_SAMPLE == bitsPerSample)
+				return format;
+		
+		throw new IOException("Unsupported WAV sample format: " + bitsPerSample + " bit, code " + formatCode);
+		
+	}
+	
+	public File getFile() {
+		return file;
+	}
+	
+	public long getSampleRate() {
+		return sampleRate;
+	}
+	
+	public int getNumChannels() {
+		return numChannels;
+	}
+	
+	public WavSampleFormat getSampleFormat() {
+		return sampleFormat;
+	}
+	
+	public long getFrameCount() {
+		return frameCount;
+	}
+	
+	// Sample scaled to within -1 to 1
+	public double getSample(long frame, int channel) {
+		
+		int index = (int) ((frame * numChannels + channel) * sampleFormat.BYTES_PER_SAMPLE);
+		
+		switch(sampleFormat) {
+		
+		case PCM_UINT_8: return ((data.get(index) & 0xff) - 128) / 128.0;
+		case PCM_INT_16: return data.getShort(index) / 32768.0;
+		case PCM_INT_32: return data.getInt(index) / 2147483648.0;
+		case PCM_FLOAT:  return data.getFloat(index);
+		
+		}
+		
+		throw new IllegalStateException();
+		
+	}
+	
+	// Average of all channels
+	public double getMonoSample(long frame) {
+		
+		double sum = 0.0;
+		
+		for(int channel = 0; channel < numChannels; ++channel)
+			sum += getSample(frame, channel);
+		
+		return sum / numChannels;
+		
+	}
+	
+	// The mapping itself lasts until it's garbage collected, so buffers already handed out stay valid
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+}
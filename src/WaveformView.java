@@ -0,0 +1,68 @@
+import java.awt.*;
+
+import javax.swing.*;
+
+// Overview of a whole composition drawn from its peak index, so it costs the same however long it is
+public final class WaveformView extends JComponent {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private volatile PeakIndex peaks;
+	
+	public WaveformView() {
+		
+		setPreferredSize(new Dimension(400, 64));
+		setMinimumSize(new Dimension(64, 32));
+		
+	}
+	
+	public void setPeakIndex(PeakIndex peaks) {
+		
+		this.peaks = peaks;
+		repaint();
+		
+	}
+	
+	@Override
+	protected void paintComponent(Graphics g) {
+		
+		int width = getWidth();
+		int height = getHeight();
+		
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, width, height);
+		
+		PeakIndex peaks = this.peaks;
+		long sampleCount = peaks == null ? 0 : peaks.getSampleCount();
+		
+		if(sampleCount == 0 || width <= 0)
+			return;
+		
+		float[] mins = new float[width];
+		float[] maxs = new float[width];
+		float[] rms = new float[width];
+		
+		peaks.query(0, sampleCount, mins, maxs, rms);
+		
+		int middle = height / 2;
+		
+		for(int x = 0; x < width; ++x) {
+			
+			if(Float.isNaN(mins[x]))
+				continue;
+			
+			g.setColor(Color.GRAY);
+			g.drawLine(x, toY(maxs[x], middle), x, toY(mins[x], middle));
+			
+			g.setColor(Color.DARK_GRAY);
+			g.drawLine(x, toY(rms[x], middle), x, toY(-rms[x], middle));
+			
+		}
+		
+	}
+	
+	private static int toY(float sample, int middle) {
+		return middle - Math.round(Math.max(-1.0f, Math.min(1.0f, sample)) * middle);
+	}
+	
+}